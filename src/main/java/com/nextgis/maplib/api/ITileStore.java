@@ -0,0 +1,132 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.api;
+
+import com.nextgis.maplib.datasource.TileItem;
+
+/**
+ * Interface for the tiles storage of raster layers. The tiles are stored as encoded image data
+ * (png, jpeg, etc.) with the time the tile was stored or checked last time.
+ * @author Dmitry Baryshnikov <dmitry.baryshnikov@nextgis.com>
+ */
+public interface ITileStore
+{
+    /**
+     * Get the tile data
+     * @param tile The tile
+     * @return The encoded tile image or null if tile is not stored
+     */
+    byte[] getTile(TileItem tile);
+
+    /**
+     * Check if tile is stored
+     * @param tile The tile
+     * @return true if tile is stored or false
+     */
+    boolean hasTile(TileItem tile);
+
+    /**
+     * Get the time the tile was stored or checked last time
+     * @param tile The tile
+     * @return The time in milliseconds or Constants.NOT_FOUND if tile is not stored
+     */
+    long getTileTimestamp(TileItem tile);
+
+    /**
+     * Get the HTTP entity tag of the tile to revalidate it on server
+     * @param tile The tile
+     * @return The ETag or null
+     */
+    String getTileETag(TileItem tile);
+
+    /**
+     * Store the tile replacing the existed one
+     * @param tile The tile
+     * @param data The encoded tile image
+     * @return true on success or false
+     */
+    boolean putTile(TileItem tile, byte[] data);
+
+    /**
+     * Store the tile with HTTP entity tag replacing the existed one
+     * @param tile The tile
+     * @param data The encoded tile image
+     * @param etag The ETag or null
+     * @return true on success or false
+     */
+    boolean putTile(TileItem tile, byte[] data, String etag);
+
+    /**
+     * Set the tile time to current time, i.e. then the tile is checked to be up to date
+     * @param tile The tile
+     */
+    void touchTile(TileItem tile);
+
+    /**
+     * Remove the tile
+     * @param tile The tile
+     */
+    void deleteTile(TileItem tile);
+
+    /**
+     * @return The size of stored tiles in bytes
+     */
+    long getSize();
+
+    /**
+     * @return The last access time of least recently used tile, 0 if unknown or Long.MAX_VALUE if
+     * the store is empty or does not track access time
+     */
+    long getOldestAccessTime();
+
+    /**
+     * Remove the least recently used tiles
+     * @param count The tiles count to remove
+     * @return The size of removed tiles in bytes
+     */
+    long evict(int count);
+
+    /**
+     * Pass each stored tile to the visitor
+     * @param visitor The visitor
+     */
+    void visitTiles(TileVisitor visitor);
+
+    /**
+     * Release the store resources
+     */
+    void close();
+
+
+    interface TileVisitor
+    {
+        /**
+         * Called for each stored tile with coordinates in tiles numbering of the layer
+         */
+        void onTile(
+                int zoom,
+                int x,
+                int y);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.api;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+
+/**
+ * The map event listener which can repaint only a part of the map. If listener implements this
+ * interface, the layer changes with known area are reported via onLayerAreaChanged instead of
+ * onLayerChanged.
+ */
+public interface MapAreaEventListener
+        extends MapEventListener
+{
+    /**
+     * Executed then layer content changed in some area (i.e. feature inserted, updated or
+     * deleted)
+     * @param id The changed layer identificator.
+     * @param area The changed area in map coordinates. Includes old and new geometry bounds.
+     */
+    void onLayerAreaChanged(
+            int id,
+            GeoEnvelope area);
+}
@@ -0,0 +1,636 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.datasource;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.nextgis.maplib.api.ITileStore;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.nextgis.maplib.map.TMSLayer.TILE_EXT;
+
+
+/**
+ * The tiles stored as separate files in {z}/{x}/{y}.tile layout. The tiles size and last access
+ * time are kept in small SQLite index next to the tiles to evict the least recently used tiles
+ * without walking the tiles folder. The index of existed folder is built once on first size
+ * request, i.e. by cache trim on background thread. The access times are collected in memory and
+ * written in batches.
+ */
+public class FileTileStore
+        implements ITileStore
+{
+    protected static final String ETAG_EXT = ".etag";
+    protected static final String TEMP_EXT = ".tmp";
+
+    protected static final String INDEX_FILE   = "tiles_index.sqlite";
+    protected static final String TABLE_INDEX  = "tiles";
+    protected static final String FIELD_ZOOM   = "zoom";
+    protected static final String FIELD_X      = "x";
+    protected static final String FIELD_Y      = "y";
+    protected static final String FIELD_SIZE   = "size";
+    protected static final String FIELD_ACCESS = "access_time";
+    // the database version is set after the tiles folder is indexed
+    protected static final int    INDEX_BUILT  = 1;
+
+    protected static final int MAX_PENDING_ACCESS_COUNT = 512;
+
+    protected static final String TILE_SELECTION =
+            FIELD_ZOOM + " = ? AND " + FIELD_X + " = ? AND " + FIELD_Y + " = ?";
+
+    protected final File               mPath;
+    protected       SQLiteDatabase     mIndex;
+    protected       long               mSize;
+    protected       int                mUseCount;
+    protected       boolean            mClosed;
+    protected final Map<String, int[]> mPendingAccess;
+
+
+    public FileTileStore(File path)
+    {
+        mPath = path;
+        mSize = Constants.NOT_FOUND;
+        mPendingAccess = new HashMap<>();
+    }
+
+
+    protected File getTileFile(TileItem tile)
+    {
+        return getTileFile(tile.getZoomLevel(), tile.getX(), tile.getY());
+    }
+
+
+    protected File getTileFile(
+            int zoom,
+            int x,
+            int y)
+    {
+        return new File(mPath, zoom + "/" + x + "/" + y + TILE_EXT);
+    }
+
+
+    protected synchronized SQLiteDatabase getIndex()
+    {
+        if (null != mIndex && mIndex.isOpen()) {
+            return mIndex;
+        }
+        // the threads still holding the closed store must not reopen the index
+        if (mClosed) {
+            throw new SQLiteException("The tile store " + mPath.getName() + " is closed");
+        }
+
+        FileUtil.createDir(mPath);
+        mIndex = SQLiteDatabase.openOrCreateDatabase(new File(mPath, INDEX_FILE), null);
+        mIndex.execSQL(
+                "CREATE TABLE IF NOT EXISTS " + TABLE_INDEX + " (" + FIELD_ZOOM + " INTEGER, "
+                        + FIELD_X + " INTEGER, " + FIELD_Y + " INTEGER, " + FIELD_SIZE
+                        + " INTEGER, " + FIELD_ACCESS + " INTEGER)");
+        mIndex.execSQL(
+                "CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON " + TABLE_INDEX + " ("
+                        + FIELD_ZOOM + ", " + FIELD_X + ", " + FIELD_Y + ")");
+        mIndex.execSQL(
+                "CREATE INDEX IF NOT EXISTS tile_access_index ON " + TABLE_INDEX + " ("
+                        + FIELD_ACCESS + ")");
+        return mIndex;
+    }
+
+
+    /**
+     * Add the tiles stored before the index was created. The tiles stored meanwhile are already
+     * indexed and kept as is.
+     */
+    protected synchronized SQLiteDatabase getBuiltIndex()
+    {
+        final SQLiteDatabase db = getIndex();
+        if (db.getVersion() == INDEX_BUILT) {
+            return db;
+        }
+
+        db.beginTransaction();
+        try {
+            visitTiles(new TileVisitor()
+            {
+                @Override
+                public void onTile(
+                        int zoom,
+                        int x,
+                        int y)
+                {
+                    File tilePath = getTileFile(zoom, x, y);
+                    ContentValues values = new ContentValues();
+                    values.put(FIELD_ZOOM, zoom);
+                    values.put(FIELD_X, x);
+                    values.put(FIELD_Y, y);
+                    values.put(FIELD_SIZE, tilePath.length());
+                    values.put(FIELD_ACCESS, tilePath.lastModified());
+                    db.insertWithOnConflict(
+                            TABLE_INDEX, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                }
+            });
+            db.setVersion(INDEX_BUILT);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        mSize = Constants.NOT_FOUND;
+        return db;
+    }
+
+
+    /**
+     * Get the index for the query, call {@link #releaseIndex()} in finally block after it. The
+     * index is not closed until all queries are released.
+     */
+    protected synchronized SQLiteDatabase acquireIndex()
+    {
+        mUseCount++;
+        return getIndex();
+    }
+
+
+    protected synchronized SQLiteDatabase acquireBuiltIndex()
+    {
+        mUseCount++;
+        return getBuiltIndex();
+    }
+
+
+    protected synchronized void releaseIndex()
+    {
+        mUseCount--;
+        if (mUseCount > 0) {
+            return;
+        }
+        notifyAll();
+        if (mClosed) {
+            closeIndex();
+        }
+    }
+
+
+    protected String[] getTileArgs(TileItem tile)
+    {
+        return new String[] {
+                Integer.toString(tile.getZoomLevel()),
+                Integer.toString(tile.getX()),
+                Integer.toString(tile.getY())};
+    }
+
+
+    @Override
+    public byte[] getTile(TileItem tile)
+    {
+        File tilePath = getTileFile(tile);
+        if (!tilePath.exists()) {
+            return null;
+        }
+
+        try {
+            InputStream is = new FileInputStream(tilePath);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) tilePath.length());
+            try {
+                byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+                FileUtil.copyStream(is, baos, buffer, Constants.IO_BUFFER_SIZE);
+            } finally {
+                is.close();
+            }
+            onTileAccessed(tile);
+            return baos.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    @Override
+    public boolean hasTile(TileItem tile)
+    {
+        return getTileFile(tile).exists();
+    }
+
+
+    @Override
+    public long getTileTimestamp(TileItem tile)
+    {
+        File tilePath = getTileFile(tile);
+        if (!tilePath.exists()) {
+            return Constants.NOT_FOUND;
+        }
+        return tilePath.lastModified();
+    }
+
+
+    protected File getETagFile(TileItem tile)
+    {
+        return new File(mPath, tile.toString("{z}/{x}/{y}" + TILE_EXT + ETAG_EXT));
+    }
+
+
+    @Override
+    public String getTileETag(TileItem tile)
+    {
+        File etagPath = getETagFile(tile);
+        if (!etagPath.exists()) {
+            return null;
+        }
+
+        try {
+            return FileUtil.readFromFile(etagPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    @Override
+    public boolean putTile(
+            TileItem tile,
+            byte[] data)
+    {
+        return putTile(tile, data, null);
+    }
+
+
+    @Override
+    public boolean putTile(
+            TileItem tile,
+            byte[] data,
+            String etag)
+    {
+        File tilePath = getTileFile(tile);
+        FileUtil.createDir(tilePath.getParentFile());
+        try {
+            long oldSize = tilePath.length();
+            if (!writeFile(tilePath, data)) {
+                return false;
+            }
+            onTileStored(tile, data.length, oldSize);
+
+            // the ETag is kept next to the tile
+            File etagPath = getETagFile(tile);
+            if (null != etag) {
+                writeFile(etagPath, etag.getBytes());
+            } else if (etagPath.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                etagPath.delete();
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+
+    /**
+     * Write the data to temporary file and rename it to the target, so the readers and concurrent
+     * writers never see the partially written file
+     */
+    protected static boolean writeFile(
+            File path,
+            byte[] data)
+            throws IOException
+    {
+        File tempPath = new File(
+                path.getParentFile(),
+                path.getName() + "." + Thread.currentThread().getId() + TEMP_EXT);
+        OutputStream os = new FileOutputStream(tempPath);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+
+        if (!tempPath.renameTo(path)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempPath.delete();
+            return false;
+        }
+        return true;
+    }
+
+
+    @Override
+    public void touchTile(TileItem tile)
+    {
+        //noinspection ResultOfMethodCallIgnored
+        getTileFile(tile).setLastModified(System.currentTimeMillis());
+    }
+
+
+    @Override
+    public void deleteTile(TileItem tile)
+    {
+        File tilePath = getTileFile(tile);
+        long oldSize = tilePath.length();
+        //noinspection ResultOfMethodCallIgnored
+        tilePath.delete();
+        //noinspection ResultOfMethodCallIgnored
+        getETagFile(tile).delete();
+
+        try {
+            acquireIndex().delete(TABLE_INDEX, TILE_SELECTION, getTileArgs(tile));
+            addSize(-oldSize);
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        } finally {
+            releaseIndex();
+        }
+    }
+
+
+    protected void onTileStored(
+            TileItem tile,
+            long size,
+            long oldSize)
+    {
+        ContentValues values = new ContentValues();
+        values.put(FIELD_ZOOM, tile.getZoomLevel());
+        values.put(FIELD_X, tile.getX());
+        values.put(FIELD_Y, tile.getY());
+        values.put(FIELD_SIZE, size);
+        values.put(FIELD_ACCESS, System.currentTimeMillis());
+        try {
+            acquireIndex().insertWithOnConflict(
+                    TABLE_INDEX, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            addSize(size - oldSize);
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        } finally {
+            releaseIndex();
+        }
+    }
+
+
+    protected synchronized void addSize(long delta)
+    {
+        if (mSize != Constants.NOT_FOUND) {
+            mSize += delta;
+        }
+    }
+
+
+    protected void onTileAccessed(TileItem tile)
+    {
+        boolean flush;
+        synchronized (mPendingAccess) {
+            mPendingAccess.put(
+                    tile.getHash(), new int[] {tile.getZoomLevel(), tile.getX(), tile.getY()});
+            flush = mPendingAccess.size() >= MAX_PENDING_ACCESS_COUNT;
+        }
+
+        if (flush) {
+            flushAccessTimes();
+        }
+    }
+
+
+    /**
+     * Write the collected tiles access times to the index
+     */
+    public void flushAccessTimes()
+    {
+        List<int[]> tiles;
+        synchronized (mPendingAccess) {
+            if (mPendingAccess.isEmpty()) {
+                return;
+            }
+            tiles = new ArrayList<>(mPendingAccess.values());
+            mPendingAccess.clear();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(FIELD_ACCESS, System.currentTimeMillis());
+        try {
+            SQLiteDatabase db = acquireIndex();
+            db.beginTransaction();
+            try {
+                for (int[] tile : tiles) {
+                    db.update(TABLE_INDEX, values, TILE_SELECTION, new String[] {
+                            Integer.toString(tile[0]),
+                            Integer.toString(tile[1]),
+                            Integer.toString(tile[2])});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        } finally {
+            releaseIndex();
+        }
+    }
+
+
+    @Override
+    public synchronized long getSize()
+    {
+        if (mSize == Constants.NOT_FOUND) {
+            try {
+                Cursor cursor = acquireBuiltIndex().rawQuery(
+                        "SELECT SUM(" + FIELD_SIZE + ") FROM " + TABLE_INDEX, null);
+                if (null != cursor) {
+                    if (cursor.moveToFirst()) {
+                        mSize = cursor.getLong(0);
+                    }
+                    cursor.close();
+                }
+            } catch (SQLiteException e) {
+                e.printStackTrace();
+                return 0;
+            } finally {
+                releaseIndex();
+            }
+        }
+        return mSize;
+    }
+
+
+    @Override
+    public long getOldestAccessTime()
+    {
+        flushAccessTimes();
+
+        long result = Long.MAX_VALUE;
+        try {
+            Cursor cursor = acquireBuiltIndex().rawQuery(
+                    "SELECT MIN(" + FIELD_ACCESS + "), COUNT(*) FROM " + TABLE_INDEX, null);
+            if (null != cursor) {
+                if (cursor.moveToFirst() && cursor.getLong(1) > 0) {
+                    result = cursor.getLong(0);
+                }
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        } finally {
+            releaseIndex();
+        }
+        return result;
+    }
+
+
+    @Override
+    public long evict(int count)
+    {
+        flushAccessTimes();
+
+        long freed = 0;
+        try {
+            SQLiteDatabase db = acquireBuiltIndex();
+            db.beginTransaction();
+            try {
+                Cursor cursor = db.rawQuery(
+                        "SELECT rowid, " + FIELD_ZOOM + ", " + FIELD_X + ", " + FIELD_Y + ", "
+                                + FIELD_SIZE + " FROM " + TABLE_INDEX + " ORDER BY "
+                                + FIELD_ACCESS + " LIMIT " + count, null);
+                List<String> rowIds = new ArrayList<>(count);
+                if (null != cursor) {
+                    while (cursor.moveToNext()) {
+                        rowIds.add(cursor.getString(0));
+                        File tilePath =
+                                getTileFile(cursor.getInt(1), cursor.getInt(2), cursor.getInt(3));
+                        //noinspection ResultOfMethodCallIgnored
+                        tilePath.delete();
+                        //noinspection ResultOfMethodCallIgnored
+                        new File(tilePath.getPath() + ETAG_EXT).delete();
+                        freed += cursor.getLong(4);
+                    }
+                    cursor.close();
+                }
+
+                for (String rowId : rowIds) {
+                    db.delete(TABLE_INDEX, "rowid = ?", new String[] {rowId});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            releaseIndex();
+        }
+
+        addSize(-freed);
+        return freed;
+    }
+
+
+    @Override
+    public void visitTiles(TileVisitor visitor)
+    {
+        File[] zoomDirs = mPath.listFiles();
+        if (null == zoomDirs) {
+            return;
+        }
+
+        for (File zoomDir : zoomDirs) {
+            if (!zoomDir.isDirectory() || !FileUtil.isIntegerParseInt(zoomDir.getName())) {
+                continue;
+            }
+            int zoom = Integer.parseInt(zoomDir.getName());
+
+            File[] xDirs = zoomDir.listFiles();
+            if (null == xDirs) {
+                continue;
+            }
+            for (File xDir : xDirs) {
+                if (!xDir.isDirectory() || !FileUtil.isIntegerParseInt(xDir.getName())) {
+                    continue;
+                }
+                int x = Integer.parseInt(xDir.getName());
+
+                String[] names = xDir.list();
+                if (null == names) {
+                    continue;
+                }
+                for (String name : names) {
+                    if (!name.endsWith(TILE_EXT)) {
+                        continue;
+                    }
+                    String y = name.substring(0, name.length() - TILE_EXT.length());
+                    if (FileUtil.isIntegerParseInt(y)) {
+                        visitor.onTile(zoom, x, Integer.parseInt(y));
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Close the index after the running queries of renderer and download threads are finished.
+     * The closed store is not reopened.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (mClosed) {
+            return;
+        }
+
+        flushAccessTimes();
+        mClosed = true;
+        while (mUseCount > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // the last running query closes the index
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        closeIndex();
+    }
+
+
+    protected synchronized void closeIndex()
+    {
+        if (null != mIndex) {
+            mIndex.close();
+            mIndex = null;
+        }
+    }
+}
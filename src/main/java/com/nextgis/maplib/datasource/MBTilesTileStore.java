@@ -0,0 +1,754 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.datasource;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
+import android.util.Log;
+
+import com.nextgis.maplib.api.ITileStore;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The tiles stored in single SQLite file compatible with MBTiles specification. The tile rows are
+ * stored in TMS scheme (Y axis goes up) as the specification requires. The additional columns keep
+ * the tile store time, HTTP entity tag, last access time and size and are ignored by other MBTiles
+ * readers. The access times are collected in memory and written in batches.
+ */
+public class MBTilesTileStore
+        implements ITileStore
+{
+    public static final String MBTILES_EXT = ".mbtiles";
+
+    protected static final String TABLE_TILES     = "tiles";
+    protected static final String TABLE_METADATA  = "metadata";
+    protected static final String FIELD_ZOOM      = "zoom_level";
+    protected static final String FIELD_COLUMN    = "tile_column";
+    protected static final String FIELD_ROW       = "tile_row";
+    protected static final String FIELD_DATA      = "tile_data";
+    protected static final String FIELD_TIMESTAMP = "timestamp";
+    protected static final String FIELD_ETAG      = "etag";
+    protected static final String FIELD_ACCESS    = "access_time";
+    protected static final String FIELD_SIZE      = "tile_size";
+
+    // the columns not defined by MBTiles specification
+    protected static final String[][] EXTRA_FIELDS = {
+            {FIELD_TIMESTAMP, "INTEGER"},
+            {FIELD_ETAG, "TEXT"},
+            {FIELD_ACCESS, "INTEGER"},
+            {FIELD_SIZE, "INTEGER"}};
+
+    protected static final int MAX_PENDING_ACCESS_COUNT = 512;
+
+    protected static final String SIZE_EXPRESSION =
+            "COALESCE(" + FIELD_SIZE + ", LENGTH(" + FIELD_DATA + "))";
+
+    protected static final String TILE_SELECTION =
+            FIELD_ZOOM + " = ? AND " + FIELD_COLUMN + " = ? AND " + FIELD_ROW + " = ?";
+
+    protected final File           mFile;
+    protected final int            mTMSType;
+    protected       SQLiteDatabase mDatabase;
+    protected       boolean        mReadOnly;
+    protected       long           mSize;
+    protected       int            mUseCount;
+    protected       boolean        mClosed;
+    protected final Map<String, int[]> mPendingAccess;
+
+
+    /**
+     * @param file
+     *         The MBTiles file, created if not exists
+     * @param tmsType
+     *         The tiles numbering type of the layer (GeoConstants.TMSTYPE_OSM or
+     *         GeoConstants.TMSTYPE_NORMAL)
+     */
+    public MBTilesTileStore(
+            File file,
+            int tmsType)
+    {
+        mFile = file;
+        mTMSType = tmsType;
+        mSize = Constants.NOT_FOUND;
+        mPendingAccess = new HashMap<>();
+    }
+
+
+    protected synchronized SQLiteDatabase getDatabase()
+    {
+        if (null != mDatabase && mDatabase.isOpen()) {
+            return mDatabase;
+        }
+        // the threads still holding the closed store must not reopen the file
+        if (mClosed) {
+            throw new SQLiteException("The tile store " + mFile.getName() + " is closed");
+        }
+
+        mDatabase = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            mDatabase.enableWriteAheadLogging();
+        }
+
+        try {
+            mDatabase.execSQL(
+                    "CREATE TABLE IF NOT EXISTS " + TABLE_METADATA + " (name TEXT, value TEXT)");
+            mDatabase.execSQL(
+                    "CREATE TABLE IF NOT EXISTS " + TABLE_TILES + " (" + FIELD_ZOOM + " INTEGER, "
+                            + FIELD_COLUMN + " INTEGER, " + FIELD_ROW + " INTEGER, " + FIELD_DATA
+                            + " BLOB)");
+            mDatabase.execSQL(
+                    "CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON " + TABLE_TILES + " ("
+                            + FIELD_ZOOM + ", " + FIELD_COLUMN + ", " + FIELD_ROW + ")");
+
+            // the new and imported files have no extra columns
+            for (String[] field : EXTRA_FIELDS) {
+                if (!hasColumn(mDatabase, field[0])) {
+                    mDatabase.execSQL(
+                            "ALTER TABLE " + TABLE_TILES + " ADD COLUMN " + field[0] + " "
+                                    + field[1]);
+                }
+            }
+            mDatabase.execSQL(
+                    "CREATE INDEX IF NOT EXISTS tile_access_index ON " + TABLE_TILES + " ("
+                            + FIELD_ACCESS + ")");
+        } catch (SQLiteException e) {
+            // the tiles may be a view in some MBTiles files, use them as is
+            Log.d(TAG, "MBTiles " + mFile.getName() + " is read only: " + e.getLocalizedMessage());
+            mReadOnly = true;
+        }
+
+        return mDatabase;
+    }
+
+
+    /**
+     * Get the database for the query, call {@link #releaseDatabase()} in finally block after it.
+     * The database is not closed until all queries are released.
+     */
+    protected synchronized SQLiteDatabase acquireDatabase()
+    {
+        mUseCount++;
+        return getDatabase();
+    }
+
+
+    protected synchronized void releaseDatabase()
+    {
+        mUseCount--;
+        if (mUseCount > 0) {
+            return;
+        }
+        notifyAll();
+        if (mClosed) {
+            closeDatabase();
+        }
+    }
+
+
+    protected static boolean hasColumn(
+            SQLiteDatabase db,
+            String column)
+    {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + TABLE_TILES + ")", null);
+        if (null == cursor) {
+            return false;
+        }
+
+        boolean result = false;
+        int nameColumn = cursor.getColumnIndex("name");
+        while (cursor.moveToNext()) {
+            if (column.equals(cursor.getString(nameColumn))) {
+                result = true;
+                break;
+            }
+        }
+        cursor.close();
+        return result;
+    }
+
+
+    protected int getRow(TileItem tile)
+    {
+        if (mTMSType == GeoConstants.TMSTYPE_OSM) {
+            return (1 << tile.getZoomLevel()) - tile.getY() - 1;
+        }
+        return tile.getY();
+    }
+
+
+    protected String[] getTileArgs(TileItem tile)
+    {
+        return new String[] {
+                Integer.toString(tile.getZoomLevel()),
+                Integer.toString(tile.getX()),
+                Integer.toString(getRow(tile))};
+    }
+
+
+    @Override
+    public byte[] getTile(TileItem tile)
+    {
+        try {
+            Cursor cursor = acquireDatabase().query(
+                    TABLE_TILES, new String[] {FIELD_DATA}, TILE_SELECTION, getTileArgs(tile),
+                    null, null, null);
+            if (null == cursor) {
+                return null;
+            }
+
+            byte[] result = null;
+            if (cursor.moveToFirst()) {
+                result = cursor.getBlob(0);
+            }
+            cursor.close();
+
+            if (null != result) {
+                onTileAccessed(tile);
+            }
+            return result;
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+
+    @Override
+    public boolean hasTile(TileItem tile)
+    {
+        try {
+            Cursor cursor = acquireDatabase().query(
+                    TABLE_TILES, new String[] {FIELD_ZOOM}, TILE_SELECTION, getTileArgs(tile),
+                    null, null, null);
+            if (null == cursor) {
+                return false;
+            }
+
+            boolean result = cursor.moveToFirst();
+            cursor.close();
+            return result;
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+
+    @Override
+    public long getTileTimestamp(TileItem tile)
+    {
+        try {
+            Cursor cursor = acquireDatabase().query(
+                    TABLE_TILES, new String[] {FIELD_TIMESTAMP}, TILE_SELECTION,
+                    getTileArgs(tile), null, null, null);
+            if (null == cursor) {
+                return Constants.NOT_FOUND;
+            }
+
+            long result = Constants.NOT_FOUND;
+            if (cursor.moveToFirst()) {
+                // the tiles imported from other MBTiles have no time
+                result = cursor.isNull(0) ? 0 : cursor.getLong(0);
+            }
+            cursor.close();
+            return result;
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            return Constants.NOT_FOUND;
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+
+    @Override
+    public String getTileETag(TileItem tile)
+    {
+        try {
+            Cursor cursor = acquireDatabase().query(
+                    TABLE_TILES, new String[] {FIELD_ETAG}, TILE_SELECTION, getTileArgs(tile),
+                    null, null, null);
+            if (null == cursor) {
+                return null;
+            }
+
+            String result = null;
+            if (cursor.moveToFirst()) {
+                result = cursor.getString(0);
+            }
+            cursor.close();
+            return result;
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+
+    @Override
+    public boolean putTile(
+            TileItem tile,
+            byte[] data)
+    {
+        return putTile(tile, data, null);
+    }
+
+
+    @Override
+    public boolean putTile(
+            TileItem tile,
+            byte[] data,
+            String etag)
+    {
+        ContentValues values = new ContentValues();
+        values.put(FIELD_ZOOM, tile.getZoomLevel());
+        values.put(FIELD_COLUMN, tile.getX());
+        values.put(FIELD_ROW, getRow(tile));
+        values.put(FIELD_DATA, data);
+        long now = System.currentTimeMillis();
+        values.put(FIELD_TIMESTAMP, now);
+        values.put(FIELD_ETAG, etag);
+        values.put(FIELD_ACCESS, now);
+        values.put(FIELD_SIZE, data.length);
+
+        try {
+            SQLiteDatabase db = acquireDatabase();
+            if (mReadOnly) {
+                return false;
+            }
+
+            long oldSize = getStoredTileSize(tile);
+            if (db.insertWithOnConflict(
+                    TABLE_TILES, null, values, SQLiteDatabase.CONFLICT_REPLACE) == -1) {
+                return false;
+            }
+            addSize(data.length - oldSize);
+            return true;
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+
+    @Override
+    public void touchTile(TileItem tile)
+    {
+        ContentValues values = new ContentValues();
+        values.put(FIELD_TIMESTAMP, System.currentTimeMillis());
+        try {
+            SQLiteDatabase db = acquireDatabase();
+            if (!mReadOnly) {
+                db.update(TABLE_TILES, values, TILE_SELECTION, getTileArgs(tile));
+            }
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+
+    @Override
+    public void deleteTile(TileItem tile)
+    {
+        try {
+            SQLiteDatabase db = acquireDatabase();
+            if (mReadOnly) {
+                return;
+            }
+
+            long oldSize = getStoredTileSize(tile);
+            db.delete(TABLE_TILES, TILE_SELECTION, getTileArgs(tile));
+            addSize(-oldSize);
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+
+    protected long getStoredTileSize(TileItem tile)
+    {
+        if (mSize == Constants.NOT_FOUND) {
+            return 0;
+        }
+
+        Cursor cursor = getDatabase().query(
+                TABLE_TILES, new String[] {SIZE_EXPRESSION}, TILE_SELECTION, getTileArgs(tile),
+                null, null, null);
+        if (null == cursor) {
+            return 0;
+        }
+
+        long result = 0;
+        if (cursor.moveToFirst()) {
+            result = cursor.getLong(0);
+        }
+        cursor.close();
+        return result;
+    }
+
+
+    protected synchronized void addSize(long delta)
+    {
+        if (mSize != Constants.NOT_FOUND) {
+            mSize += delta;
+        }
+    }
+
+
+    protected void onTileAccessed(TileItem tile)
+    {
+        if (mReadOnly) {
+            return;
+        }
+
+        boolean flush;
+        synchronized (mPendingAccess) {
+            mPendingAccess.put(
+                    tile.getHash(), new int[] {tile.getZoomLevel(), tile.getX(), getRow(tile)});
+            flush = mPendingAccess.size() >= MAX_PENDING_ACCESS_COUNT;
+        }
+
+        if (flush) {
+            flushAccessTimes();
+        }
+    }
+
+
+    /**
+     * Write the collected tiles access times to the database
+     */
+    public void flushAccessTimes()
+    {
+        List<int[]> tiles;
+        synchronized (mPendingAccess) {
+            if (mPendingAccess.isEmpty()) {
+                return;
+            }
+            tiles = new ArrayList<>(mPendingAccess.values());
+            mPendingAccess.clear();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(FIELD_ACCESS, System.currentTimeMillis());
+        try {
+            SQLiteDatabase db = acquireDatabase();
+            db.beginTransaction();
+            try {
+                for (int[] tile : tiles) {
+                    db.update(TABLE_TILES, values, TILE_SELECTION, new String[] {
+                            Integer.toString(tile[0]),
+                            Integer.toString(tile[1]),
+                            Integer.toString(tile[2])});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+
+    @Override
+    public synchronized long getSize()
+    {
+        if (mSize == Constants.NOT_FOUND) {
+            try {
+                Cursor cursor = acquireDatabase().rawQuery(
+                        "SELECT SUM(" + SIZE_EXPRESSION + ") FROM " + TABLE_TILES, null);
+                if (null != cursor) {
+                    if (cursor.moveToFirst()) {
+                        mSize = cursor.getLong(0);
+                    }
+                    cursor.close();
+                }
+            } catch (SQLiteException e) {
+                e.printStackTrace();
+                return 0;
+            } finally {
+                releaseDatabase();
+            }
+        }
+        return mSize;
+    }
+
+
+    @Override
+    public long getOldestAccessTime()
+    {
+        flushAccessTimes();
+
+        long result = Long.MAX_VALUE;
+        try {
+            Cursor cursor = acquireDatabase().rawQuery(
+                    "SELECT MIN(" + FIELD_ACCESS + "), COUNT(*) FROM " + TABLE_TILES, null);
+            if (null != cursor) {
+                // the tiles without access time are imported and the oldest ones
+                if (cursor.moveToFirst() && cursor.getLong(1) > 0) {
+                    result = cursor.isNull(0) ? 0 : cursor.getLong(0);
+                }
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        } finally {
+            releaseDatabase();
+        }
+        return result;
+    }
+
+
+    @Override
+    public long evict(int count)
+    {
+        if (mReadOnly) {
+            return 0;
+        }
+        flushAccessTimes();
+
+        long freed = 0;
+        try {
+            SQLiteDatabase db = acquireDatabase();
+            db.beginTransaction();
+            try {
+                Cursor cursor = db.rawQuery(
+                        "SELECT rowid, " + SIZE_EXPRESSION + " FROM " + TABLE_TILES + " ORDER BY "
+                                + FIELD_ACCESS + " LIMIT " + count, null);
+                List<String> rowIds = new ArrayList<>(count);
+                if (null != cursor) {
+                    while (cursor.moveToNext()) {
+                        rowIds.add(cursor.getString(0));
+                        freed += cursor.getLong(1);
+                    }
+                    cursor.close();
+                }
+
+                for (String rowId : rowIds) {
+                    db.delete(TABLE_TILES, "rowid = ?", new String[] {rowId});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            releaseDatabase();
+        }
+
+        addSize(-freed);
+        return freed;
+    }
+
+
+    /**
+     * Get tiles limits for each zoom level in tiles numbering of the store
+     *
+     * @return The map of zoom level to array of min x, max x, min y, max y
+     */
+    public Map<Integer, int[]> getLevelLimits()
+    {
+        Map<Integer, int[]> result = new HashMap<>();
+        try {
+            Cursor cursor = acquireDatabase().rawQuery(
+                    "SELECT " + FIELD_ZOOM + ", MIN(" + FIELD_COLUMN + "), MAX(" + FIELD_COLUMN
+                            + "), MIN(" + FIELD_ROW + "), MAX(" + FIELD_ROW + ") FROM "
+                            + TABLE_TILES + " GROUP BY " + FIELD_ZOOM, null);
+            if (null == cursor) {
+                return result;
+            }
+
+            while (cursor.moveToNext()) {
+                int zoom = cursor.getInt(0);
+                int minY = cursor.getInt(3);
+                int maxY = cursor.getInt(4);
+                if (mTMSType == GeoConstants.TMSTYPE_OSM) {
+                    int tiles = 1 << zoom;
+                    int tmp = tiles - minY - 1;
+                    minY = tiles - maxY - 1;
+                    maxY = tmp;
+                }
+                result.put(zoom, new int[] {cursor.getInt(1), cursor.getInt(2), minY, maxY});
+            }
+            cursor.close();
+        } catch (SQLiteException e) {
+            // not a MBTiles file, the empty limits are rejected by the caller
+            e.printStackTrace();
+            result.clear();
+        } finally {
+            releaseDatabase();
+        }
+        return result;
+    }
+
+
+    @Override
+    public void visitTiles(TileVisitor visitor)
+    {
+        try {
+            Cursor cursor = acquireDatabase().query(
+                    TABLE_TILES, new String[] {FIELD_ZOOM, FIELD_COLUMN, FIELD_ROW}, null, null,
+                    null, null, null);
+            if (null == cursor) {
+                return;
+            }
+
+            while (cursor.moveToNext()) {
+                int zoom = cursor.getInt(0);
+                int y = cursor.getInt(2);
+                if (mTMSType == GeoConstants.TMSTYPE_OSM) {
+                    y = (1 << zoom) - y - 1;
+                }
+                visitor.onTile(zoom, cursor.getInt(1), y);
+            }
+            cursor.close();
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+
+    /**
+     * Get the value from MBTiles metadata table
+     *
+     * @param name
+     *         The metadata key, i.e. name, format, bounds
+     *
+     * @return The value or null
+     */
+    public String getMetadata(String name)
+    {
+        try {
+            Cursor cursor = acquireDatabase().query(
+                    TABLE_METADATA, new String[] {"value"}, "name = ?", new String[] {name}, null,
+                    null, null);
+            if (null == cursor) {
+                return null;
+            }
+
+            String result = null;
+            if (cursor.moveToFirst()) {
+                result = cursor.getString(0);
+            }
+            cursor.close();
+            return result;
+        } catch (SQLiteException e) {
+            return null;
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+
+    /**
+     * Start the transaction for bulk tiles insert, the database is not closed until
+     * {@link #endTransaction()}
+     */
+    public void beginTransaction()
+    {
+        acquireDatabase().beginTransaction();
+    }
+
+
+    public void setTransactionSuccessful()
+    {
+        getDatabase().setTransactionSuccessful();
+    }
+
+
+    public void endTransaction()
+    {
+        try {
+            getDatabase().endTransaction();
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+
+    /**
+     * Close the database after the running queries of renderer and download threads are finished.
+     * The closed store is not reopened.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (mClosed) {
+            return;
+        }
+
+        flushAccessTimes();
+        mClosed = true;
+        while (mUseCount > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // the last running query closes the database
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        closeDatabase();
+    }
+
+
+    protected synchronized void closeDatabase()
+    {
+        if (null != mDatabase) {
+            mDatabase.close();
+            mDatabase = null;
+        }
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.datasource;
+
+import android.util.Log;
+
+import com.nextgis.maplib.api.ITileStore;
+import com.nextgis.maplib.util.Constants;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.nextgis.maplib.util.Constants.NOT_FOUND;
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The read only tiles in ZIP archive with [root/]{z}/{x}/{y}.ext entries. The central directory is
+ * read once to the table of entry offsets, the stored entries are read as is and the deflated ones
+ * are inflated on each read.
+ */
+public class ZipTileStore
+        implements ITileStore
+{
+    protected static final int EOCD_SIGNATURE          = 0x06054b50;
+    protected static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    protected static final int ZIP64_EOCD_SIGNATURE    = 0x06064b50;
+    protected static final int CD_SIGNATURE            = 0x02014b50;
+    protected static final int LOCAL_SIGNATURE         = 0x04034b50;
+
+    protected static final int EOCD_SIZE          = 22;
+    protected static final int ZIP64_LOCATOR_SIZE = 20;
+    protected static final int ZIP64_EOCD_SIZE    = 56;
+    protected static final int CD_HEADER_SIZE     = 46;
+    protected static final int LOCAL_HEADER_SIZE  = 30;
+    protected static final int MAX_COMMENT_SIZE   = 0xFFFF;
+    protected static final int ZIP64_EXTRA_ID     = 0x0001;
+    protected static final long ZIP64_MAGIC       = 0xFFFFFFFFL;
+
+    protected static final int METHOD_STORED   = 0;
+    protected static final int METHOD_DEFLATED = 8;
+    protected static final int FLAG_ENCRYPTED  = 1;
+
+    // the tile key is zoom, x and y packed to 8, 24 and 24 bits
+    protected static final int  MAX_ZOOM  = 24;
+    protected static final long EMPTY_KEY = -1;
+
+    protected final File             mFile;
+    protected       RandomAccessFile mRandomAccessFile;
+    protected       FileChannel      mChannel;
+    protected       boolean          mIndexed;
+
+    // the open addressing hash table of tile keys to entry numbers
+    protected long[] mKeys;
+    protected int[]  mEntries;
+    protected int    mMask;
+
+    protected long[] mOffsets;
+    protected int[]  mCompressedSizes;
+    protected int[]  mSizes;
+    protected byte[] mMethods;
+    protected int    mCount;
+
+
+    public ZipTileStore(File file)
+    {
+        mFile = file;
+    }
+
+
+    protected synchronized FileChannel getChannel()
+    {
+        if (!mIndexed) {
+            mIndexed = true;
+            try {
+                mRandomAccessFile = new RandomAccessFile(mFile, "r");
+                mChannel = mRandomAccessFile.getChannel();
+                readCentralDirectory();
+            } catch (IOException e) {
+                e.printStackTrace();
+                Log.d(TAG, "Problem reading tiles archive: " + mFile + " Error: " +
+                        e.getLocalizedMessage());
+                close();
+            }
+        }
+        return mChannel;
+    }
+
+
+    protected static void readFully(
+            FileChannel channel,
+            ByteBuffer buffer,
+            long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            position += count;
+        }
+        buffer.flip();
+    }
+
+
+    /**
+     * Find the end of central directory record and read the central directory entries
+     */
+    protected void readCentralDirectory()
+            throws IOException
+    {
+        long fileSize = mChannel.size();
+        int tailSize = (int) Math.min(fileSize, EOCD_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(mChannel, tail, fileSize - tailSize);
+
+        int eocd = NOT_FOUND;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == NOT_FOUND) {
+            throw new IOException("The end of central directory is not found");
+        }
+
+        long count = tail.getShort(eocd + 10) & 0xFFFF;
+        long cdOffset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+
+        // the archive with more than 65535 entries or larger than 4 Gb
+        int locator = eocd - ZIP64_LOCATOR_SIZE;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+            ByteBuffer zip64 = ByteBuffer.allocate(ZIP64_EOCD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(mChannel, zip64, tail.getLong(locator + 8));
+            if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("The zip64 end of central directory is not found");
+            }
+            count = zip64.getLong(32);
+            cdOffset = zip64.getLong(48);
+        }
+
+        if (count > Integer.MAX_VALUE / 2) {
+            throw new IOException("Too many entries: " + count);
+        }
+        allocate((int) count);
+
+        // the stream is not closed as it closes the channel
+        InputStream is = Channels.newInputStream(mChannel.position(cdOffset));
+        DataInputStream input =
+                new DataInputStream(new BufferedInputStream(is, Constants.IO_BUFFER_SIZE));
+
+        byte[] header = new byte[CD_HEADER_SIZE];
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        for (long i = 0; i < count; i++) {
+            input.readFully(header);
+            if (headerBuffer.getInt(0) != CD_SIGNATURE) {
+                break;
+            }
+
+            int flags = headerBuffer.getShort(8) & 0xFFFF;
+            int method = headerBuffer.getShort(10) & 0xFFFF;
+            long compressedSize = headerBuffer.getInt(20) & ZIP64_MAGIC;
+            long size = headerBuffer.getInt(24) & ZIP64_MAGIC;
+            int nameLength = headerBuffer.getShort(28) & 0xFFFF;
+            int extraLength = headerBuffer.getShort(30) & 0xFFFF;
+            int commentLength = headerBuffer.getShort(32) & 0xFFFF;
+            long offset = headerBuffer.getInt(42) & ZIP64_MAGIC;
+
+            byte[] name = new byte[nameLength];
+            input.readFully(name);
+
+            byte[] extra = new byte[extraLength];
+            input.readFully(extra);
+            ByteBuffer extraBuffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+            int pos = 0;
+            while (pos + 4 <= extraLength) {
+                int id = extraBuffer.getShort(pos) & 0xFFFF;
+                int length = extraBuffer.getShort(pos + 2) & 0xFFFF;
+                if (id == ZIP64_EXTRA_ID) {
+                    int field = pos + 4;
+                    int end = Math.min(field + length, extraLength);
+                    if (size == ZIP64_MAGIC && field + 8 <= end) {
+                        size = extraBuffer.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC && field + 8 <= end) {
+                        compressedSize = extraBuffer.getLong(field);
+                        field += 8;
+                    }
+                    if (offset == ZIP64_MAGIC && field + 8 <= end) {
+                        offset = extraBuffer.getLong(field);
+                    }
+                    break;
+                }
+                pos += 4 + length;
+            }
+
+            skipFully(input, commentLength);
+
+            if ((flags & FLAG_ENCRYPTED) != 0 ||
+                    (method != METHOD_STORED && method != METHOD_DEFLATED) ||
+                    size > Integer.MAX_VALUE || compressedSize > Integer.MAX_VALUE - 1) {
+                continue;
+            }
+
+            long key = getKey(new String(name, "UTF-8"));
+            if (key != EMPTY_KEY) {
+                addEntry(key, offset, (int) compressedSize, (int) size, (byte) method);
+            }
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(TAG, "Tiles archive " + mFile + " indexed " + mCount + " tiles of " + count + " entries");
+        }
+    }
+
+
+    protected static void skipFully(
+            DataInputStream input,
+            int count)
+            throws IOException
+    {
+        while (count > 0) {
+            int skipped = input.skipBytes(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+
+    protected void allocate(int count)
+    {
+        mOffsets = new long[count];
+        mCompressedSizes = new int[count];
+        mSizes = new int[count];
+        mMethods = new byte[count];
+        mCount = 0;
+
+        // keep the table less than 3/4 full
+        int capacity = Integer.highestOneBit(Math.max(count + count / 3, 1)) * 2;
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, EMPTY_KEY);
+        mEntries = new int[capacity];
+        mMask = capacity - 1;
+    }
+
+
+    protected void addEntry(
+            long key,
+            long offset,
+            int compressedSize,
+            int size,
+            byte method)
+    {
+        int slot = findSlot(key);
+        int entry = mKeys[slot] == EMPTY_KEY ? mCount++ : mEntries[slot];
+        mKeys[slot] = key;
+        mEntries[slot] = entry;
+        mOffsets[entry] = offset;
+        mCompressedSizes[entry] = compressedSize;
+        mSizes[entry] = size;
+        mMethods[entry] = method;
+    }
+
+
+    protected int findSlot(long key)
+    {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (hash ^ (hash >>> 32)) & mMask;
+        while (mKeys[slot] != EMPTY_KEY && mKeys[slot] != key) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+
+    protected synchronized int findEntry(TileItem tile)
+    {
+        if (null == getChannel() || mCount == 0) {
+            return NOT_FOUND;
+        }
+
+        long key = getKey(tile.getZoomLevel(), tile.getX(), tile.getY());
+        if (key == EMPTY_KEY) {
+            return NOT_FOUND;
+        }
+
+        int slot = findSlot(key);
+        return mKeys[slot] == EMPTY_KEY ? NOT_FOUND : mEntries[slot];
+    }
+
+
+    protected static long getKey(
+            int zoom,
+            int x,
+            int y)
+    {
+        if (zoom < 0 || zoom > MAX_ZOOM || x < 0 || y < 0 || x >= 1 << MAX_ZOOM || y >= 1 << MAX_ZOOM) {
+            return EMPTY_KEY;
+        }
+        return ((long) zoom << 48) | ((long) x << 24) | y;
+    }
+
+
+    /**
+     * Get tile key from entry name in form [root/]z/x/y.ext
+     * @param name The entry name
+     * @return The key or EMPTY_KEY if entry is not a tile
+     */
+    protected static long getKey(String name)
+    {
+        int[] tile = parseTileName(name);
+        return null == tile ? EMPTY_KEY : getKey(tile[0], tile[1], tile[2]);
+    }
+
+
+    /**
+     * Parse the entry name in form [root/]z/x/y.ext
+     * @param name The entry name
+     * @return The array of zoom, x and y or null if entry is not a tile
+     */
+    protected static int[] parseTileName(String name)
+    {
+        if (name.endsWith("/")) {
+            return null;
+        }
+
+        String[] parts = name.split("/");
+        if (parts.length < 3) {
+            return null;
+        }
+
+        String yPart = parts[parts.length - 1];
+        int pos = yPart.indexOf('.');
+        if (pos != NOT_FOUND) {
+            yPart = yPart.substring(0, pos);
+        }
+
+        try {
+            int z = Integer.parseInt(parts[parts.length - 3]);
+            int x = Integer.parseInt(parts[parts.length - 2]);
+            int y = Integer.parseInt(yPart);
+            return new int[] {z, x, y};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+
+    @Override
+    public byte[] getTile(TileItem tile)
+    {
+        FileChannel channel;
+        long offset;
+        int compressedSize, size;
+        byte method;
+        synchronized (this) {
+            int entry = findEntry(tile);
+            if (entry == NOT_FOUND) {
+                return null;
+            }
+            channel = mChannel;
+            offset = mOffsets[entry];
+            compressedSize = mCompressedSizes[entry];
+            size = mSizes[entry];
+            method = mMethods[entry];
+        }
+
+        try {
+            ByteBuffer header =
+                    ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, offset);
+            if (header.getInt(0) != LOCAL_SIGNATURE) {
+                return null;
+            }
+
+            long dataOffset = offset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xFFFF) +
+                    (header.getShort(28) & 0xFFFF);
+            if (method == METHOD_STORED) {
+                byte[] data = new byte[compressedSize];
+                readFully(channel, ByteBuffer.wrap(data), dataOffset);
+                return data;
+            }
+
+            // the inflater without zlib header needs an extra dummy byte at the end of input
+            byte[] data = new byte[compressedSize + 1];
+            readFully(channel, ByteBuffer.wrap(data, 0, compressedSize), dataOffset);
+            return inflate(data, size);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    protected static byte[] inflate(
+            byte[] data,
+            int size)
+    {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[size];
+            int count = 0;
+            while (count < size) {
+                int inflated = inflater.inflate(result, count, size - count);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                count += inflated;
+            }
+            return count == size ? result : null;
+        } catch (DataFormatException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+
+    @Override
+    public boolean hasTile(TileItem tile)
+    {
+        return findEntry(tile) != NOT_FOUND;
+    }
+
+
+    /**
+     * The tiles time is the archive time
+     */
+    @Override
+    public long getTileTimestamp(TileItem tile)
+    {
+        return hasTile(tile) ? mFile.lastModified() : NOT_FOUND;
+    }
+
+
+    @Override
+    public String getTileETag(TileItem tile)
+    {
+        return null;
+    }
+
+
+    @Override
+    public boolean putTile(
+            TileItem tile,
+            byte[] data)
+    {
+        return false;
+    }
+
+
+    @Override
+    public boolean putTile(
+            TileItem tile,
+            byte[] data,
+            String etag)
+    {
+        return false;
+    }
+
+
+    @Override
+    public void touchTile(TileItem tile)
+    {
+        // the archive is read only
+    }
+
+
+    @Override
+    public void deleteTile(TileItem tile)
+    {
+        // the archive is read only
+    }
+
+
+    @Override
+    public long getSize()
+    {
+        return mFile.length();
+    }
+
+
+    /**
+     * The archive is read only, the tiles are not evicted
+     */
+    @Override
+    public long getOldestAccessTime()
+    {
+        return Long.MAX_VALUE;
+    }
+
+
+    @Override
+    public long evict(int count)
+    {
+        return 0;
+    }
+
+
+    @Override
+    public void visitTiles(TileVisitor visitor)
+    {
+        long[] keys;
+        synchronized (this) {
+            if (null == getChannel()) {
+                return;
+            }
+            keys = mKeys;
+        }
+
+        for (long key : keys) {
+            if (key != EMPTY_KEY) {
+                visitor.onTile((int) (key >>> 48), (int) (key >>> 24) & 0xFFFFFF, (int) key & 0xFFFFFF);
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized void close()
+    {
+        if (null != mRandomAccessFile) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        mRandomAccessFile = null;
+        mChannel = null;
+        mKeys = null;
+        mEntries = null;
+        mOffsets = null;
+        mCompressedSizes = null;
+        mSizes = null;
+        mMethods = null;
+        mCount = 0;
+        // the threads still holding the closed store must not reopen the file
+        mIndexed = true;
+    }
+}
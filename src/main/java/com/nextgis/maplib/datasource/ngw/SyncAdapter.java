@@ -33,6 +33,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SyncResult;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
@@ -43,9 +44,24 @@ import com.nextgis.maplib.api.INGWLayer;
 import com.nextgis.maplib.map.LayerGroup;
 import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.MapContentProviderHelper;
+import com.nextgis.maplib.util.AccountUtil;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.SettingsConstants;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static com.nextgis.maplib.util.Constants.TAG;
 
 /* useful links
@@ -69,6 +85,14 @@ public class SyncAdapter
     public static final String SYNC_FINISH   = "com.nextgis.maplib.sync_finish";
     public static final String SYNC_CANCELED = "com.nextgis.maplib.sync_canceled";
     public static final String SYNC_CHANGES  = "com.nextgis.maplib.sync_changes";
+    public static final String SYNC_ATTACH_PROGRESS = "com.nextgis.maplib.sync_attach_progress";
+
+    public static final String SYNC_ATTACH_SENT  = "sent_bytes";
+    public static final String SYNC_ATTACH_TOTAL = "total_bytes";
+
+    protected static final int SYNC_THREADS      = 4;
+    protected static final int HOST_SYNC_THREADS = 2;
+    protected static final int CANCEL_TIMEOUT    = 60; // sec
 
 
     public SyncAdapter(
@@ -91,8 +115,8 @@ public class SyncAdapter
 
     /**
      * Warning! When you stop the sync service by ContentResolver.cancelSync() then onPerformSync
-     * stops after end of syncing of current NGWVectorLayer. The data structure of the current
-     * NGWVectorLayer will be saved.
+     * stops after end of syncing of current NGWVectorLayers. The data structure of the current
+     * NGWVectorLayers will be saved.
      * <p/>
      * <b>Description copied from class:</b> AbstractThreadedSyncAdapter Perform a sync for this
      * account. SyncAdapter-specific parameters may be specified in extras, which is guaranteed to
@@ -139,25 +163,181 @@ public class SyncAdapter
     }
 
 
+    /**
+     * Sync the layers of different servers in parallel on the pool of SYNC_THREADS threads, the
+     * layers of one server are synced by up to HOST_SYNC_THREADS threads in the tree order. Each
+     * thread reports to its own SyncResult which are merged to the given one at the end.
+     */
     protected void sync(
             LayerGroup layerGroup,
             String authority,
             SyncResult syncResult)
     {
-        for (int i = 0; i < layerGroup.getLayerCount(); i++) {
-            if (isCanceled()) {
-                return;
+        List<INGWLayer> layers = new ArrayList<>();
+        getLayers(layerGroup, layers);
+        if (layers.isEmpty()) {
+            return;
+        }
+
+        Map<String, ConcurrentLinkedQueue<INGWLayer>> hostQueues = new HashMap<>();
+        for (INGWLayer layer : layers) {
+            String host = getHost(layer);
+            ConcurrentLinkedQueue<INGWLayer> queue = hostQueues.get(host);
+            if (null == queue) {
+                queue = new ConcurrentLinkedQueue<>();
+                hostQueues.put(host, queue);
             }
+            queue.add(layer);
+        }
+
+        // the threads are not interrupted on cancel, they check the flag between layers
+        AtomicBoolean cancelFlag = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(SYNC_THREADS);
+        List<Future<SyncResult>> results = new ArrayList<>();
+        for (ConcurrentLinkedQueue<INGWLayer> queue : hostQueues.values()) {
+            int threads = Math.min(HOST_SYNC_THREADS, queue.size());
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new HostSyncTask(queue, authority, cancelFlag)));
+            }
+        }
+        executor.shutdown();
+
+        boolean canceled = false;
+        for (Future<SyncResult> result : results) {
+            try {
+                // the canceled sync merges the results of finished threads only
+                if (!canceled || result.isDone()) {
+                    mergeSyncResult(syncResult, result.get());
+                }
+            } catch (InterruptedException e) {
+                // the sync is canceled, let the current layers to finish and save their data
+                canceled = true;
+                cancelFlag.set(true);
+                Thread.interrupted();
+                awaitTermination(executor);
+            } catch (ExecutionException | CancellationException e) {
+                e.printStackTrace();
+                syncResult.stats.numIoExceptions++;
+            }
+        }
+
+        // the sync is not finished until all threads are
+        if (canceled) {
+            Thread.currentThread().interrupt();
+        } else {
+            awaitTermination(executor);
+        }
+    }
+
+
+    protected static void awaitTermination(ExecutorService executor)
+    {
+        try {
+            executor.awaitTermination(CANCEL_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    protected void getLayers(
+            LayerGroup layerGroup,
+            List<INGWLayer> layers)
+    {
+        for (int i = 0; i < layerGroup.getLayerCount(); i++) {
             ILayer layer = layerGroup.getLayer(i);
             if (layer instanceof LayerGroup) {
-                sync((LayerGroup) layer, authority, syncResult);
+                getLayers((LayerGroup) layer, layers);
             } else if (layer instanceof INGWLayer) {
-                INGWLayer ngwLayer = (INGWLayer) layer;
-                ngwLayer.sync(authority, syncResult);
+                layers.add((INGWLayer) layer);
+            }
+        }
+    }
+
+
+    protected String getHost(INGWLayer layer)
+    {
+        try {
+            AccountUtil.AccountData accountData =
+                    AccountUtil.getAccountData(getContext(), layer.getAccountName());
+            if (null != accountData.url) {
+                String host = Uri.parse(accountData.url).getHost();
+                return null == host ? accountData.url : host;
             }
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
         }
+        return "" + layer.getAccountName();
     }
 
+
+    protected static void mergeSyncResult(
+            SyncResult target,
+            SyncResult source)
+    {
+        target.stats.numAuthExceptions += source.stats.numAuthExceptions;
+        target.stats.numIoExceptions += source.stats.numIoExceptions;
+        target.stats.numParseExceptions += source.stats.numParseExceptions;
+        target.stats.numConflictDetectedExceptions += source.stats.numConflictDetectedExceptions;
+        target.stats.numInserts += source.stats.numInserts;
+        target.stats.numUpdates += source.stats.numUpdates;
+        target.stats.numDeletes += source.stats.numDeletes;
+        target.stats.numEntries += source.stats.numEntries;
+        target.stats.numSkippedEntries += source.stats.numSkippedEntries;
+
+        target.tooManyDeletions |= source.tooManyDeletions;
+        target.tooManyRetries |= source.tooManyRetries;
+        target.databaseError |= source.databaseError;
+        target.fullSyncRequested |= source.fullSyncRequested;
+        target.partialSyncUnavailable |= source.partialSyncUnavailable;
+        target.moreRecordsToGet |= source.moreRecordsToGet;
+        target.delayUntil = Math.max(target.delayUntil, source.delayUntil);
+    }
+
+
+    /**
+     * Sync the layers of one server from the shared queue
+     */
+    protected class HostSyncTask
+            implements Callable<SyncResult>
+    {
+        protected ConcurrentLinkedQueue<INGWLayer> mQueue;
+        protected String                           mAuthority;
+        protected AtomicBoolean                    mCancelFlag;
+
+
+        public HostSyncTask(
+                ConcurrentLinkedQueue<INGWLayer> queue,
+                String authority,
+                AtomicBoolean cancelFlag)
+        {
+            mQueue = queue;
+            mAuthority = authority;
+            mCancelFlag = cancelFlag;
+        }
+
+
+        @Override
+        public SyncResult call()
+        {
+            SyncResult total = new SyncResult();
+            INGWLayer layer;
+            while (!mCancelFlag.get() && null != (layer = mQueue.poll())) {
+                SyncResult layerResult = new SyncResult();
+                try {
+                    layer.sync(mAuthority, layerResult);
+                } catch (RuntimeException e) {
+                    // the other layers of the server are synced anyway
+                    e.printStackTrace();
+                    layerResult.stats.numIoExceptions++;
+                }
+                mergeSyncResult(total, layerResult);
+            }
+            return total;
+        }
+    }
+
+
     public static void setSyncPeriod(
             IGISApplication application,
             Bundle extras,
@@ -30,11 +30,13 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PathMeasure;
+import android.graphics.PorterDuff;
 import android.graphics.RectF;
 import android.util.Log;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.MapUtil;
 
 import static com.nextgis.maplib.util.Constants.*;
 import static com.nextgis.maplib.util.GeoConstants.DEFAULT_MAX_ZOOM;
@@ -48,6 +50,13 @@ public class GISDisplay
     protected final Paint       mRasterPaint;
     protected       Canvas      mMainCanvas;
     protected       Bitmap      mMainBitmap;
+    // the layers above the base raster layers, used for continuous zoom
+    protected       Canvas      mOverlayCanvas;
+    protected       Bitmap      mOverlayBitmap;
+    protected       boolean     mOverlayEnabled;
+    // the canvas layers draw to now: main or overlay
+    protected       Canvas      mDrawCanvas;
+    protected       PinchRenderer mPinchRenderer;
     protected       Canvas      mDoubleBufferCanvas;
     protected       Bitmap      mDoubleBufferBitmap;
     protected       GeoEnvelope mFullBounds;
@@ -69,6 +78,11 @@ public class GISDisplay
     protected       GeoEnvelope mOffScreenBounds;
     protected       int         mLimitType;
     protected       int         mWidth, mHeight;
+    protected       GeoEnvelope mDirtyArea;
+    protected       int         mDirtyAreaSaveCount, mDirtyAreaOverlaySaveCount;
+
+    // the extra pixels around dirty area for markers, labels and line widths
+    protected static final int DIRTY_AREA_MARGIN = 64;
 
 
     public GISDisplay(Bitmap backgroundTile)
@@ -108,6 +122,10 @@ public class GISDisplay
         }
         mMainBitmap = null;
         mMainCanvas = null;
+        mOverlayBitmap = null;
+        mOverlayCanvas = null;
+        mDrawCanvas = null;
+        mDirtyArea = null;
         mDoubleBufferBitmap = null;
         mDoubleBufferCanvas = null;
 
@@ -136,6 +154,10 @@ public class GISDisplay
                 (int) (w * OFFSCREEN_EXTRASIZE_RATIO), (int) (h * OFFSCREEN_EXTRASIZE_RATIO),
                 Bitmap.Config.ARGB_8888);
         mMainCanvas = new Canvas(mMainBitmap);
+        mDrawCanvas = mMainCanvas;
+        if (mOverlayEnabled) {
+            createOverlay();
+        }
 
         mMainBitmapOffsetX = (mMainBitmap.getWidth() - w) * .5f;
         mMainBitmapOffsetY = (mMainBitmap.getHeight() - h) * .5f;
@@ -164,6 +186,9 @@ public class GISDisplay
             return;
         }
 
+        // the canvas matrix will be changed, so drop the saved clip state before
+        resetDirtyArea();
+
         mZoomLevel = zoom;
 
         mCenter = center;
@@ -216,6 +241,9 @@ public class GISDisplay
         matrix.postTranslate(
                 (float) (mMainBitmap.getWidth() * .5), (float) (mMainBitmap.getHeight() * .5));
         mMainCanvas.setMatrix(matrix);
+        if (null != mOverlayCanvas) {
+            mOverlayCanvas.setMatrix(matrix);
+        }
 
         RectF rect = new RectF(
                 -mMainBitmapOffsetX, mHeight + mMainBitmapOffsetY, mWidth + mMainBitmapOffsetX,
@@ -259,7 +287,144 @@ public class GISDisplay
 
     public void clearLayer()
     {
+        resetDirtyArea();
         mMainBitmap.eraseColor(Color.TRANSPARENT);
+        if (null != mOverlayBitmap) {
+            mOverlayBitmap.eraseColor(Color.TRANSPARENT);
+        }
+        mDrawCanvas = mMainCanvas;
+    }
+
+
+    /**
+     * Keep the layers drawn after the base raster layers in separate bitmap. So the base raster
+     * layers can be composed from the cached tiles during pinch zoom while the rest is scaled.
+     * Needs extra memory for the overlay bitmap.
+     *
+     * @param enabled
+     *         true to enable overlay
+     */
+    public synchronized void setOverlayEnabled(boolean enabled)
+    {
+        mOverlayEnabled = enabled;
+        if (enabled) {
+            if (null == mOverlayBitmap && null != mMainBitmap) {
+                createOverlay();
+                Matrix matrix = mMainCanvas.getMatrix();
+                mOverlayCanvas.setMatrix(matrix);
+            }
+        } else {
+            if (mDrawCanvas == mOverlayCanvas) {
+                mDrawCanvas = mMainCanvas;
+            }
+            mOverlayBitmap = null;
+            mOverlayCanvas = null;
+        }
+    }
+
+
+    protected void createOverlay()
+    {
+        mOverlayBitmap = Bitmap.createBitmap(
+                mMainBitmap.getWidth(), mMainBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        mOverlayCanvas = new Canvas(mOverlayBitmap);
+    }
+
+
+    /**
+     * Direct the next drawing to the overlay bitmap if overlay enabled. Executed before the first
+     * layer which is not a base raster layer is drawn.
+     */
+    public void startOverlay()
+    {
+        if (null != mOverlayCanvas) {
+            mDrawCanvas = mOverlayCanvas;
+        }
+    }
+
+
+    public void setPinchRenderer(PinchRenderer pinchRenderer)
+    {
+        mPinchRenderer = pinchRenderer;
+    }
+
+
+    /**
+     * Limit next drawing to the provided area. The area is cleared on the main bitmap and the
+     * canvas is clipped to it, so renderers repaint only the content intersecting the area. The
+     * renderers should get the area to query via getDrawBounds().
+     *
+     * @param area
+     *         The changed area in map coordinates
+     *
+     * @return true if the area is visible and should be drawn, false otherwise
+     */
+    public synchronized boolean setDirtyArea(final GeoEnvelope area)
+    {
+        resetDirtyArea();
+
+        if (null == mMainCanvas || null == area || !area.isInit()) {
+            return false;
+        }
+
+        double margin = DIRTY_AREA_MARGIN * mInvertScale;
+        GeoEnvelope dirtyArea = new GeoEnvelope(
+                area.getMinX() - margin, area.getMaxX() + margin, area.getMinY() - margin,
+                area.getMaxY() + margin);
+        dirtyArea.intersect(mCurrentBounds);
+        if (!dirtyArea.isInit()) {
+            return false;
+        }
+
+        mDirtyAreaSaveCount = clipToArea(mMainCanvas, dirtyArea);
+        if (null != mOverlayCanvas) {
+            mDirtyAreaOverlaySaveCount = clipToArea(mOverlayCanvas, dirtyArea);
+        }
+        mDrawCanvas = mMainCanvas;
+        mDirtyArea = dirtyArea;
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(TAG, "dirty area: " + mDirtyArea.toString());
+        }
+        return true;
+    }
+
+
+    protected int clipToArea(
+            Canvas canvas,
+            GeoEnvelope area)
+    {
+        int saveCount = canvas.save();
+        canvas.clipRect(
+                (float) area.getMinX(), (float) area.getMinY(), (float) area.getMaxX(),
+                (float) area.getMaxY());
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        return saveCount;
+    }
+
+
+    /**
+     * Remove the drawing limits set by setDirtyArea()
+     */
+    public synchronized void resetDirtyArea()
+    {
+        if (null == mDirtyArea) {
+            return;
+        }
+
+        if (null != mMainCanvas) {
+            mMainCanvas.restoreToCount(mDirtyAreaSaveCount);
+        }
+        if (null != mOverlayCanvas) {
+            mOverlayCanvas.restoreToCount(mDirtyAreaOverlaySaveCount);
+        }
+        mDirtyArea = null;
+    }
+
+
+    public synchronized boolean isDirtyAreaSet()
+    {
+        return null != mDirtyArea;
     }
 
 
@@ -339,6 +504,11 @@ public class GISDisplay
             return;
         }
 
+        if (null != mPinchRenderer && null != mOverlayBitmap) {
+            drawPinch(canvas, x, y, scale, 0, 0);
+            return;
+        }
+
         GeoPoint pt = getScaledOffset(x, y, scale);
 
         float mainBitmapOffsetX = (float) pt.getX();
@@ -353,6 +523,38 @@ public class GISDisplay
     }
 
 
+    /**
+     * Compose the base raster layers from the cached tiles at fractional zoom and draw the scaled
+     * overlay above them
+     */
+    protected void drawPinch(
+            Canvas canvas,
+            float x,
+            float y,
+            float scale,
+            float dx,
+            float dy)
+    {
+        GeoPoint pt = getScaledOffset(x, y, scale);
+        float mainBitmapOffsetX = (float) pt.getX() - dx;
+        float mainBitmapOffsetY = (float) pt.getY() - dy;
+
+        // map to pinched screen
+        Matrix matrix = new Matrix(mTransformMatrix);
+        matrix.postTranslate(mMainBitmapOffsetX, mMainBitmapOffsetY);
+        matrix.postScale(scale, scale);
+        matrix.postTranslate(-mainBitmapOffsetX, -mainBitmapOffsetY);
+
+        float zoom = (float) (mZoomLevel + MapUtil.lg(scale));
+        mPinchRenderer.draw(canvas, matrix, mWidth + dx * 2, mHeight + dy * 2, zoom);
+
+        Matrix overlayMatrix = new Matrix();
+        overlayMatrix.postScale(scale, scale);
+        overlayMatrix.postTranslate(-mainBitmapOffsetX, -mainBitmapOffsetY);
+        canvas.drawBitmap(mOverlayBitmap, overlayMatrix, mRasterPaint);
+    }
+
+
     public GeoPoint getScaledOffset(
             float x,
             float y,
@@ -376,7 +578,7 @@ public class GISDisplay
             final GeoPoint pt,
             Paint paint)
     {
-        if (null == mMainCanvas || null == pt || null == bitmap) {
+        if (null == mDrawCanvas || null == pt || null == bitmap) {
             return;
         }
 
@@ -396,9 +598,9 @@ public class GISDisplay
         matrix.preConcat(matrix1);
 
         if (paint == null) {
-            mMainCanvas.drawBitmap(bitmap, matrix, mRasterPaint);
+            mDrawCanvas.drawBitmap(bitmap, matrix, mRasterPaint);
         } else {
-            mMainCanvas.drawBitmap(bitmap, matrix, paint);
+            mDrawCanvas.drawBitmap(bitmap, matrix, paint);
         }
     }
 
@@ -409,7 +611,7 @@ public class GISDisplay
             float offsetX,
             float offsetY)
     {
-        if (null == mMainCanvas) {
+        if (null == mDrawCanvas) {
             return;
         }
 
@@ -417,7 +619,7 @@ public class GISDisplay
         matrix.postScale((float) mInvertScale, (float) -mInvertScale);
         matrix.postTranslate((float) point.getX(), (float) point.getY());
         matrix.postTranslate((float) (offsetX / mScale), (float) (offsetY / mScale));
-        mMainCanvas.drawBitmap(bitmap, matrix, new Paint(Paint.ANTI_ALIAS_FLAG));
+        mDrawCanvas.drawBitmap(bitmap, matrix, new Paint(Paint.ANTI_ALIAS_FLAG));
     }
 
 
@@ -428,7 +630,7 @@ public class GISDisplay
             float vOffset,
             Paint paint)
     {
-        if (null == mMainCanvas) {
+        if (null == mDrawCanvas) {
             return;
         }
 
@@ -472,10 +674,10 @@ public class GISDisplay
             position = nextPosition;
         }
 
-        mMainCanvas.drawPath(textPath, paint);
+        mDrawCanvas.drawPath(textPath, paint);
 
         // for debug
-        //mMainCanvas.drawTextOnPath(text, path, hOffset, vOffset, paint);
+        //mDrawCanvas.drawTextOnPath(text, path, hOffset, vOffset, paint);
     }
 
 
@@ -484,10 +686,10 @@ public class GISDisplay
             float y,
             Paint paint)
     {
-        if (null == mMainCanvas) {
+        if (null == mDrawCanvas) {
             return;
         }
-        mMainCanvas.drawPoint(x, y, paint);
+        mDrawCanvas.drawPoint(x, y, paint);
     }
 
 
@@ -498,11 +700,11 @@ public class GISDisplay
             float y1,
             Paint paint)
     {
-        if (null == mMainCanvas) {
+        if (null == mDrawCanvas) {
             return;
         }
         checkStrokeWidth(paint);
-        mMainCanvas.drawLine(x0, y0, x1, y1, paint);
+        mDrawCanvas.drawLine(x0, y0, x1, y1, paint);
     }
 
 
@@ -510,11 +712,11 @@ public class GISDisplay
             float[] pts,
             Paint paint)
     {
-        if (null == mMainCanvas) {
+        if (null == mDrawCanvas) {
             return;
         }
         checkStrokeWidth(paint);
-        mMainCanvas.drawLines(pts, paint);
+        mDrawCanvas.drawLines(pts, paint);
     }
 
 
@@ -523,7 +725,7 @@ public class GISDisplay
             float y,
             Paint paint)
     {
-        if (null == mMainCanvas) {
+        if (null == mDrawCanvas) {
             return;
         }
 
@@ -533,7 +735,7 @@ public class GISDisplay
             paint.setStyle(Paint.Style.STROKE);
             paint.setStrokeWidth(r);
         }
-        mMainCanvas.drawPoint(x, y, paint);
+        mDrawCanvas.drawPoint(x, y, paint);
     }
 
 
@@ -543,11 +745,11 @@ public class GISDisplay
             float radius,
             Paint paint)
     {
-        if (null == mMainCanvas) {
+        if (null == mDrawCanvas) {
             return;
         }
         checkStrokeWidth(paint);
-        mMainCanvas.drawCircle(x, y, radius, paint);
+        mDrawCanvas.drawCircle(x, y, radius, paint);
     }
 
 
@@ -557,11 +759,11 @@ public class GISDisplay
             float size,
             Paint paint)
     {
-        if (null == mMainCanvas) {
+        if (null == mDrawCanvas) {
             return;
         }
         checkStrokeWidth(paint);
-        mMainCanvas.drawRect(x - size, y - size, x + size, y + size, paint);
+        mDrawCanvas.drawRect(x - size, y - size, x + size, y + size, paint);
     }
 
 
@@ -571,10 +773,10 @@ public class GISDisplay
             float size,
             Paint paint)
     {
-        if (null == mMainCanvas) {
+        if (null == mDrawCanvas) {
             return;
         }
-        mMainCanvas.drawRect(x - size, y - size, x + size, y + size, paint);
+        mDrawCanvas.drawRect(x - size, y - size, x + size, y + size, paint);
         drawCross(x, y, size, paint);
     }
 
@@ -585,11 +787,11 @@ public class GISDisplay
             float size,
             Paint paint)
     {
-        if (null == mMainCanvas) {
+        if (null == mDrawCanvas) {
             return;
         }
-        mMainCanvas.drawLine(x - size, y - size, x + size, y + size, paint);
-        mMainCanvas.drawLine(x - size, y + size, x + size, y - size, paint);
+        mDrawCanvas.drawLine(x - size, y - size, x + size, y + size, paint);
+        mDrawCanvas.drawLine(x - size, y + size, x + size, y - size, paint);
     }
 
 
@@ -597,11 +799,11 @@ public class GISDisplay
             Path path,
             Paint paint)
     {
-        if (null == mMainCanvas) {
+        if (null == mDrawCanvas) {
             return;
         }
         checkStrokeWidth(paint);
-        mMainCanvas.drawPath(path, paint);
+        mDrawCanvas.drawPath(path, paint);
     }
 
 
@@ -622,6 +824,17 @@ public class GISDisplay
     }
 
 
+    /**
+     * @return The bounds renderers should draw: the dirty area if set, or current bounds
+     */
+    public synchronized GeoEnvelope getDrawBounds() {
+        if (null != mDirtyArea) {
+            return new GeoEnvelope(mDirtyArea);
+        }
+        return new GeoEnvelope(mCurrentBounds);
+    }
+
+
     public final GeoEnvelope getFullBounds()
     {
         return new GeoEnvelope(mFullBounds);
@@ -752,6 +965,16 @@ public class GISDisplay
     }
 
 
+    /**
+     * @return The size in pixels the tile of current zoom level is drawn with by
+     * {@link #drawTile(Bitmap, GeoPoint, Paint)}
+     */
+    public int getTileDrawSize()
+    {
+        return (int) Math.ceil(mTileSize * (1.0036 + mZoomLevel - Math.floor(mZoomLevel)));
+    }
+
+
     public int getLimitType()
     {
         return mLimitType;
@@ -767,6 +990,11 @@ public class GISDisplay
 
         if (scale == 1) {
             mDoubleBufferCanvas.drawBitmap(mMainBitmap, x, y, null);
+            if (null != mOverlayBitmap) {
+                mDoubleBufferCanvas.drawBitmap(mOverlayBitmap, x, y, null);
+            }
+        } else if (null != mPinchRenderer && null != mOverlayBitmap) {
+            drawPinch(mDoubleBufferCanvas, x, y, scale, mMainBitmapOffsetX, mMainBitmapOffsetY);
         } else {
             GeoPoint pt = getScaledOffset(x, y, scale);
 
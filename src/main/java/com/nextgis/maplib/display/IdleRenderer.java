@@ -0,0 +1,325 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.display;
+
+import android.os.Build;
+import android.util.Log;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.map.LayerGroup;
+import com.nextgis.maplib.map.TMSLayer;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.MapUtil;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * Low priority renderer which uses the map idle time to warm the tile caches for the extents the
+ * user most likely goes next: neighbour extents in the recent pan direction and the next zoom
+ * level in the recent zoom direction. Any real draw should preempt it via cancel().
+ */
+public class IdleRenderer
+{
+    protected static final int MAX_PREFETCH_TILES = 64;
+    protected static final int IDLE_DELAY         = Constants.DEFAULT_EXECUTION_DELAY;
+    protected static final int KEEP_ALIVE_TIME    = 30000;
+
+    protected final LayerGroup                  mLayerGroup;
+    protected final ScheduledThreadPoolExecutor mExecutor;
+    protected       Future                      mTask;
+    protected       GeoPoint                    mLastCenter;
+    protected       float                       mLastZoom;
+    protected       double                      mPanDirectionX, mPanDirectionY;
+    protected       float                       mZoomDirection;
+
+
+    public IdleRenderer(LayerGroup layerGroup)
+    {
+        mLayerGroup = layerGroup;
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                Thread thread = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        android.os.Process.setThreadPriority(
+                                android.os.Process.THREAD_PRIORITY_LOWEST);
+                        r.run();
+                    }
+                });
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // the thread of the map dropped without shutdown() is not kept forever
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            mExecutor.setKeepAliveTime(KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS);
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+
+    /**
+     * Store the direction of the last pan and zoom
+     *
+     * @param zoom
+     *         New zoom level
+     * @param center
+     *         New map center
+     */
+    public synchronized void onExtentChanged(
+            float zoom,
+            GeoPoint center)
+    {
+        if (null != mLastCenter) {
+            double dx = center.getX() - mLastCenter.getX();
+            double dy = center.getY() - mLastCenter.getY();
+            double length = Math.sqrt(dx * dx + dy * dy);
+            if (length > 0) {
+                mPanDirectionX = dx / length;
+                mPanDirectionY = dy / length;
+            }
+            if (zoom != mLastZoom) {
+                mZoomDirection = Math.signum(zoom - mLastZoom);
+            }
+        }
+
+        mLastCenter = new GeoPoint(center);
+        mLastZoom = zoom;
+    }
+
+
+    /**
+     * Schedule the prefetch of the display neighbour extents after idle delay
+     *
+     * @param display
+     *         The display which extent was drawn
+     */
+    public synchronized void schedule(GISDisplay display)
+    {
+        cancel();
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+
+        final GeoEnvelope bounds = display.getBounds();
+        final float zoom = display.getZoomLevel();
+        final float minZoom = display.getMinZoomLevel();
+        final float maxZoom = display.getMaxZoomLevel();
+        final double panX = mPanDirectionX, panY = mPanDirectionY;
+        final float zoomDirection = mZoomDirection;
+
+        mTask = mExecutor.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                prefetch(bounds, zoom, minZoom, maxZoom, panX, panY, zoomDirection);
+            }
+        }, IDLE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Stop the prefetch immediately, i.e. then real draw started
+     */
+    public synchronized void cancel()
+    {
+        if (null != mTask) {
+            mTask.cancel(true);
+            mTask = null;
+        }
+    }
+
+
+    /**
+     * Stop the prefetch and the prefetch thread, the renderer is not used after that
+     */
+    public synchronized void shutdown()
+    {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+
+    protected void prefetch(
+            GeoEnvelope bounds,
+            float zoom,
+            float minZoom,
+            float maxZoom,
+            double panX,
+            double panY,
+            float zoomDirection)
+    {
+        List<TMSLayer> layers = new ArrayList<>();
+        getVisibleTMSLayers(mLayerGroup, layers);
+        if (layers.isEmpty()) {
+            return;
+        }
+
+        // the tiles of current extent are already drawn
+        Set<String> processed = new HashSet<>();
+        for (TMSLayer layer : layers) {
+            for (TileItem tile : MapUtil.getTileItems(bounds, zoom, layer.getTMSType())) {
+                processed.add(layer.getId() + tile.getHash());
+            }
+        }
+
+        // extents ordered by the probability to be shown next
+        List<GeoEnvelope> extents = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        for (int i = -1; i <= 1; i++) {
+            for (int j = -1; j <= 1; j++) {
+                if (i == 0 && j == 0) {
+                    continue;
+                }
+                double length = Math.sqrt(i * i + j * j);
+                double weight = (i * panX + j * panY) / length;
+                if (panX != 0 || panY != 0) {
+                    if (weight < 0) { // skip the extents behind the pan direction
+                        continue;
+                    }
+                }
+
+                GeoEnvelope env = new GeoEnvelope(bounds);
+                env.offset(i * bounds.width() * .5, j * bounds.height() * .5);
+                int pos = 0;
+                while (pos < weights.size() && weights.get(pos) >= weight) {
+                    pos++;
+                }
+                extents.add(pos, env);
+                weights.add(pos, weight);
+            }
+        }
+
+        int tilesCount = 0;
+
+        // the next zoom level in the direction of the last zoom goes first
+        float[] zooms;
+        if (zoomDirection > 0) {
+            zooms = new float[] {zoom + 1};
+        } else if (zoomDirection < 0) {
+            zooms = new float[] {zoom - 1};
+        } else {
+            zooms = new float[] {zoom + 1, zoom - 1};
+        }
+
+        for (float nextZoom : zooms) {
+            if (nextZoom < minZoom || nextZoom > maxZoom) {
+                continue;
+            }
+            GeoEnvelope env = new GeoEnvelope(bounds);
+            double scale = Math.pow(2, zoom - nextZoom);
+            GeoPoint center = env.getCenter();
+            double halfWidth = env.width() * scale * .5, halfHeight = env.height() * scale * .5;
+            env = new GeoEnvelope(
+                    center.getX() - halfWidth, center.getX() + halfWidth,
+                    center.getY() - halfHeight, center.getY() + halfHeight);
+            tilesCount = prefetch(layers, env, nextZoom, processed, tilesCount);
+            if (tilesCount < 0) {
+                return;
+            }
+        }
+
+        for (GeoEnvelope env : extents) {
+            tilesCount = prefetch(layers, env, zoom, processed, tilesCount);
+            if (tilesCount < 0) {
+                return;
+            }
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(TAG, "Idle prefetch finished, tiles: " + tilesCount);
+        }
+    }
+
+
+    /**
+     * @return the count of processed tiles or -1 if interrupted or the limit reached
+     */
+    protected int prefetch(
+            List<TMSLayer> layers,
+            GeoEnvelope env,
+            float zoom,
+            Set<String> processed,
+            int tilesCount)
+    {
+        for (TMSLayer layer : layers) {
+            if (zoom > layer.getMaxZoom() || zoom < layer.getMinZoom()) {
+                continue;
+            }
+
+            List<TileItem> tiles = MapUtil.getTileItems(env, zoom, layer.getTMSType());
+            for (TileItem tile : tiles) {
+                if (Thread.currentThread().isInterrupted() || tilesCount >= MAX_PREFETCH_TILES) {
+                    return -1;
+                }
+                if (!processed.add(layer.getId() + tile.getHash())) {
+                    continue;
+                }
+
+                // the layer puts the tile to memory and disk cache
+                layer.releaseBitmap(layer.getBitmap(tile));
+                tilesCount++;
+            }
+        }
+        return tilesCount;
+    }
+
+
+    protected static void getVisibleTMSLayers(
+            LayerGroup layerGroup,
+            List<TMSLayer> layers)
+    {
+        for (int i = 0; i < layerGroup.getLayerCount(); i++) {
+            ILayer layer = layerGroup.getLayer(i);
+            if (layer instanceof LayerGroup) {
+                getVisibleTMSLayers((LayerGroup) layer, layers);
+            } else if (layer instanceof TMSLayer) {
+                TMSLayer tmsLayer = (TMSLayer) layer;
+                if (tmsLayer.isValid() && tmsLayer.isVisible()) {
+                    layers.add(tmsLayer);
+                }
+            }
+        }
+    }
+}
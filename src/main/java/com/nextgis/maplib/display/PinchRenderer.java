@@ -0,0 +1,367 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.display;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.api.ILayerView;
+import com.nextgis.maplib.api.IRenderer;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.map.LayerGroup;
+import com.nextgis.maplib.map.TMSLayer;
+import com.nextgis.maplib.map.TileBitmapCache;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.MapUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+
+/**
+ * Compose the base raster layers (the raster layers below the first vector layer) from the cached
+ * tiles during pinch zoom. The tiles of the nearest zoom level are drawn at fractional scale. If a
+ * tile is not cached, the cached parent tile is cropped and children tiles are drawn over it,
+ * while the tile itself is loaded in background and replaces them at the next frame.
+ */
+public class PinchRenderer
+{
+    protected static final int    MAX_PARENT_LEVELS = 4;
+    protected static final int    LOAD_THREADS      = 2;
+    protected static final String CACHE_KEY_PREFIX  = "pinch:";
+
+    protected final LayerGroup          mLayerGroup;
+    protected final Set<String>         mRequestedTiles;
+    protected final ThreadPoolExecutor  mLoadThreadPool;
+    protected final Paint               mPaint;
+    protected       int                 mGeneration;
+
+
+    public PinchRenderer(LayerGroup layerGroup)
+    {
+        mLayerGroup = layerGroup;
+        mRequestedTiles = Collections.synchronizedSet(new HashSet<String>());
+        mLoadThreadPool = new ThreadPoolExecutor(
+                LOAD_THREADS, LOAD_THREADS, Constants.KEEP_ALIVE_TIME,
+                Constants.KEEP_ALIVE_TIME_UNIT, new LinkedBlockingQueue<Runnable>());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            mLoadThreadPool.allowCoreThreadTimeOut(true);
+        }
+
+        mPaint = new Paint();
+        mPaint.setAntiAlias(true);
+        mPaint.setFilterBitmap(true);
+    }
+
+
+    /**
+     * Draw the base raster layers
+     *
+     * @param canvas
+     *         The canvas to draw
+     * @param matrix
+     *         The map to canvas transformation
+     * @param width
+     *         The canvas area width
+     * @param height
+     *         The canvas area height
+     * @param zoom
+     *         The fractional zoom level for the pinch scale
+     */
+    public void draw(
+            Canvas canvas,
+            Matrix matrix,
+            float width,
+            float height,
+            float zoom)
+    {
+        Matrix invertMatrix = new Matrix();
+        if (!matrix.invert(invertMatrix)) {
+            return;
+        }
+
+        RectF screenRect = new RectF(0, 0, width, height);
+        invertMatrix.mapRect(screenRect);
+        GeoEnvelope env = new GeoEnvelope(
+                screenRect.left, screenRect.right, screenRect.top, screenRect.bottom);
+        env.fix();
+
+        int level = (int) zoom;
+        if (level < 0) {
+            level = 0;
+        }
+
+        List<TMSLayer> layers = new ArrayList<>();
+        getBaseLayers(mLayerGroup, layers);
+
+        for (TMSLayer layer : layers) {
+            Paint paint = mPaint;
+            if (layer.getRenderer() instanceof TMSRenderer) {
+                paint = ((TMSRenderer) layer.getRenderer()).getRasterPaint();
+            }
+
+            List<TileItem> tiles = MapUtil.getTileItems(env, level, layer.getTMSType());
+            for (TileItem tile : tiles) {
+                drawTile(canvas, matrix, layer, tile, paint);
+            }
+        }
+    }
+
+
+    protected void drawTile(
+            Canvas canvas,
+            Matrix matrix,
+            TMSLayer layer,
+            TileItem tile,
+            Paint paint)
+    {
+        Bitmap bitmap = getCachedBitmap(layer, tile);
+        if (null != bitmap) {
+            drawBitmap(canvas, matrix, bitmap, null, tile.getEnvelope(), paint);
+            layer.releaseBitmap(bitmap);
+            return;
+        }
+
+        requestTile(layer, tile);
+
+        // the nearest cached parent tile as placeholder
+        for (int i = 1; i <= MAX_PARENT_LEVELS && tile.getZoomLevel() - i >= 0; i++) {
+            int parentX = tile.getX() >> i;
+            int parentY = tile.getY() >> i;
+            int parentZoom = tile.getZoomLevel() - i;
+            TileItem parent = new TileItem(
+                    parentX, parentY, parentZoom,
+                    MapUtil.getTileEnvelope(parentX, parentY, parentZoom, layer.getTMSType()));
+            bitmap = getCachedBitmap(layer, parent);
+            if (null != bitmap) {
+                int count = 1 << i;
+                int size = bitmap.getWidth() / count;
+                int dx = tile.getX() - (parentX << i);
+                int dy = tile.getY() - (parentY << i);
+                if (layer.getTMSType() != GeoConstants.TMSTYPE_OSM) {
+                    dy = count - 1 - dy;
+                }
+                Rect src = new Rect(dx * size, dy * size, (dx + 1) * size, (dy + 1) * size);
+                drawBitmap(canvas, matrix, bitmap, src, tile.getEnvelope(), paint);
+                layer.releaseBitmap(bitmap);
+                break;
+            }
+        }
+
+        // the cached children tiles over the parent
+        // the envelopes are calculated from tile envelope as it may be shifted by map wrap
+        int childZoom = tile.getZoomLevel() + 1;
+        GeoEnvelope env = tile.getEnvelope();
+        double childWidth = env.width() * .5;
+        double childHeight = env.height() * .5;
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                int childX = tile.getX() * 2 + i;
+                int childY = tile.getY() * 2 + j;
+                double minX = env.getMinX() + i * childWidth;
+                double minY = layer.getTMSType() == GeoConstants.TMSTYPE_OSM
+                              ? env.getMinY() + (1 - j) * childHeight
+                              : env.getMinY() + j * childHeight;
+                GeoEnvelope childEnv =
+                        new GeoEnvelope(minX, minX + childWidth, minY, minY + childHeight);
+                TileItem child = new TileItem(childX, childY, childZoom, childEnv);
+                bitmap = getCachedBitmap(layer, child);
+                if (null != bitmap) {
+                    drawBitmap(canvas, matrix, bitmap, null, childEnv, paint);
+                    layer.releaseBitmap(bitmap);
+                }
+            }
+        }
+    }
+
+
+    protected void drawBitmap(
+            Canvas canvas,
+            Matrix matrix,
+            Bitmap bitmap,
+            Rect src,
+            GeoEnvelope env,
+            Paint paint)
+    {
+        RectF dst = new RectF(
+                (float) env.getMinX(), (float) env.getMaxY(), (float) env.getMaxX(),
+                (float) env.getMinY());
+        matrix.mapRect(dst);
+        canvas.drawBitmap(bitmap, src, dst, paint);
+    }
+
+
+    /**
+     * @return The acquired bitmap from the layer or pinch cache, release it when it is drawn
+     */
+    protected Bitmap getCachedBitmap(
+            TMSLayer layer,
+            TileItem tile)
+    {
+        Bitmap bitmap = layer.getCachedBitmap(tile);
+        if (null == bitmap) {
+            bitmap = TileBitmapCache.getInstance().get(getKey(layer, tile));
+        }
+        return bitmap;
+    }
+
+
+    protected void requestTile(
+            final TMSLayer layer,
+            final TileItem tile)
+    {
+        final String key = getKey(layer, tile);
+        if (mLoadThreadPool.isShutdown() || !mRequestedTiles.add(key)) {
+            return;
+        }
+
+        final int generation = getGeneration();
+        mLoadThreadPool.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                android.os.Process.setThreadPriority(Constants.DEFAULT_DRAW_THREAD_PRIORITY);
+                Bitmap bitmap = layer.getBitmap(tile);
+                // keep the tiles of layers without memory cache till the pinch end
+                if (null != bitmap && !layer.isBitmapCacheEnabled()) {
+                    putBitmap(generation, key, bitmap);
+                }
+                // the bitmap got from layer cache or acquired by put
+                layer.releaseBitmap(bitmap);
+            }
+        });
+    }
+
+
+    protected synchronized int getGeneration()
+    {
+        return mGeneration;
+    }
+
+
+    /**
+     * Put the loaded bitmap to the pinch cache if the pinch it was requested for is not finished
+     */
+    protected synchronized void putBitmap(
+            int generation,
+            String key,
+            Bitmap bitmap)
+    {
+        if (generation == mGeneration) {
+            TileBitmapCache.getInstance().put(key, bitmap);
+        }
+    }
+
+
+    protected static String getKey(
+            TMSLayer layer,
+            TileItem tile)
+    {
+        return CACHE_KEY_PREFIX + layer.getId() + tile.getHash();
+    }
+
+
+    /**
+     * Stop loading tiles and free loaded ones. Executed then pinch is finished.
+     */
+    public void reset()
+    {
+        mLoadThreadPool.getQueue().clear();
+        mRequestedTiles.clear();
+        // the loads still running are not put to the cache
+        synchronized (this) {
+            mGeneration++;
+            TileBitmapCache.getInstance().removeAll(CACHE_KEY_PREFIX);
+        }
+    }
+
+
+    /**
+     * Stop loading tiles, free loaded ones and stop the load threads, the renderer is not used
+     * after that
+     */
+    public void shutdown()
+    {
+        mLoadThreadPool.shutdownNow();
+        reset();
+    }
+
+
+    /**
+     * Collect the raster layers drawn before the first layer of other type. The same rule is used
+     * to switch GISDisplay to the overlay.
+     *
+     * @return false if the layer of other type found
+     */
+    protected static boolean getBaseLayers(
+            LayerGroup layerGroup,
+            List<TMSLayer> layers)
+    {
+        for (int i = 0; i < layerGroup.getLayerCount(); i++) {
+            ILayer layer = layerGroup.getLayer(i);
+            if (layer instanceof LayerGroup) {
+                if (!getBaseLayers((LayerGroup) layer, layers)) {
+                    return false;
+                }
+            } else if (isOverlayLayer(layer)) {
+                return false;
+            } else if (layer instanceof TMSLayer && isDrawn(layer)) {
+                layers.add((TMSLayer) layer);
+            }
+        }
+        return true;
+    }
+
+
+    protected static boolean isDrawn(ILayer layer)
+    {
+        if (!layer.isValid() || !(layer instanceof ILayerView) || !(layer instanceof IRenderer)) {
+            return false;
+        }
+        return ((ILayerView) layer).isVisible();
+    }
+
+
+    /**
+     * @return true if the layer should be drawn to the overlay bitmap
+     */
+    public static boolean isOverlayLayer(ILayer layer)
+    {
+        return !(layer instanceof TMSLayer) && !(layer instanceof LayerGroup) && isDrawn(layer);
+    }
+}
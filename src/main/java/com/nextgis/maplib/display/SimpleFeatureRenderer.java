@@ -93,7 +93,7 @@ public class SimpleFeatureRenderer
         }
         final double zoom = display.getZoomLevel();
 
-        GeoEnvelope env = display.getBounds();
+        GeoEnvelope env = display.getDrawBounds();
 
         final VectorLayer vectorLayer = (VectorLayer) getLayer();
 
@@ -31,22 +31,27 @@ import android.graphics.Paint;
 import android.os.Build;
 import android.util.Log;
 import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.datasource.TileItem;
 import com.nextgis.maplib.map.RemoteTMSLayer;
 import com.nextgis.maplib.map.TMSLayer;
 import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplib.util.MapUtil;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.nextgis.maplib.util.Constants.*;
 
@@ -62,7 +67,19 @@ public class TMSRenderer
     protected static final String JSON_TMSRENDERER_BRIGHTNESS = "brightness";
     protected static final String JSON_TMSRENDERER_GRAYSCALE  = "greyscale";
     protected static final String JSON_TMSRENDERER_ALPHA      = "alpha";
-    protected ThreadPoolExecutor mDrawThreadPool;
+
+    // tile request priorities, lower value is executed first
+    protected static final int PRIORITY_VISIBLE     = 0;
+    protected static final int PRIORITY_NEIGHBOUR   = 1;
+    protected static final int PRIORITY_ZOOM        = 2;
+    protected static final int MAX_PREFETCH_TILES   = 64;
+    protected static final int DISK_THREADS         = 2;
+    protected static final int POOL_KEEP_ALIVE_TIME = 5000; // ms
+
+    protected ThreadPoolExecutor mDiskThreadPool;
+    protected ThreadPoolExecutor mNetworkThreadPool;
+    protected ThreadPoolExecutor mDecodeThreadPool;
+    protected final AtomicInteger mDrawId;
     protected Paint              mRasterPaint;
     protected boolean            mAntiAlias;
     protected boolean            mFilterBitmap;
@@ -78,6 +95,7 @@ public class TMSRenderer
     {
         super(layer);
         mRasterPaint = new Paint();
+        mDrawId = new AtomicInteger();
 
         mAntiAlias = true;
         mFilterBitmap = true;
@@ -225,96 +243,86 @@ public class TMSRenderer
             remoteTMSLayer.onPrepare();
         }
 
-        final List<TileItem> tiles = MapUtil.getTileItems(display.getBounds(), zoom, tmsLayer.getTMSType());
+        tmsLayer.setDecodeTileSize(display.getTileDrawSize());
+
+        final GeoEnvelope bounds = display.getDrawBounds();
+        final List<TileItem> tiles = MapUtil.getTileItems(bounds, zoom, tmsLayer.getTMSType());
         if (tiles.size() == 0) {
             return;
         }
 
         cancelDraw();
+        preparePools(tmsLayer);
 
-        int threadCount = DRAWING_SEPARATE_THREADS;
-        int coreCount = Runtime.getRuntime().availableProcessors();
-
-        // FIXME more than 1 pool size causing strange behaviour on 6.0 -> tiles do not render from some threads, exception appears:
-        // Fatal signal 11 (SIGSEGV), code 1, fault addr 0xX in tid X (pool-X-thread-X)
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
-            coreCount = 1;
-
-        //synchronized (lock) {
-            mDrawThreadPool = new ThreadPoolExecutor(
-                    coreCount, threadCount, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT,
-                    new LinkedBlockingQueue<Runnable>(), new RejectedExecutionHandler()
-            {
-                @Override
-                public void rejectedExecution(
-                        Runnable r,
-                        ThreadPoolExecutor executor)
-                {
-                    try {
-                        executor.getQueue().put(r);
-                    } catch (InterruptedException e) {
-                        //e.printStackTrace();
-                    }
-                }
-            });
-        //}
-
-        // http://developer.android.com/reference/java/util/concurrent/ExecutorCompletionService.html
+        // the tiles are sorted from the view center, the cached ones are drawn at once and the
+        // others go through the disk, network and decode stages back to this thread
+        TilePipeline pipeline = new TilePipeline(tmsLayer, bounds.getCenter());
         int tilesSize = tiles.size();
-        List<Future> futures = new ArrayList<>(tilesSize);
+        int complete = 0;
 
         for (int i = 0; i < tilesSize; ++i) {
             if (Thread.currentThread().isInterrupted()) {
                 break;
             }
 
-            final TileItem tile = tiles.get(i);
-
-            futures.add(
-                    mDrawThreadPool.submit(
-                            new Runnable()
-                            {
-                                @Override
-                                public void run()
-                                {
-                                    android.os.Process.setThreadPriority(
-                                            Constants.DEFAULT_DRAW_THREAD_PRIORITY);
+            TileItem tile = tiles.get(i);
+            Bitmap bmp = tmsLayer.getCachedBitmap(tile);
+            if (tmsLayer.isBitmapUndersized(bmp)) {
+                // sampled at lower zoom fraction, decode it again for the current scale
+                tmsLayer.releaseBitmap(bmp);
+                bmp = null;
+            }
+            if (null != bmp) {
+                display.drawTile(bmp, tile.getPoint(), mRasterPaint);
+                tmsLayer.releaseBitmap(bmp);
+                complete++;
+            } else {
+                pipeline.read(tile);
+            }
+        }
 
-                                    final Bitmap bmp = tmsLayer.getBitmap(tile);
-                                    if (bmp != null) {
-                                        display.drawTile(bmp, tile.getPoint(), mRasterPaint);
-                                    }
-                                }
-                            }));
+        // the prefetch tasks stay in queue after draw and are dropped by the next draw or cancel
+        if (!display.isDirtyAreaSet() && !Thread.currentThread().isInterrupted()) {
+            prefetchTiles(tmsLayer, tiles, bounds, (int) zoom);
         }
 
-        // wait for draw ending
-        int nStep = futures.size() / Constants.DRAW_NOTIFY_STEP_PERCENT;
+        // compose the loaded tiles, the display is drawn from this thread only
+        int nStep = tilesSize / Constants.DRAW_NOTIFY_STEP_PERCENT;
         if(nStep == 0)
             nStep = 1;
-        for (int i = 0, futuresSize = futures.size(); i < futuresSize; i++) {
-            if (Thread.currentThread().isInterrupted()) {
+        while (complete < tilesSize) {
+            if (Thread.currentThread().isInterrupted() || pipeline.isCancelled()) {
                 break;
             }
 
+            TileResult result;
             try {
-                Future future = futures.get(i);
-                future.get(); // wait for task ending
-
-                float percent = (float) i / futuresSize;
-                if(i % nStep == 0) //0..10..20..30..40..50..60..70..80..90..100
-                    tmsLayer.onDrawFinished(tmsLayer.getId(), percent);
-
-                //Log.d(TAG, "TMS percent: " + percent + " complete: " + i +
-                //       " tiles count: " + tilesSize + " layer: " + mLayer.getName());
-
-            } catch (CancellationException | InterruptedException e) {
-                //e.printStackTrace();
-            } catch (ExecutionException e) {
+                result = pipeline.mResults.poll(TERMINATE_TIME, KEEP_ALIVE_TIME_UNIT);
+            } catch (InterruptedException e) {
                 //e.printStackTrace();
+                break;
             }
+            if (null == result) {
+                continue;
+            }
+
+            if (null != result.mBitmap) {
+                display.drawTile(result.mBitmap, result.mTile.getPoint(), mRasterPaint);
+                tmsLayer.releaseBitmap(result.mBitmap);
+            }
+            if (!result.mComplete) {
+                continue;
+            }
+
+            complete++;
+            float percent = (float) complete / tilesSize;
+            if(complete % nStep == 0) //0..10..20..30..40..50..60..70..80..90..100
+                tmsLayer.onDrawFinished(tmsLayer.getId(), percent);
         }
 
+        // the results of cancelled draw are not drawn
+        pipeline.releaseResults();
+
         tmsLayer.onDrawFinished(tmsLayer.getId(), 1.0f);
 
         if(Constants.DEBUG_MODE) {
@@ -326,23 +334,164 @@ public class TMSRenderer
     }
 
 
+    /**
+     * Create the stage pools on first draw. The network pool size follows the layer max thread
+     * count.
+     */
+    protected synchronized void preparePools(TMSLayer tmsLayer)
+    {
+        if (null == mDiskThreadPool) {
+            mDiskThreadPool = createPool(DISK_THREADS);
+        }
+        if (null == mDecodeThreadPool) {
+            mDecodeThreadPool = createPool(Runtime.getRuntime().availableProcessors());
+        }
+
+        int networkThreads = Math.max(tmsLayer.getMaxThreadCount(), 1);
+        if (null == mNetworkThreadPool) {
+            mNetworkThreadPool = createPool(networkThreads);
+        } else if (mNetworkThreadPool.getCorePoolSize() > networkThreads) {
+            mNetworkThreadPool.setCorePoolSize(networkThreads);
+            mNetworkThreadPool.setMaximumPoolSize(networkThreads);
+        } else if (mNetworkThreadPool.getCorePoolSize() < networkThreads) {
+            mNetworkThreadPool.setMaximumPoolSize(networkThreads);
+            mNetworkThreadPool.setCorePoolSize(networkThreads);
+        }
+    }
+
+
+    protected ThreadPoolExecutor createPool(int threadCount)
+    {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                threadCount, threadCount, POOL_KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT,
+                new PriorityBlockingQueue<Runnable>());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            pool.allowCoreThreadTimeOut(true);
+        }
+        return pool;
+    }
+
+
+    /**
+     * The pool to load the whole bitmap in: the network one for remote layers as the tile may be
+     * downloaded and the decode one for local layers
+     */
+    protected ThreadPoolExecutor getLoadPool(TMSLayer tmsLayer)
+    {
+        return tmsLayer instanceof RemoteTMSLayer ? mNetworkThreadPool : mDecodeThreadPool;
+    }
+
+
+    /**
+     * Queue loading of the tiles user likely needs next: the ring of tiles around the drawn
+     * bounds and the tiles of the next and previous zoom levels. The tiles are only put to the
+     * layer caches, not drawn.
+     */
+    protected void prefetchTiles(
+            final TMSLayer tmsLayer,
+            List<TileItem> visibleTiles,
+            GeoEnvelope bounds,
+            int zoom)
+    {
+        if (!tmsLayer.isBitmapCacheEnabled() && !(tmsLayer instanceof RemoteTMSLayer)) {
+            return;
+        }
+
+        Set<String> visible = new HashSet<>(visibleTiles.size());
+        for (TileItem tile : visibleTiles) {
+            visible.add(tile.getHash());
+        }
+
+        GeoPoint center = bounds.getCenter();
+        int count = 0;
+
+        // the ring of neighbour tiles
+        double tileSize = GeoConstants.MERCATOR_MAX * 2 / (1 << zoom);
+        GeoEnvelope ring = new GeoEnvelope(
+                bounds.getMinX() - tileSize, bounds.getMaxX() + tileSize,
+                bounds.getMinY() - tileSize, bounds.getMaxY() + tileSize);
+        for (TileItem tile : MapUtil.getTileItems(ring, zoom, tmsLayer.getTMSType())) {
+            if (count >= MAX_PREFETCH_TILES) {
+                return;
+            }
+            if (!visible.contains(tile.getHash())) {
+                prefetchTile(tmsLayer, tile, PRIORITY_NEIGHBOUR, center);
+                count++;
+            }
+        }
+
+        // the next zoom level for the central part and the previous one for the whole bounds
+        List<TileItem> zoomTiles = new ArrayList<>();
+        if (zoom + 1 <= tmsLayer.getMaxZoom()) {
+            double w = bounds.width() / 4;
+            double h = bounds.height() / 4;
+            GeoEnvelope inner = new GeoEnvelope(
+                    center.getX() - w, center.getX() + w, center.getY() - h, center.getY() + h);
+            zoomTiles.addAll(MapUtil.getTileItems(inner, zoom + 1, tmsLayer.getTMSType()));
+        }
+        if (zoom - 1 >= tmsLayer.getMinZoom() && zoom > 0) {
+            zoomTiles.addAll(MapUtil.getTileItems(bounds, zoom - 1, tmsLayer.getTMSType()));
+        }
+
+        for (TileItem tile : zoomTiles) {
+            if (count++ >= MAX_PREFETCH_TILES) {
+                return;
+            }
+            prefetchTile(tmsLayer, tile, PRIORITY_ZOOM, center);
+        }
+    }
+
+
+    protected void prefetchTile(
+            final TMSLayer tmsLayer,
+            final TileItem tile,
+            int priority,
+            GeoPoint center)
+    {
+        final int drawId = mDrawId.get();
+        getLoadPool(tmsLayer).execute(new TileTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (drawId != mDrawId.get()) {
+                    return;
+                }
+                android.os.Process.setThreadPriority(Constants.DEFAULT_DRAW_THREAD_PRIORITY);
+                tmsLayer.releaseBitmap(tmsLayer.getBitmap(tile));
+            }
+        }, priority, MapUtil.getTileDistance(tile, center)));
+    }
+
+
+    /**
+     * Drop the queued tile requests. The running ones finish the current stage and are dropped
+     * too, so the downloads in progress still get to the tile store.
+     */
     @Override
     public void cancelDraw()
     {
-        if (mDrawThreadPool != null) {
-            //synchronized (lock) {
-                mDrawThreadPool.shutdownNow();
-                try {
-                    mDrawThreadPool.awaitTermination(TERMINATE_TIME, KEEP_ALIVE_TIME_UNIT);
-                    //mDrawThreadPool.purge();
-                } catch (InterruptedException e) {
-                    //e.printStackTrace();
-                }
-            //}
+        mDrawId.incrementAndGet();
+        clearPool(mDiskThreadPool);
+        clearPool(mNetworkThreadPool);
+        clearPool(mDecodeThreadPool);
+    }
+
+
+    protected void clearPool(ThreadPoolExecutor pool)
+    {
+        if (pool != null) {
+            pool.getQueue().clear();
         }
     }
 
 
+    public Paint getRasterPaint()
+    {
+        return mRasterPaint;
+    }
+
+
     public boolean isForceToGrayScale()
     {
         return mForceToGrayScale;
@@ -381,4 +530,229 @@ public class TMSRenderer
             mRasterPaint.setAntiAlias(mAntiAlias);
         }
     }
+
+
+    /**
+     * The tile request ordered by priority and then by distance from the view center
+     */
+    protected static class TileTask
+            extends FutureTask<Void>
+            implements Comparable<TileTask>
+    {
+        protected final int    mPriority;
+        protected final double mDistance;
+
+
+        public TileTask(
+                Runnable runnable,
+                int priority,
+                double distance)
+        {
+            super(runnable, null);
+            mPriority = priority;
+            mDistance = distance;
+        }
+
+
+        @Override
+        public int compareTo(TileTask another)
+        {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return Double.compare(mDistance, another.mDistance);
+        }
+    }
+
+
+    /**
+     * The tile loaded by the pipeline stage to draw. The bitmap is null if the tile is not loaded.
+     */
+    protected static class TileResult
+    {
+        protected final TileItem mTile;
+        protected final Bitmap   mBitmap;
+        protected final boolean  mComplete;
+
+
+        public TileResult(
+                TileItem tile,
+                Bitmap bitmap,
+                boolean complete)
+        {
+            mTile = tile;
+            mBitmap = bitmap;
+            mComplete = complete;
+        }
+    }
+
+
+    /**
+     * The tile loading stages of one draw. The tile data is read from the tile store in disk pool,
+     * the tiles absent in store are downloaded in network pool and the data is decoded in decode
+     * pool, so the slow downloads do not hold back the stored tiles. The results are put to the
+     * queue drained by the drawing thread.
+     */
+    protected class TilePipeline
+    {
+        protected final TMSLayer                  mTMSLayer;
+        protected final GeoPoint                  mCenter;
+        protected final int                       mId;
+        protected final BlockingQueue<TileResult> mResults;
+
+
+        public TilePipeline(
+                TMSLayer tmsLayer,
+                GeoPoint center)
+        {
+            mTMSLayer = tmsLayer;
+            mCenter = center;
+            mId = mDrawId.get();
+            mResults = new LinkedBlockingQueue<>();
+        }
+
+
+        public boolean isCancelled()
+        {
+            return mId != mDrawId.get();
+        }
+
+
+        protected void execute(
+                ThreadPoolExecutor pool,
+                final TileItem tile,
+                final Runnable stage)
+        {
+            pool.execute(new TileTask(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (isCancelled()) {
+                        return;
+                    }
+                    android.os.Process.setThreadPriority(Constants.DEFAULT_DRAW_THREAD_PRIORITY);
+                    // the failed tile is complete, otherwise the compositor waits for it forever
+                    try {
+                        stage.run();
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        e.printStackTrace();
+                        complete(tile, null);
+                    } catch (Error e) {
+                        complete(tile, null);
+                        throw e;
+                    }
+                }
+            }, PRIORITY_VISIBLE, MapUtil.getTileDistance(tile, mCenter)));
+        }
+
+
+        public void read(final TileItem tile)
+        {
+            execute(mDiskThreadPool, tile, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    readTile(tile);
+                }
+            });
+        }
+
+
+        protected void readTile(final TileItem tile)
+        {
+            // the overzoom tile is cut from the tile of other zoom level
+            if (mTMSLayer.isOverzoom(tile)) {
+                execute(getLoadPool(mTMSLayer), tile, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        complete(tile, mTMSLayer.getBitmap(tile));
+                    }
+                });
+                return;
+            }
+
+            byte[] data = mTMSLayer.readTile(tile);
+            if (null != data) {
+                decode(tile, data, null);
+                return;
+            }
+
+            if (!(mTMSLayer instanceof RemoteTMSLayer)) {
+                complete(tile, null);
+                return;
+            }
+
+            // the opaque placeholder is drawn at once and then covered by the tile, the
+            // placeholder with transparency is drawn only if the tile is not loaded, as it would
+            // show through the tile
+            Bitmap placeholder = mTMSLayer.getPlaceholderBitmap(tile);
+            if (null != placeholder && !placeholder.hasAlpha()) {
+                mResults.add(new TileResult(tile, placeholder, false));
+                placeholder = null;
+            }
+            fetch(tile, placeholder);
+        }
+
+
+        protected void fetch(
+                final TileItem tile,
+                final Bitmap placeholder)
+        {
+            execute(mNetworkThreadPool, tile, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    byte[] data = ((RemoteTMSLayer) mTMSLayer).fetchTileData(tile);
+                    if (null != data) {
+                        decode(tile, data, placeholder);
+                    } else {
+                        complete(tile, placeholder);
+                    }
+                }
+            });
+        }
+
+
+        protected void decode(
+                final TileItem tile,
+                final byte[] data,
+                final Bitmap placeholder)
+        {
+            execute(mDecodeThreadPool, tile, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Bitmap bmp = mTMSLayer.decodeBitmap(tile, data);
+                    complete(tile, null != bmp ? bmp : placeholder);
+                }
+            });
+        }
+
+
+        protected void complete(
+                TileItem tile,
+                Bitmap bitmap)
+        {
+            if (isCancelled()) {
+                mTMSLayer.releaseBitmap(bitmap);
+                return;
+            }
+            mResults.add(new TileResult(tile, bitmap, true));
+        }
+
+
+        public void releaseResults()
+        {
+            TileResult result;
+            while (null != (result = mResults.poll())) {
+                mTMSLayer.releaseBitmap(result.mBitmap);
+            }
+        }
+    }
 }
@@ -33,6 +33,7 @@ import com.nextgis.maplib.api.IRenderer;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.display.GISDisplay;
+import com.nextgis.maplib.display.PinchRenderer;
 import com.nextgis.maplib.util.Constants;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -280,6 +281,10 @@ public class LayerGroup
                                 mDisplay.getZoomLevel() >= layerView.getMinZoom()) {
                             // Log.d(Constants.TAG, "Layer Draw Index: " + mLayerDrawIndex);
 
+                            if (PinchRenderer.isOverlayLayer(layer)) {
+                                mDisplay.startOverlay();
+                            }
+
                             IRenderer renderer = (IRenderer) layer;
                             renderer.runDraw(mDisplay);
 
@@ -489,6 +494,17 @@ public class LayerGroup
     }
 
 
+    protected void onLayerChanged(
+            ILayer layer,
+            GeoEnvelope dirtyArea)
+    {
+        if (mParent != null && mParent instanceof LayerGroup) {
+            LayerGroup group = (LayerGroup) mParent;
+            group.onLayerChanged(layer, dirtyArea);
+        }
+    }
+
+
     protected void onLayerDeleted(int id)
     {
         for (ILayer layer : mLayers) {
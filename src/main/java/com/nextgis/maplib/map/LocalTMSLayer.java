@@ -25,15 +25,19 @@ package com.nextgis.maplib.map;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import com.nextgis.maplib.R;
 import com.nextgis.maplib.api.IProgressor;
+import com.nextgis.maplib.api.ITileStore;
 import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.MBTilesTileStore;
 import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.datasource.ZipTileStore;
 import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
 import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplib.util.NGException;
 
@@ -41,9 +45,24 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static com.nextgis.maplib.util.Constants.DRAWING_SEPARATE_THREADS;
@@ -56,14 +75,21 @@ import static com.nextgis.maplib.util.Constants.JSON_LEVEL_KEY;
 import static com.nextgis.maplib.util.Constants.JSON_MAXLEVEL_KEY;
 import static com.nextgis.maplib.util.Constants.JSON_MINLEVEL_KEY;
 import static com.nextgis.maplib.util.Constants.LAYERTYPE_LOCAL_TMS;
+import static com.nextgis.maplib.util.Constants.NOT_FOUND;
 
 
 /**
- * The tiles in device folder as image
+ * The tiles in device folder as image or in single MBTiles file
  */
 public class LocalTMSLayer
         extends TMSLayer
 {
+    protected static final String TILE_INDEX_FILE    = "tiles.index";
+    protected static final int    TILE_INDEX_VERSION = 2;
+    protected static final int    MAX_INDEX_WORDS    = 1 << 19; // 4 Mb per layer
+    protected static final String TEMP_EXT           = ".tmp";
+    protected static final long   COPY_CHUNK_SIZE    = 1024 * 1024;
+
     protected Map<Integer, TileCacheLevelDescItem> mLimits;
 
 
@@ -80,6 +106,10 @@ public class LocalTMSLayer
     @Override
     public Bitmap getBitmap(TileItem tile)
     {
+        if (isOverzoom(tile)) {
+            return getOverzoomBitmap(tile);
+        }
+
         Bitmap ret = getBitmapFromCache(tile.getHash());
         if (null != ret) {
             if(Constants.DEBUG_MODE) {
@@ -88,28 +118,55 @@ public class LocalTMSLayer
             return ret;
         }
 
-        TileCacheLevelDescItem item = mLimits.get(tile.getZoomLevel());
-        boolean isInside = item != null && item.isInside(tile.getX(), tile.getY());
-        if (isInside) {
-            File tilePath = new File(mPath, tile.toString() + TILE_EXT);
-            boolean isExist = tilePath.exists();
-            if (isExist) {
-                ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
-                putBitmapToCache(tile.getHash(), ret);
+        byte[] data = readTile(tile);
+        if (null != data) {
+            ret = decodeBitmap(tile, data);
+            if (null != ret) {
                 if(Constants.DEBUG_MODE) {
-                    Log.d(Constants.TAG, "Raster layer " + getName() + " getBitmap for: " + tile.toString() + ", path " + tilePath.getAbsolutePath() + " is valid - " + (ret != null));
+                    Log.d(Constants.TAG, "Raster layer " + getName() + " getBitmap for: " + tile.toString() + " is valid");
                 }
                 return ret;
             }
-        }
 
-        if(Constants.DEBUG_MODE && isInside) {
-            Log.d(Constants.TAG, "Raster layer " + getName() + " getBitmap failed for: " + tile.toString());
+            if(Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "Raster layer " + getName() + " getBitmap failed for: " + tile.toString());
+            }
         }
         return null;
     }
 
 
+    @Override
+    public byte[] readTile(TileItem tile)
+    {
+        TileCacheLevelDescItem item = mLimits.get(tile.getZoomLevel());
+        if (item == null || !item.hasTile(tile.getX(), tile.getY())) {
+            return null;
+        }
+        return super.readTile(tile);
+    }
+
+
+    /**
+     * @return The max native zoom if set or the maximum zoom level of the tiles
+     */
+    @Override
+    public int getMaxNativeZoom()
+    {
+        if (mMaxNativeZoom != Constants.NOT_FOUND || null == mLimits || mLimits.isEmpty()) {
+            return mMaxNativeZoom;
+        }
+
+        int maxZoom = 0;
+        for (Integer zoom : mLimits.keySet()) {
+            if (zoom > maxZoom) {
+                maxZoom = zoom;
+            }
+        }
+        return maxZoom;
+    }
+
+
     @Override
     public JSONObject toJSON()
             throws JSONException
@@ -172,6 +229,8 @@ public class LocalTMSLayer
                 }
             }
         }
+
+        loadTileIndex();
     }
 
 
@@ -182,88 +241,207 @@ public class LocalTMSLayer
     }
 
 
+    /**
+     * Import tiles from ZIP archive. The archive is copied to layer folder and the tiles are read
+     * from it without extraction. The layer is switched to the archive only if it is copied and
+     * valid, the canceled or failed copy is removed.
+     * @param uri The ZIP archive uri
+     * @param progressor The progress dialog or null
+     */
     @Override
     public void fillFromZip(Uri uri, IProgressor progressor) throws IOException, NumberFormatException, SecurityException, NGException {
-        fillFromZipInt(uri, progressor);
+        FileUtil.createDir(mPath);
+        File zipFile = new File(mPath, TILE_STORE_ZIP_FILE);
+        File tempFile = new File(mPath, TILE_STORE_ZIP_FILE + TEMP_EXT);
+        try {
+            if (!copyZip(uri, tempFile, progressor)) {
+                return;
+            }
+
+            Map<Integer, int[]> limits;
+            ITileStore tempStore = new ZipTileStore(tempFile);
+            try {
+                limits = getStoreLimits(tempStore);
+            } finally {
+                tempStore.close();
+            }
+            if (limits.isEmpty())
+                throw new NGException("Invalid content or zip structure");
+
+            closeTileStore();
+            if (!tempFile.renameTo(zipFile)) {
+                throw new IOException("Failed to rename " + tempFile + " to " + zipFile);
+            }
+            setTileStoreType(TILE_STORE_ZIP);
+
+            setLimits(limits);
+            buildTileIndex(getTileStore());
+            save();
+        } finally {
+            if (tempFile.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+        }
+    }
 
-        int nMaxLevel = 0;
-        int nMinLevel = 512;
-        final File[] zoomLevels = mPath.listFiles();
 
-        if (zoomLevels == null)
-            throw new NGException("Invalid content or zip structure");
+    /**
+     * Copy the ZIP archive. The archive opened as file descriptor of regular file is copied by
+     * file channel, other sources are copied as stream.
+     * @return false if the copy is canceled
+     */
+    protected boolean copyZip(Uri uri, File file, IProgressor progressor) throws IOException, NGException {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = mContext.getContentResolver().openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            // the provider may return the stream only
+        }
+
+        InputStream inputStream;
+        long streamSize = NOT_FOUND;
+        if (null != descriptor) {
+            inputStream = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+            streamSize = descriptor.getStatSize();
+        } else {
+            inputStream = mContext.getContentResolver().openInputStream(uri);
+        }
+        if (inputStream == null) {
+            throw new NGException(mContext.getString(R.string.error_download_data));
+        }
+        if (streamSize == NOT_FOUND) {
+            streamSize = inputStream.available();
+        }
 
         if(null != progressor){
-            progressor.setMax(zoomLevels.length);
+            progressor.setMax((int) Math.min(streamSize, Integer.MAX_VALUE));
             progressor.setValue(0);
             progressor.setMessage(mContext.getString(R.string.message_opening));
         }
 
-        int counter = 0;
+        FileOutputStream output = new FileOutputStream(file);
+        long increment = 0;
+        try {
+            if (null != descriptor && streamSize >= 0) {
+                FileChannel source = ((FileInputStream) inputStream).getChannel();
+                FileChannel target = output.getChannel();
+                long count;
+                while (increment < streamSize && (count = target.transferFrom(
+                        source, increment, Math.min(COPY_CHUNK_SIZE, streamSize - increment))) > 0) {
+                    increment += count;
+                    if (!onZipCopied(progressor, increment, streamSize))
+                        return false;
+                }
+            } else {
+                byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    output.write(buffer, 0, count);
+                    increment += count;
+                    if (!onZipCopied(progressor, increment, streamSize))
+                        return false;
+                }
+            }
+        } finally {
+            output.close();
+            inputStream.close();
+        }
+        return true;
+    }
 
-        for (File zoomLevel : zoomLevels) {
-            if(null != progressor) {
-                if(progressor.isCanceled())
-                    return;
-                progressor.setValue(counter++);
-                progressor.setMessage(getContext().getString(R.string.processed) + " " + counter + " " + getContext().getString(R.string.of) + " " + zoomLevels.length);
 
-            }
+    /**
+     * @return false if the copy is canceled
+     */
+    protected boolean onZipCopied(IProgressor progressor, long increment, long streamSize) {
+        if(null != progressor){
+            if(progressor.isCanceled())
+                return false;
+            progressor.setValue((int) Math.min(increment, Integer.MAX_VALUE));
+            progressor.setMessage(getContext().getString(R.string.processed) + " " + increment + " " + getContext().getString(R.string.of) + " " + streamSize);
+        }
+        return true;
+    }
 
-            if(zoomLevel.getName().equals(Constants.CONFIG)){
-                continue;
-            }
 
-            int nMaxX = 0;
-            int nMinX = 10000000;
-            int nMaxY = 0;
-            int nMinY = 10000000;
+    /**
+     * Import tiles from MBTiles file. The file is copied to layer folder and used as is.
+     * @param uri The MBTiles file uri
+     * @param progressor The progress dialog or null
+     */
+    public void fillFromMBTiles(Uri uri, IProgressor progressor) throws IOException, NGException {
+        InputStream inputStream = mContext.getContentResolver().openInputStream(uri);
+        if (inputStream == null) {
+            throw new NGException(mContext.getString(R.string.error_download_data));
+        }
 
-            int nLevelZ = Integer.parseInt(zoomLevel.getName());
-            if (nLevelZ > nMaxLevel) {
-                nMaxLevel = nLevelZ;
-            }
-            if (nLevelZ < nMinLevel) {
-                nMinLevel = nLevelZ;
-            }
-            final File[] levelsX = zoomLevel.listFiles();
+        if(null != progressor){
+            progressor.setIndeterminate(true);
+            progressor.setMessage(mContext.getString(R.string.message_opening));
+        }
 
-            boolean bFirstTurn = true;
-            for (File inLevelX : levelsX) {
+        setTileStoreType(TILE_STORE_MBTILES);
+        closeTileStore();
 
-                int nX = Integer.parseInt(inLevelX.getName());
-                if (nX > nMaxX) {
-                    nMaxX = nX;
-                }
-                if (nX < nMinX) {
-                    nMinX = nX;
-                }
+        FileUtil.createDir(mPath);
+        OutputStream output = new FileOutputStream(new File(mPath, TILE_STORE_FILE));
+        byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+        FileUtil.copyStream(inputStream, output, buffer, Constants.IO_BUFFER_SIZE);
+        output.close();
+        inputStream.close();
 
-                final File[] levelsY = inLevelX.listFiles();
+        MBTilesTileStore store = (MBTilesTileStore) getTileStore();
+        Map<Integer, int[]> limits = store.getLevelLimits();
+        if (limits.isEmpty())
+            throw new NGException("Invalid content or MBTiles structure");
 
-                if (bFirstTurn) {
-                    for (File inLevelY : levelsY) {
-                        String sLevelY = inLevelY.getName();
+        setLimits(limits);
+        buildTileIndex(store);
+        save();
+    }
 
-                        //Log.d(TAG, sLevelY);
-                        int nY = Integer.parseInt(
-                                sLevelY.replace(TILE_EXT, ""));
-                        if (nY > nMaxY) {
-                            nMaxY = nY;
-                        }
-                        if (nY < nMinY) {
-                            nMinY = nY;
-                        }
-                    }
-                    bFirstTurn = false;
+
+    protected static Map<Integer, int[]> getStoreLimits(ITileStore store)
+    {
+        final Map<Integer, int[]> limits = new HashMap<>();
+        store.visitTiles(new ITileStore.TileVisitor()
+        {
+            @Override
+            public void onTile(
+                    int zoom,
+                    int x,
+                    int y)
+            {
+                int[] limit = limits.get(zoom);
+                if (null == limit) {
+                    limits.put(zoom, new int[] {x, x, y, y});
+                    return;
                 }
+
+                limit[0] = Math.min(limit[0], x);
+                limit[1] = Math.max(limit[1], x);
+                limit[2] = Math.min(limit[2], y);
+                limit[3] = Math.max(limit[3], y);
             }
-            addLimits(nLevelZ, nMaxX, nMaxY, nMinX, nMinY);
-        }
+        });
+        return limits;
+    }
 
-        save();
+
+    /**
+     * @param limits The map of zoom level to array of min x, max x, min y, max y
+     */
+    protected void setLimits(Map<Integer, int[]> limits)
+    {
+        mLimits = new HashMap<>();
+        for (Map.Entry<Integer, int[]> entry : limits.entrySet()) {
+            int[] limit = entry.getValue();
+            addLimits(entry.getKey(), limit[1], limit[3], limit[0], limit[2]);
+        }
     }
 
+
     public void addLimits(
             int nLevelZ,
             int nMaxX,
@@ -278,10 +456,169 @@ public class LocalTMSLayer
     }
 
 
+    /**
+     * Build the index of stored tiles to find the absent tiles in sparse caches without store
+     * access. The index is limited by MAX_INDEX_WORDS, the largest levels are not indexed and
+     * checked by the store. The index is saved to the layer folder.
+     * @param store The store with the layer tiles
+     */
+    protected void buildTileIndex(ITileStore store)
+    {
+        for (TileCacheLevelDescItem item : mLimits.values()) {
+            item.createIndex();
+        }
+
+        store.visitTiles(new ITileStore.TileVisitor()
+        {
+            @Override
+            public void onTile(
+                    int zoom,
+                    int x,
+                    int y)
+            {
+                TileCacheLevelDescItem item = mLimits.get(zoom);
+                if (null != item) {
+                    item.setTile(x, y);
+                }
+            }
+        });
+
+        List<TileCacheLevelDescItem> items = new ArrayList<>(mLimits.values());
+        long size = 0;
+        for (TileCacheLevelDescItem item : items) {
+            item.finishIndex();
+            size += item.getIndexSize();
+        }
+
+        Collections.sort(items, new Comparator<TileCacheLevelDescItem>()
+        {
+            @Override
+            public int compare(
+                    TileCacheLevelDescItem lhs,
+                    TileCacheLevelDescItem rhs)
+            {
+                return rhs.getIndexSize() < lhs.getIndexSize()
+                       ? -1
+                       : (rhs.getIndexSize() == lhs.getIndexSize() ? 0 : 1);
+            }
+        });
+        for (TileCacheLevelDescItem item : items) {
+            if (size <= MAX_INDEX_WORDS) {
+                break;
+            }
+            size -= item.getIndexSize();
+            item.setTiles(null, false);
+        }
+
+        saveTileIndex();
+    }
+
+
+    protected void saveTileIndex()
+    {
+        File file = new File(mPath, TILE_INDEX_FILE);
+        try {
+            FileUtil.createDir(mPath);
+            DataOutputStream output =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                output.writeInt(TILE_INDEX_VERSION);
+                output.writeInt(mLimits.size());
+                for (Map.Entry<Integer, TileCacheLevelDescItem> entry : mLimits.entrySet()) {
+                    TileCacheLevelDescItem item = entry.getValue();
+                    output.writeInt(entry.getKey());
+                    output.writeInt(item.getMinX());
+                    output.writeInt(item.getMaxX());
+                    output.writeInt(item.getMinY());
+                    output.writeInt(item.getMaxY());
+
+                    long[] tiles = item.getTiles();
+                    output.writeBoolean(item.isSparse());
+                    output.writeInt(null == tiles ? NOT_FOUND : tiles.length);
+                    if (null != tiles) {
+                        for (long word : tiles) {
+                            output.writeLong(word);
+                        }
+                    }
+                }
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+        }
+    }
+
+
+    /**
+     * Load the index of stored tiles. The levels without index or with changed limits are checked
+     * by limits only.
+     */
+    protected void loadTileIndex()
+    {
+        File file = new File(mPath, TILE_INDEX_FILE);
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            DataInputStream input =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                // the first version has the bit per tile for all levels
+                int version = input.readInt();
+                if (version != TILE_INDEX_VERSION && version != 1) {
+                    return;
+                }
+
+                int count = input.readInt();
+                for (int i = 0; i < count; i++) {
+                    int zoom = input.readInt();
+                    int minX = input.readInt();
+                    int maxX = input.readInt();
+                    int minY = input.readInt();
+                    int maxY = input.readInt();
+                    boolean sparse = version != 1 && input.readBoolean();
+                    int length = input.readInt();
+                    if (length == NOT_FOUND) {
+                        continue;
+                    }
+                    if (length < 0 || length > MAX_INDEX_WORDS) {
+                        return;
+                    }
+
+                    long[] tiles = new long[length];
+                    for (int j = 0; j < length; j++) {
+                        tiles[j] = input.readLong();
+                    }
+
+                    TileCacheLevelDescItem item = mLimits.get(zoom);
+                    if (null != item && item.getMinX() == minX && item.getMaxX() == maxX
+                            && item.getMinY() == minY && item.getMaxY() == maxY) {
+                        item.setTiles(tiles, sparse);
+                    }
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
     protected class TileCacheLevelDescItem
     {
         int minY, maxY;
         int minX, maxX;
+        // the tiles inside limits, null if tiles are not indexed: the bit per tile or the sorted
+        // numbers of stored tiles for sparse level, which is smaller
+        long[]  tiles;
+        boolean sparse;
+        // the numbers of stored tiles collected while the index is built
+        long[]  numbers;
+        int     numberCount;
 
 
         public TileCacheLevelDescItem(
@@ -327,6 +664,154 @@ public class LocalTMSLayer
         {
             return !(nX < minX || nX > maxX) && !(nY < minY || nY > maxY);
         }
+
+
+        public long[] getTiles()
+        {
+            return tiles;
+        }
+
+
+        public boolean isSparse()
+        {
+            return sparse;
+        }
+
+
+        /**
+         * @return The index size in longs
+         */
+        public int getIndexSize()
+        {
+            return null == tiles ? 0 : tiles.length;
+        }
+
+
+        /**
+         * @param tiles The bit per tile or the sorted tile numbers or null to check by limits only
+         * @param sparse true for tile numbers
+         */
+        public void setTiles(long[] tiles, boolean sparse)
+        {
+            this.tiles = null;
+            this.sparse = sparse;
+            if (null == tiles || tiles.length > MAX_INDEX_WORDS) {
+                return;
+            }
+            if (sparse || tiles.length == getBitsetSize()) {
+                this.tiles = tiles;
+            }
+        }
+
+
+        protected long getBitsetSize()
+        {
+            return (getWidth() * getHeight() + 63) / 64;
+        }
+
+
+        protected long getWidth()
+        {
+            return (long) maxX - minX + 1;
+        }
+
+
+        protected long getHeight()
+        {
+            return (long) maxY - minY + 1;
+        }
+
+
+        /**
+         * Start collecting the stored tiles
+         */
+        public void createIndex()
+        {
+            tiles = null;
+            numbers = new long[64];
+            numberCount = 0;
+        }
+
+
+        public void setTile(
+                int nX,
+                int nY)
+        {
+            if (null == numbers || !isInside(nX, nY)) {
+                return;
+            }
+
+            // too many tiles to index
+            if (numberCount == MAX_INDEX_WORDS) {
+                numbers = null;
+                return;
+            }
+            if (numberCount == numbers.length) {
+                long[] grown = new long[Math.min(numbers.length * 2, MAX_INDEX_WORDS)];
+                System.arraycopy(numbers, 0, grown, 0, numberCount);
+                numbers = grown;
+            }
+            numbers[numberCount++] = (nY - minY) * getWidth() + nX - minX;
+        }
+
+
+        /**
+         * Create the index of collected tiles: the bitset for dense level or the sorted tile
+         * numbers for sparse one
+         */
+        public void finishIndex()
+        {
+            long[] collected = numbers;
+            numbers = null;
+            if (null == collected) {
+                setTiles(null, false);
+                return;
+            }
+
+            Arrays.sort(collected, 0, numberCount);
+            int count = 0;
+            for (int i = 0; i < numberCount; i++) {
+                if (count == 0 || collected[i] != collected[count - 1]) {
+                    collected[count++] = collected[i];
+                }
+            }
+
+            long bitsetSize = getBitsetSize();
+            if (bitsetSize <= count) {
+                long[] bitset = new long[(int) bitsetSize];
+                for (int i = 0; i < count; i++) {
+                    bitset[(int) (collected[i] >>> 6)] |= 1L << collected[i];
+                }
+                setTiles(bitset, false);
+            } else {
+                long[] sorted = new long[count];
+                System.arraycopy(collected, 0, sorted, 0, count);
+                setTiles(sorted, true);
+            }
+        }
+
+
+        /**
+         * @return true if the tile may be stored: it is inside limits and is indexed or the index
+         * is absent
+         */
+        public boolean hasTile(
+                int nX,
+                int nY)
+        {
+            if (!isInside(nX, nY)) {
+                return false;
+            }
+            long[] index = tiles;
+            if (null == index) {
+                return true;
+            }
+            long number = (nY - minY) * getWidth() + nX - minX;
+            if (sparse) {
+                return Arrays.binarySearch(index, number) >= 0;
+            }
+            return (index[(int) (number >>> 6)] & (1L << number)) != 0;
+        }
     }
 
     @Override
@@ -51,9 +51,10 @@ public class MapContentProviderHelper
         extends MapBase
 {
     protected DatabaseHelper mDatabaseHelper;
+    protected final Object   mWriteLock = new Object();
 
     protected static final String DBNAME           = "layers";
-    protected static final int    DATABASE_VERSION = 3;
+    protected static final int    DATABASE_VERSION = 4;
 
 
     public MapContentProviderHelper(
@@ -143,6 +144,15 @@ public class MapContentProviderHelper
     }
 
 
+    /**
+     * @return The lock to serialize the bulk writes of layers synchronized in parallel
+     */
+    public Object getWriteLock()
+    {
+        return mWriteLock;
+    }
+
+
     /**
      * @param pathName
      *         The exact name of the folder which contains a layer. Must be without slashes.
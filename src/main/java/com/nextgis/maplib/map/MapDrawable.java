@@ -31,6 +31,8 @@ import com.nextgis.maplib.api.IMapView;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.display.GISDisplay;
+import com.nextgis.maplib.display.IdleRenderer;
+import com.nextgis.maplib.display.PinchRenderer;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplib.util.MapUtil;
@@ -49,7 +51,9 @@ public class MapDrawable
 {
     protected int  mLimitsType;
 
-    protected RunnableFuture<Void> mDrawThreadTask;
+    protected          RunnableFuture<Void> mDrawThreadTask;
+    protected volatile IdleRenderer         mIdleRenderer;
+    protected          PinchRenderer        mPinchRenderer;
 
 
     public MapDrawable(
@@ -281,10 +285,61 @@ public class MapDrawable
 
         if (null != display && mDisplay != display) {
             mDisplay = display;
+            if (null != mPinchRenderer) {
+                mDisplay.setOverlayEnabled(true);
+                mDisplay.setPinchRenderer(mPinchRenderer);
+            }
+        }
+
+        // the pinch is finished, new tiles will be drawn
+        if (null != mPinchRenderer) {
+            mPinchRenderer.reset();
         }
 
         mDisplay.clearLayer();
 
+        startDrawTask();
+    }
+
+
+    /**
+     * Redraw only the provided area of the map by all layers. If full map drawing is in progress
+     * the full redraw is started instead, as the partial result of interrupted drawing cannot be
+     * reused. If other area drawing is in progress, the areas are merged.
+     *
+     * @param area
+     *         The changed area in map coordinates
+     */
+    public void runDrawArea(final GeoEnvelope area)
+    {
+        if (null == mDisplay) {
+            return;
+        }
+
+        GeoEnvelope drawArea = new GeoEnvelope(area);
+        FutureTask task = (FutureTask) mDrawThreadTask;
+        if (null != task && !task.isDone()) {
+            if (!mDisplay.isDirtyAreaSet()) {
+                runDraw(mDisplay);
+                return;
+            }
+            drawArea.merge(mDisplay.getDrawBounds());
+        }
+
+        cancelDraw();
+
+        if (!mDisplay.setDirtyArea(drawArea)) { // the area is out of screen
+            return;
+        }
+
+        onLayerDrawStarted();
+
+        startDrawTask();
+    }
+
+
+    protected void startDrawTask()
+    {
         mDrawThreadTask = new FutureTask<Void>(
                 new Runnable()
                 {
@@ -302,6 +357,11 @@ public class MapDrawable
             protected void done()
             {
                 super.done();
+                mDisplay.resetDirtyArea();
+                IdleRenderer idleRenderer = mIdleRenderer;
+                if (!isCancelled() && null != idleRenderer) {
+                    idleRenderer.schedule(mDisplay);
+                }
                 //if (!isCancelled()) {
                     onDrawFinished(MapDrawable.this.getId(), 1.0f);
                 //}
@@ -315,6 +375,11 @@ public class MapDrawable
     @Override
     public void cancelDraw()
     {
+        // the real draw preempts the idle prefetch
+        if (null != mIdleRenderer) {
+            mIdleRenderer.cancel();
+        }
+
         super.cancelDraw();
 
         FutureTask task = (FutureTask) mDrawThreadTask;
@@ -324,6 +389,85 @@ public class MapDrawable
     }
 
 
+    @Override
+    protected void onExtentChanged(
+            float zoom,
+            GeoPoint center)
+    {
+        if (null != mIdleRenderer) {
+            mIdleRenderer.onExtentChanged(zoom, center);
+        }
+        super.onExtentChanged(zoom, center);
+    }
+
+
+    /**
+     * Enable or disable continuous zoom. If enabled, during pinch zoom the base raster layers are
+     * composed from cached tiles of the nearest zoom levels at fractional scale instead of scaling
+     * the last drawn bitmap. Needs the extra bitmap for layers above the base raster layers.
+     *
+     * @param enable
+     *         true to enable
+     */
+    public void setContinuousZoomEnabled(boolean enable)
+    {
+        if (enable) {
+            if (null == mPinchRenderer) {
+                mPinchRenderer = new PinchRenderer(this);
+            }
+        } else if (null != mPinchRenderer) {
+            mPinchRenderer.shutdown();
+            mPinchRenderer = null;
+        }
+
+        if (null != mDisplay) {
+            mDisplay.setOverlayEnabled(enable);
+            mDisplay.setPinchRenderer(mPinchRenderer);
+        }
+    }
+
+
+    /**
+     * Enable or disable the tile caches warming for the neighbour extents then map is idle. It is
+     * disabled by default as the missed remote tiles are downloaded, so enable it for unmetered
+     * networks only.
+     *
+     * @param enable
+     *         true to enable
+     */
+    public void setIdlePrefetchEnabled(boolean enable)
+    {
+        if (enable) {
+            if (null == mIdleRenderer) {
+                mIdleRenderer = new IdleRenderer(this);
+            }
+        } else if (null != mIdleRenderer) {
+            mIdleRenderer.shutdown();
+            mIdleRenderer = null;
+        }
+    }
+
+
+    /**
+     * Stop the drawing, the idle prefetch and pinch tiles load threads of the map which is not used
+     * any more
+     */
+    public void release()
+    {
+        cancelDraw();
+        setIdlePrefetchEnabled(false);
+        setContinuousZoomEnabled(false);
+    }
+
+
+    @Override
+    public boolean delete()
+    {
+        release();
+        return super.delete();
+    }
+
+
     @Override
     public float getMaxZoom()
     {
@@ -29,7 +29,9 @@ import android.os.Handler;
 import android.os.Message;
 
 import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.api.MapAreaEventListener;
 import com.nextgis.maplib.api.MapEventListener;
+import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.util.Constants;
 
@@ -56,11 +58,15 @@ public class MapEventSource
     protected final static int    EVENT_onLayersReordered   = 5;
     protected final static int    EVENT_onLayerDrawFinished = 6;
     protected final static int    EVENT_onLayerDrawStarted  = 7;
+    protected final static int    EVENT_onLayerAreaChanged  = 8;
     protected        List<MapEventListener> mListeners;
     protected static Handler                mHandler;
     protected        boolean                mFreeze;
 
     protected Map<Integer, Long> mLastMessages;
+    // changed area accumulated between onLayerAreaChanged events
+    protected GeoEnvelope        mDirtyArea;
+    protected final Object       mDirtyAreaLock = new Object();
     //skip event timeout ms
     public static final int SKIP_TIMEOUT = 250;
 
@@ -164,6 +170,44 @@ public class MapEventSource
     }
 
 
+    /**
+     * Send layer changed event with changed area to all listeners. The areas of several changes
+     * are merged while event is waiting for delivery.
+     *
+     * @param layer
+     *         A changed layer
+     * @param dirtyArea
+     *         A changed area in map coordinates
+     */
+    @Override
+    protected void onLayerChanged(
+            ILayer layer,
+            GeoEnvelope dirtyArea)
+    {
+        super.onLayerChanged(layer, dirtyArea);
+        if (mListeners == null) {
+            return;
+        }
+
+        synchronized (mDirtyAreaLock) {
+            if (null == mDirtyArea) {
+                mDirtyArea = new GeoEnvelope(dirtyArea);
+            } else {
+                mDirtyArea.merge(dirtyArea);
+            }
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putInt(BUNDLE_ID_KEY, layer.getId());
+        bundle.putInt(BUNDLE_TYPE_KEY, EVENT_onLayerAreaChanged);
+
+        Message msg = new Message();
+        msg.what = EVENT_onLayerAreaChanged;
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+
+
     /**
      * Send layer delete event to all listeners
      *
@@ -297,7 +341,15 @@ public class MapEventSource
 
                 Long lastTime = mLastMessages.get(resultData.getInt(BUNDLE_TYPE_KEY));
                 if(lastTime != null && System.currentTimeMillis() - lastTime < SKIP_TIMEOUT){
-                    if(EVENT_onLayerDrawFinished != resultData.getInt(BUNDLE_TYPE_KEY)) {
+                    if(EVENT_onLayerAreaChanged == resultData.getInt(BUNDLE_TYPE_KEY)) {
+                        // the area is accumulated, so deliver it later instead of skip
+                        if (!hasMessages(EVENT_onLayerAreaChanged)) {
+                            Message delayed = Message.obtain(msg);
+                            sendMessageDelayed(delayed, SKIP_TIMEOUT);
+                        }
+                        return;
+                    }
+                    else if(EVENT_onLayerDrawFinished != resultData.getInt(BUNDLE_TYPE_KEY)) {
                         return;
                     }
                     else{
@@ -308,6 +360,17 @@ public class MapEventSource
                 }
                 mLastMessages.put(resultData.getInt(BUNDLE_TYPE_KEY), System.currentTimeMillis());
 
+                GeoEnvelope dirtyArea = null;
+                if (EVENT_onLayerAreaChanged == resultData.getInt(BUNDLE_TYPE_KEY)) {
+                    synchronized (mDirtyAreaLock) {
+                        dirtyArea = mDirtyArea;
+                        mDirtyArea = null;
+                    }
+                    if (null == dirtyArea) { // already delivered with previous event
+                        return;
+                    }
+                }
+
                 for (MapEventListener listener : mListeners) {
                     switch (resultData.getInt(BUNDLE_TYPE_KEY)) {
                         case EVENT_onLayerAdded:
@@ -319,6 +382,14 @@ public class MapEventSource
                         case EVENT_onLayerChanged:
                             listener.onLayerChanged(resultData.getInt(BUNDLE_ID_KEY));
                             break;
+                        case EVENT_onLayerAreaChanged:
+                            if (listener instanceof MapAreaEventListener) {
+                                ((MapAreaEventListener) listener).onLayerAreaChanged(
+                                        resultData.getInt(BUNDLE_ID_KEY), dirtyArea);
+                            } else {
+                                listener.onLayerChanged(resultData.getInt(BUNDLE_ID_KEY));
+                            }
+                            break;
                         case EVENT_onExtentChanged:
                             listener.onExtentChanged(
                                     resultData.getFloat(BUNDLE_ZOOM_KEY), new GeoPoint(
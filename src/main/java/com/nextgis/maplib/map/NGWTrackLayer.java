@@ -43,6 +43,16 @@ public class NGWTrackLayer extends NGWVectorLayer {
         return true;
     }
 
+    @Override
+    protected String getRemoteFingerprint() {
+        return null;
+    }
+
+    @Override
+    protected boolean downloadFeatures(AccountUtil.AccountData accountData, IProgressor progressor) {
+        return true;
+    }
+
     @Override
     public void createFeature(Feature feature) throws SQLiteException {
 
@@ -52,4 +62,9 @@ public class NGWTrackLayer extends NGWVectorLayer {
     public void createFeatureBatch(Feature feature, SQLiteDatabase db) throws SQLiteException {
 
     }
+
+    @Override
+    protected boolean isBatchFeature(Feature feature) {
+        return false;
+    }
 }
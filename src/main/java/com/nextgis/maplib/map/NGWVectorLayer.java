@@ -28,6 +28,7 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.SyncResult;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -35,6 +36,7 @@ import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Build;
 import android.text.TextUtils;
+import android.util.Base64;
 import android.util.JsonReader;
 import android.util.Log;
 import android.util.Pair;
@@ -54,6 +56,7 @@ import com.nextgis.maplib.util.DatabaseContext;
 import com.nextgis.maplib.util.FeatureChanges;
 import com.nextgis.maplib.util.FileUtil;
 import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.LongHashSet;
 import com.nextgis.maplib.util.NGException;
 import com.nextgis.maplib.util.NGWUtil;
 import com.nextgis.maplib.util.NetworkUtil;
@@ -65,21 +68,31 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import static com.nextgis.maplib.util.Constants.*;
 
@@ -95,6 +108,18 @@ public class NGWVectorLayer
     protected static final String JSON_NGWLAYER_TYPE_KEY     = "ngw_layer_type";
     protected static final String JSON_SERVERWHERE_KEY       = "server_where";
     protected static final String JSON_TRACKED_KEY           = "tracked";
+    protected static final String JSON_SYNC_BATCH_SIZE_KEY   = "sync_batch_size";
+    protected static final String JSON_DOWNLOAD_OFFSET_KEY   = "download_offset";
+    protected static final String JSON_DOWNLOAD_LAST_ID_KEY  = "download_last_id";
+    protected static final String JSON_UPLOAD_HASH_KEY       = "hash";
+    protected static final String JSON_UPLOAD_URL_KEY        = "url";
+
+    protected static final int DEFAULT_SYNC_BATCH_SIZE = 100;
+    protected static final int FEATURES_PAGE_SIZE      = 5000;
+    protected static final int ATTACH_UPLOAD_THREADS   = 3;
+    protected static final int ATTACH_PROGRESS_STEP    = 64 * 1024;
+
+    protected static final String UPLOADS_FOLDER = "uploads";
 
     protected static final int TYPE_CHANGES_TABLE     = 125;
     protected static final int TYPE_CHANGES_FEATURE   = 126;
@@ -115,6 +140,15 @@ public class NGWVectorLayer
     protected int    mCRS = GeoConstants.CRS_WEB_MERCATOR;
     protected String mServerWhere;
     protected boolean mTracked;
+    protected int    mSyncBatchSize = DEFAULT_SYNC_BATCH_SIZE;
+    // the checkpoint of initial download, NOT_FOUND if the download is complete
+    protected long   mDownloadOffset = Constants.NOT_FOUND;
+    protected long   mDownloadLastId = Constants.NOT_FOUND;
+    protected long   mPageLastId;
+    protected int    mPageSkippedCount;
+    protected boolean mSyncPagingIgnored;
+    // the server supports the resumable uploads, null if not checked yet
+    protected Boolean mResumableUpload;
     //protected int mSyncDirection; //1 - to server only, 2 - from server only, 3 - both directions
     //check where to sync on GSM/WI-FI for data/attachments
 
@@ -205,6 +239,22 @@ public class NGWVectorLayer
     }
 
 
+    /**
+     * @return The count of features sent to server in one request, 0 or 1 to send each feature
+     * separately
+     */
+    public int getSyncBatchSize()
+    {
+        return mSyncBatchSize;
+    }
+
+
+    public void setSyncBatchSize(int syncBatchSize)
+    {
+        mSyncBatchSize = syncBatchSize;
+    }
+
+
     public String getChangeTableName()
     {
         return mPath.getName() + Constants.CHANGES_NAME_POSTFIX;
@@ -224,6 +274,11 @@ public class NGWVectorLayer
         rootConfig.put(JSON_NGWLAYER_TYPE_KEY, mNGWLayerType);
         rootConfig.put(JSON_SERVERWHERE_KEY, mServerWhere);
         rootConfig.put(JSON_TRACKED_KEY, mTracked);
+        rootConfig.put(JSON_SYNC_BATCH_SIZE_KEY, mSyncBatchSize);
+        if (mDownloadOffset != Constants.NOT_FOUND) {
+            rootConfig.put(JSON_DOWNLOAD_OFFSET_KEY, mDownloadOffset);
+            rootConfig.put(JSON_DOWNLOAD_LAST_ID_KEY, mDownloadLastId);
+        }
         rootConfig.put(GeoConstants.GEOJSON_CRS, mCRS);
 
         return rootConfig;
@@ -237,6 +292,9 @@ public class NGWVectorLayer
         super.fromJSON(jsonObject);
 
         mTracked = jsonObject.optBoolean(JSON_TRACKED_KEY);
+        mSyncBatchSize = jsonObject.optInt(JSON_SYNC_BATCH_SIZE_KEY, DEFAULT_SYNC_BATCH_SIZE);
+        mDownloadOffset = jsonObject.optLong(JSON_DOWNLOAD_OFFSET_KEY, Constants.NOT_FOUND);
+        mDownloadLastId = jsonObject.optLong(JSON_DOWNLOAD_LAST_ID_KEY, Constants.NOT_FOUND);
         mCRS = jsonObject.optInt(GeoConstants.GEOJSON_CRS, GeoConstants.CRS_WEB_MERCATOR);
         if (jsonObject.has(JSON_NGW_VERSION_MAJOR_KEY)) {
             mNgwVersionMajor = jsonObject.getInt(JSON_NGW_VERSION_MAJOR_KEY);
@@ -262,6 +320,21 @@ public class NGWVectorLayer
     }
 
 
+    @Override
+    public void onUpgrade(
+            SQLiteDatabase sqLiteDatabase,
+            int oldVersion,
+            int newVersion)
+    {
+        super.onUpgrade(sqLiteDatabase, oldVersion, newVersion);
+
+        // the change logs of previous versions have no index and keep the superseded records
+        if (oldVersion <= 3) {
+            FeatureChanges.optimize(sqLiteDatabase, getChangeTableName());
+        }
+    }
+
+
     @Override
     public void setAccountCacheData()
     {
@@ -438,16 +511,117 @@ public class NGWVectorLayer
             throw new NGException(getContext().getString(R.string.error_crs_unsupported));
         }
 
+        // the download was interrupted - continue from the last committed page
+        if (mDownloadOffset == Constants.NOT_FOUND) {
+            mDownloadOffset = 0;
+            mDownloadLastId = Constants.NOT_FOUND;
+        }
+        mTracked = vectorLayerJSONObject.optBoolean(JSON_TRACKED_KEY);
         create(geomType, fields);
 
-        String sURL = getFeaturesUrl(accountData);
-        if (Constants.DEBUG_MODE) {
-            Log.d(Constants.TAG, "download features from: " + sURL);
+        if (downloadFeatures(accountData, progressor)) {
+            mDownloadOffset = Constants.NOT_FOUND;
+            save();
+            notifyLayerChanged();
+        }
+    }
+
+
+    /**
+     * Download the features by pages from the download checkpoint. The pages are ordered by id and
+     * start after the last committed id, so the features deleted on server meanwhile do not shift
+     * the next pages. The server ignoring the id filter is detected by the repeated features and
+     * the pages are requested by offset then. Each page is committed and the checkpoint is saved
+     * to the layer config, so the interrupted download continues from the last committed page.
+     * <p>
+     * The full sync of layer not tracked for history is paged and resumed by
+     * {@link #getChangesFromServerPaged(SyncResult)}.
+     *
+     * @return true if all features are downloaded
+     */
+    protected boolean downloadFeatures(
+            AccountUtil.AccountData accountData,
+            IProgressor progressor)
+            throws NGException
+    {
+        // the servers before NGW 3 do not support paging
+        int pageSize = mNgwVersionMajor >= Constants.NGW_v3 ? FEATURES_PAGE_SIZE : 0;
+        SQLiteDatabase db = DatabaseContext.getDbForLayer(this);
+        boolean byOffset = false;
+
+        while (true) {
+            String sURL = pageSize == 0 || byOffset
+                          ? NGWUtil.getFeaturesUrl(accountData.url, mRemoteId, mServerWhere,
+                                                   pageSize, mDownloadOffset)
+                          : NGWUtil.getFeaturesPageUrl(accountData.url, mRemoteId, mServerWhere,
+                                                       pageSize, mDownloadLastId);
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "download features from: " + sURL);
+            }
+
+            FeatureWritePipeline pipeline = new FeatureWritePipeline(db);
+            mPageLastId = mDownloadLastId;
+            mPageSkippedCount = 0;
+            int featureCount;
+            try {
+                featureCount = readFeaturesPage(accountData, sURL, pipeline, progressor);
+                if (featureCount == Constants.NOT_FOUND) {
+                    pipeline.cancel();
+                    save();
+                    return false;
+                }
+                pipeline.finish();
+            } catch (OutOfMemoryError | IllegalStateException | IOException |
+                    NumberFormatException | JSONException e) {
+                e.printStackTrace();
+                pipeline.cancel();
+                save();
+                if (null != progressor)
+                    throw new NGException(getContext().getString(R.string.error_download_data));
+
+                return false;
+            }
+
+            // the page after the id has only new features, otherwise the id filter is ignored and
+            // the offset is not changed as the page is not the next one
+            boolean ignoresId = !byOffset && mPageSkippedCount > 0;
+            if (!ignoresId) {
+                mDownloadOffset += featureCount;
+            }
+            mDownloadLastId = mPageLastId;
+            save();
+
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "feature count: " + mDownloadOffset);
+            }
+
+            // the last page or the server ignores paging
+            if (pageSize == 0 || featureCount != pageSize) {
+                return true;
+            }
+            byOffset |= ignoresId;
         }
+    }
+
+
+    /**
+     * Read the features of one page to the pipeline
+     *
+     * @return The count of received features or NOT_FOUND if canceled
+     */
+    protected int readFeaturesPage(
+            AccountUtil.AccountData accountData,
+            String sURL,
+            FeatureWritePipeline pipeline,
+            IProgressor progressor)
+            throws NGException, IOException, JSONException
+    {
+        List<Field> fields = getFields();
+        int featureCount = 0;
 
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
             //get layer data
-            data = NetworkUtil.get(sURL, accountData.login, accountData.password);
+            String data = NetworkUtil.get(sURL, accountData.login, accountData.password);
             if (null == data) {
                 throw new NGException(getContext().getString(R.string.error_download_data));
             }
@@ -459,44 +633,55 @@ public class NGWVectorLayer
             List<Feature> features =
                     NGWUtil.jsonToFeatures(featuresJSONArray, fields, mCRS, progressor);
 
-            if (Constants.DEBUG_MODE) {
-                Log.d(Constants.TAG, "feature count: " + features.size());
-            }
-
             if (null != progressor) {
                 progressor.setMessage(getContext().getString(R.string.create_features));
                 progressor.setMax(features.size());
                 progressor.setIndeterminate(false);
             }
-            int featureCount = 0;
 
             for (Feature feature : features) {
-                createFeature(feature);
+                addDownloadedFeature(feature, pipeline);
                 if (null != progressor) {
                     if (progressor.isCanceled()) {
-                        break;
+                        return Constants.NOT_FOUND;
                     }
-                    progressor.setValue(featureCount++);
+                    progressor.setValue(featureCount);
                     progressor.setMessage(
-                            getContext().getString(R.string.processed) + " " + featureCount + " "
-                                    + getContext().getString(R.string.of) + " " + features.size());
+                            getContext().getString(R.string.processed) + " " +
+                                    (mDownloadOffset + featureCount + 1));
                 }
+                featureCount++;
             }
 
-            mTracked = vectorLayerJSONObject.optBoolean(JSON_TRACKED_KEY);
-            notifyLayerChanged();
-        } else {
-            // get features and fill them
-            HttpURLConnection urlConnection =
-                    NetworkUtil.getHttpConnection("", sURL, accountData.login, accountData.password);
-            InputStream in = new ProgressBufferedInputStream(urlConnection.getInputStream(),
+            return featureCount;
+        }
+
+        // get features and fill them, the geometries are prepared and written by the pipeline
+        // threads while the stream is read
+        Semaphore permits = NetworkUtil.acquireHost(sURL);
+        HttpURLConnection urlConnection = null;
+        JsonReader reader = null;
+        boolean isComplete = false;
+
+        try {
+            urlConnection = NetworkUtil.getHttpConnection("", sURL, accountData.login,
+                    accountData.password);
+            int responseCode = NetworkUtil.getResponseCode(urlConnection);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Problem get features: " + sURL + " HTTP response: " +
+                        responseCode);
+            }
+
+            // the progress is by the transferred bytes, so the stream is decompressed after it
+            ProgressBufferedInputStream progressIn = new ProgressBufferedInputStream(
+                    NetworkUtil.getRawInputStream(urlConnection),
                     urlConnection.getContentLength());
-            JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
-            reader.beginArray();
+            InputStream in = NetworkUtil.decodeStream(urlConnection, progressIn);
+            reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
 
-            SQLiteDatabase db = DatabaseContext.getDbForLayer(this);
+            reader.beginArray();
 
-            int streamSize = in.available();
+            int streamSize = progressIn.available();
             if (null != progressor) {
                 progressor.setIndeterminate(false);
                 if (streamSize > 0)
@@ -505,48 +690,53 @@ public class NGWVectorLayer
                         getContext().getString(R.string.start_fill_layer) + " " + getName());
             }
 
-            int featureCount = 0;
             while (reader.hasNext()) {
-                try {
-                    final Feature feature = NGWUtil.readNGWFeature(reader, fields, mCRS);
-                    if (feature.getGeometry() == null || !feature.getGeometry().isValid())
-                        continue;
-
-                    createFeatureBatch(feature, db);
-                } catch (OutOfMemoryError | IllegalStateException | IOException | NumberFormatException e) {
-                    e.printStackTrace();
-                    if (null != progressor)
-                        throw new NGException(getContext().getString(R.string.error_download_data));
-
-                    save();
-                    return;
-                }
+                addDownloadedFeature(NGWUtil.readNGWFeature(reader, fields, mCRS), pipeline);
 
                 if (null != progressor) {
                     if (progressor.isCanceled()) {
-                        save();
-                        return;
+                        return Constants.NOT_FOUND;
                     }
-                    progressor.setValue(streamSize - in.available());
-                    progressor.setMessage(getContext().getString(R.string.process_features) + ": " +
-                            featureCount);
+                    progressor.setValue(streamSize - progressIn.available());
+                    progressor.setMessage(getContext().getString(R.string.process_features) +
+                            ": " + (mDownloadOffset + featureCount));
                 }
 
                 ++featureCount;
             }
             reader.endArray();
-            reader.close();
-            //db.close();
+            isComplete = true;
+        } finally {
+            if (null != reader) {
+                reader.close();
+            }
+            // the connection of read out response is kept alive
+            if (!isComplete && null != urlConnection) {
+                urlConnection.disconnect();
+            }
+            permits.release();
+        }
 
-            urlConnection.disconnect();
-            mTracked = vectorLayerJSONObject.optBoolean(JSON_TRACKED_KEY);
+        return featureCount;
+    }
 
-            save();
 
-            if (Constants.DEBUG_MODE) {
-                Log.d(Constants.TAG, "feature count: " + featureCount);
-            }
+    protected void addDownloadedFeature(
+            Feature feature,
+            FeatureWritePipeline pipeline)
+            throws IOException
+    {
+        // already committed by the previous download
+        if (feature.getId() <= mDownloadLastId) {
+            mPageSkippedCount++;
+            return;
         }
+        mPageLastId = Math.max(mPageLastId, feature.getId());
+
+        if (feature.getGeometry() == null || !feature.getGeometry().isValid())
+            return;
+
+        pipeline.add(feature);
     }
 
 
@@ -602,6 +792,13 @@ public class NGWVectorLayer
             canAddChanges = false;
         }
 
+        // the last change replaces the previous ones, the new record is added as the sync may
+        // send the feature now and remove its records up to the current last one
+        if (operation == Constants.CHANGE_OPERATION_CHANGED) {
+            FeatureChanges.removeChanges(changeTableName, featureId,
+                    Constants.CHANGE_OPERATION_CHANGED);
+        }
+
         // if can then add change
         if (canAddChanges) {
             FeatureChanges.add(changeTableName, featureId, operation);
@@ -647,6 +844,12 @@ public class NGWVectorLayer
             canAddChanges = false;
         }
 
+        // the last change replaces the previous ones as for features
+        if (attachOperation == Constants.CHANGE_OPERATION_CHANGED) {
+            FeatureChanges.removeAttachChanges(changeTableName, featureId, attachId,
+                    Constants.CHANGE_OPERATION_CHANGED);
+        }
+
         if (canAddChanges) {
             FeatureChanges.add(changeTableName, featureId, attachId, attachOperation);
         }
@@ -691,9 +894,42 @@ public class NGWVectorLayer
             }
         }
 
-        // 2. get remote changes
-        if (!getChangesFromServer(authority, syncResult)) {
-            if (Constants.DEBUG_MODE) {
+        // 2. continue the interrupted initial download or get remote changes
+        if (mDownloadOffset != Constants.NOT_FOUND) {
+            if (!resumeDownload(syncResult)) {
+                return;
+            }
+        } else {
+            // the fingerprint is got before the download, so the remote changes made during it
+            // are got on next sync
+            String fingerprint = getRemoteFingerprint();
+            SharedPreferences preferences = getPreferences();
+            if (null != fingerprint && fingerprint.equals(
+                    preferences.getString(SettingsConstants.KEY_PREF_LAST_SYNC_FINGERPRINT, null))
+                    && 0 == FeatureChanges.getChangeCount(getChangeTableName())) {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(Constants.TAG, "Layer " + getName() + " is not changed, skip sync");
+                }
+                // the layer is up to date, so the sync is successful
+                preferences.edit()
+                        .putLong(SettingsConstants.KEY_PREF_LAST_SYNC_TIMESTAMP,
+                                System.currentTimeMillis())
+                        .commit();
+                return;
+            }
+
+            if (getChangesFromServer(authority, syncResult)) {
+                if (null == fingerprint) {
+                    preferences.edit()
+                            .remove(SettingsConstants.KEY_PREF_LAST_SYNC_FINGERPRINT)
+                            .commit();
+                } else {
+                    preferences.edit()
+                            .putString(SettingsConstants.KEY_PREF_LAST_SYNC_FINGERPRINT,
+                                    fingerprint)
+                            .commit();
+                }
+            } else if (Constants.DEBUG_MODE) {
                 Log.d(Constants.TAG, "Get remote changes failed");
             }
         }
@@ -711,6 +947,85 @@ public class NGWVectorLayer
     }
 
 
+    /**
+     * Get the fingerprint of remote data by cheap requests: the hash of resource metadata, the
+     * feature count and the ETag or Last-Modified of feature collection got by HEAD request. The
+     * tracked layers get the remote changes only, so they are not checked.
+     *
+     * @return The fingerprint or null if the server does not provide the version of feature
+     * collection, so the changes can not be detected without download
+     */
+    protected String getRemoteFingerprint()
+    {
+        if (mTracked || !mNet.isNetworkAvailable()) {
+            return null;
+        }
+
+        try {
+            AccountUtil.AccountData accountData = AccountUtil.getAccountData(mContext, mAccountName);
+            String version = NetworkUtil.getVersionTag(getFeaturesUrl(accountData),
+                    accountData.login, accountData.password);
+            if (TextUtils.isEmpty(version)) {
+                return null;
+            }
+
+            String meta = NetworkUtil.get(getResourceMetaUrl(accountData), accountData.login,
+                    accountData.password);
+            if (null == meta || new JSONObject(meta).has(JSON_MESSAGE_KEY)) {
+                return null;
+            }
+
+            String count = "";
+            if (mNgwVersionMajor >= Constants.NGW_v3) {
+                String data = NetworkUtil.get(
+                        NGWUtil.getFeatureCountUrl(accountData.url, mRemoteId), accountData.login,
+                        accountData.password);
+                if (null == data) {
+                    return null;
+                }
+                count = "" + new JSONObject(data).getLong(NGWUtil.NGWKEY_FEATURE_COUNT);
+            }
+
+            String hash = FileUtil.getMD5(new ByteArrayInputStream(meta.getBytes("UTF-8")));
+            return hash + ";" + count + ";" + version + ";" + mServerWhere;
+        } catch (IOException | JSONException | IllegalStateException e) {
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "getRemoteFingerprint failed: " + e.getLocalizedMessage());
+            }
+            return null;
+        }
+    }
+
+
+    protected boolean resumeDownload(SyncResult syncResult)
+    {
+        if (!mNet.isNetworkAvailable()) {
+            return false;
+        }
+
+        try {
+            AccountUtil.AccountData accountData = AccountUtil.getAccountData(mContext, mAccountName);
+            if (!downloadFeatures(accountData, null)) {
+                syncResult.stats.numIoExceptions++;
+                return false;
+            }
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            syncResult.stats.numAuthExceptions++;
+            return false;
+        } catch (NGException e) {
+            e.printStackTrace();
+            syncResult.stats.numIoExceptions++;
+            return false;
+        }
+
+        mDownloadOffset = Constants.NOT_FOUND;
+        save();
+        notifyLayerChanged();
+        return true;
+    }
+
+
     public boolean sendLocalChanges(SyncResult syncResult)
     {
         String changeTableName = getChangeTableName();
@@ -724,11 +1039,21 @@ public class NGWVectorLayer
         }
 
         boolean isError = false;
+        mResumableUpload = null;
 
         try {
-            // get column's IDs, there is at least one entry
+            // send created and changed features by batches, the rest and the features of failed
+            // batches are sent one by one below
+            if (mSyncBatchSize > 1 && mNgwVersionMajor >= Constants.NGW_v3) {
+                sendFeatureChangesBatched();
+            }
+
+            // upload the new attachments of sent features in parallel, the failed ones are sent
+            // one by one below
+            sendAttachesParallel();
+
+            // get column's IDs, there may be no entries if all changes are sent by batches
             Cursor changeCursor = FeatureChanges.getFirstChangeFromRecordId(changeTableName, 0);
-            changeCursor.moveToFirst();
 
             int recordIdColumn = changeCursor.getColumnIndex(Constants.FIELD_ID);
             int featureIdColumn = changeCursor.getColumnIndex(Constants.FIELD_FEATURE_ID);
@@ -737,7 +1062,8 @@ public class NGWVectorLayer
             int attachOperationColumn =
                     changeCursor.getColumnIndex(Constants.FIELD_ATTACH_OPERATION);
 
-            long nextChangeRecordId = changeCursor.getLong(recordIdColumn);
+            long nextChangeRecordId =
+                    changeCursor.moveToFirst() ? changeCursor.getLong(recordIdColumn) : 0;
 
             changeCursor.close();
 
@@ -873,6 +1199,161 @@ public class NGWVectorLayer
     }
 
 
+    /**
+     * Send the features created or changed locally in feature collection requests of the sync
+     * batch size. The features with delete operation are left to be sent one by one, as the
+     * collection DELETE request without body removes all features of the layer.
+     * @return The count of sent features
+     */
+    protected int sendFeatureChangesBatched()
+            throws SQLiteException
+    {
+        if (!mNet.isNetworkAvailable()) {
+            return 0;
+        }
+
+        String changeTableName = getChangeTableName();
+        long lastChangeRecordId = FeatureChanges.getLastChangeRecordId(changeTableName);
+        Cursor changeCursor = FeatureChanges.getChanges(changeTableName);
+        if (null == changeCursor) {
+            return 0;
+        }
+
+        List<Long> featureIds = new ArrayList<>();
+        LongHashSet changedIds = new LongHashSet();
+        LongHashSet newIds = new LongHashSet();
+        LongHashSet deletedIds = new LongHashSet();
+        try {
+            int featureIdColumn = changeCursor.getColumnIndex(Constants.FIELD_FEATURE_ID);
+            int operationColumn = changeCursor.getColumnIndex(Constants.FIELD_OPERATION);
+            while (changeCursor.moveToNext()) {
+                int operation = changeCursor.getInt(operationColumn);
+                if (0 != (operation & Constants.CHANGE_OPERATION_ATTACH)) {
+                    continue;
+                }
+
+                long featureId = changeCursor.getLong(featureIdColumn);
+                if (0 != (operation & Constants.CHANGE_OPERATION_DELETE)) {
+                    deletedIds.add(featureId);
+                } else if (0 != (operation & Constants.CHANGE_OPERATION_NEW)) {
+                    newIds.add(featureId);
+                }
+
+                if (changedIds.add(featureId)) {
+                    featureIds.add(featureId);
+                }
+            }
+        } finally {
+            changeCursor.close();
+        }
+
+        List<Long> batch = new ArrayList<>(mSyncBatchSize);
+        int sent = 0;
+        for (int i = 0; i < featureIds.size(); i++) {
+            long featureId = featureIds.get(i);
+            if (!deletedIds.contains(featureId)) {
+                batch.add(featureId);
+            }
+
+            if (batch.size() == mSyncBatchSize || i == featureIds.size() - 1 && !batch.isEmpty()) {
+                sent += sendFeatureBatch(batch, newIds, lastChangeRecordId);
+                batch.clear();
+            }
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "sendFeatureChangesBatched: " + sent + " of " + featureIds.size());
+        }
+        return sent;
+    }
+
+
+    /**
+     * Send the features in one PATCH request to the feature collection, the new features are
+     * created and get the ids from the response, the others are updated. The change records of
+     * sent features are removed, on failure the change log is kept as is and the features are
+     * sent one by one.
+     * @return The count of sent features
+     */
+    protected int sendFeatureBatch(
+            List<Long> featureIds,
+            LongHashSet newIds,
+            long lastChangeRecordId)
+            throws SQLiteException
+    {
+        String selection = Constants.FIELD_ID + " IN (" + TextUtils.join(",", featureIds) + ")";
+        Cursor cursor = query(null, selection, null, null, null);
+        if (null == cursor) {
+            return 0;
+        }
+
+        // the server responds with ids in the order of request
+        List<Long> sentIds = new ArrayList<>(featureIds.size());
+        JSONArray payload = new JSONArray();
+        try {
+            int idColumn = cursor.getColumnIndex(Constants.FIELD_ID);
+            while (cursor.moveToNext()) {
+                long featureId = cursor.getLong(idColumn);
+                JSONObject feature = cursorToJsonObject(cursor);
+                if (!newIds.contains(featureId)) {
+                    feature.put(Constants.JSON_ID_KEY, featureId);
+                }
+                payload.put(feature);
+                sentIds.add(featureId);
+            }
+        } catch (Exception e) {
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, e.getLocalizedMessage());
+                e.printStackTrace();
+            }
+            return 0;
+        } finally {
+            cursor.close();
+        }
+
+        if (sentIds.isEmpty()) {
+            return 0;
+        }
+
+        JSONArray result;
+        try {
+            AccountUtil.AccountData accountData = AccountUtil.getAccountData(mContext, mAccountName);
+            String data = NetworkUtil.patch(NGWUtil.getFeaturesUrl(accountData.url, mRemoteId),
+                    payload.toString(), accountData.login, accountData.password);
+            if (null == data) {
+                return 0;
+            }
+            //[{"id": 24}, {"id": 25}]
+            result = new JSONArray(data);
+            if (result.length() != sentIds.size()) {
+                return 0;
+            }
+        } catch (Exception e) {
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "sendFeatureBatch failed: " + e.getLocalizedMessage());
+            }
+            return 0;
+        }
+
+        for (int i = 0; i < sentIds.size(); i++) {
+            long featureId = sentIds.get(i);
+            FeatureChanges.removeChangesToLast(getChangeTableName(), featureId,
+                    Constants.CHANGE_OPERATION_NEW | Constants.CHANGE_OPERATION_CHANGED,
+                    lastChangeRecordId);
+
+            // the ids of created features are in the order of request
+            if (newIds.contains(featureId)) {
+                JSONObject item = result.optJSONObject(i);
+                if (null != item && item.has(Constants.JSON_ID_KEY)) {
+                    changeFeatureId(featureId, item.optLong(Constants.JSON_ID_KEY));
+                }
+            }
+        }
+
+        return sentIds.size();
+    }
+
+
     private boolean changeAttachOnServer(
             long featureId,
             long attachId,
@@ -979,90 +1460,462 @@ public class NGWVectorLayer
             return true;
         }
 
-        String fileName = attach.getDisplayName();
         File filePath = new File(mPath, featureId + File.separator + attach.getAttachId());
-        String fileMime = attach.getMimetype();
 
         try {
             AccountUtil.AccountData accountData = AccountUtil.getAccountData(mContext, mAccountName);
-            //1. upload file
-            String data = NetworkUtil.postFile(NGWUtil.getFileUploadUrl(accountData.url), fileName,
-                    filePath, fileMime, accountData.login, accountData.password);
-            if (null == data) {
-                syncResult.stats.numIoExceptions++;
-                return false;
-            }
-            JSONObject result = new JSONObject(data);
-            if (!result.has("upload_meta")) {
-                if (Constants.DEBUG_MODE) {
-                    Log.d(
-                            Constants.TAG,
-                            "Problem sendAttachOnServer(), result has not upload_meta, result: "
-                                    + result.toString());
-                }
+            long newAttachId = uploadAttach(accountData, featureId, attach,
+                    isResumableUpload(accountData), new AttachProgress(filePath.length()));
+            if (Constants.NOT_FOUND == newAttachId) {
                 syncResult.stats.numIoExceptions++;
                 return false;
             }
 
-            JSONArray uploadMetaArray = result.getJSONArray("upload_meta");
-            if (uploadMetaArray.length() == 0) {
-                if (Constants.DEBUG_MODE) {
-                    Log.d(
-                            Constants.TAG,
-                            "Problem sendAttachOnServer(), result upload_meta length() == 0");
-                }
-                syncResult.stats.numIoExceptions++;
-                return false;
-            }
-            //2. add attachment to row
-            JSONObject postJsonData = new JSONObject();
-            postJsonData.put("file_upload", uploadMetaArray.get(0));
-            postJsonData.put("description", attach.getDescription());
+            setNewAttachId("" + featureId, attach, "" + newAttachId);
+
+            return true;
 
-            String postload = postJsonData.toString();
+        } catch (JSONException | IOException e) {
+            e.printStackTrace();
             if (Constants.DEBUG_MODE) {
-                Log.d(Constants.TAG, "postload: " + postload);
+                Log.d(Constants.TAG, e.getLocalizedMessage());
             }
-
-            data = NetworkUtil.post(
-                    NGWUtil.getFeatureAttachmentUrl(accountData.url, mRemoteId, featureId),
-                    postload, accountData.login, accountData.password);
-            if (null == data) {
-                syncResult.stats.numIoExceptions++;
-                return false;
+            syncResult.stats.numIoExceptions++;
+            return false;
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, e.getLocalizedMessage());
             }
+            syncResult.stats.numAuthExceptions++;
+            return false;
+        }
+    }
 
-            result = new JSONObject(data);
-            if (!result.has(Constants.JSON_ID_KEY)) {
-                if (Constants.DEBUG_MODE) {
-                    Log.d(
-                            Constants.TAG,
-                            "Problem sendAttachOnServer(), result has not ID key, result: " + result
-                                    .toString());
+
+    /**
+     * Upload the files of new attachments by ATTACH_UPLOAD_THREADS threads and apply the new
+     * attachment ids here. The attachments of features not sent yet and the attachments to delete
+     * are left to be sent one by one in the change order.
+     * @return The count of sent attachments
+     */
+    protected int sendAttachesParallel()
+            throws SQLiteException
+    {
+        if (!mNet.isNetworkAvailable()) {
+            return 0;
+        }
+
+        String changeTableName = getChangeTableName();
+        long lastChangeRecordId = FeatureChanges.getLastChangeRecordId(changeTableName);
+        Cursor changeCursor = FeatureChanges.getChanges(changeTableName);
+        if (null == changeCursor) {
+            return 0;
+        }
+
+        // record id, feature id, attach id
+        List<long[]> newAttaches = new ArrayList<>();
+        LongHashSet skipFeatureIds = new LongHashSet();
+        Set<String> deletedAttaches = new HashSet<>();
+        try {
+            int recordIdColumn = changeCursor.getColumnIndex(Constants.FIELD_ID);
+            int featureIdColumn = changeCursor.getColumnIndex(Constants.FIELD_FEATURE_ID);
+            int operationColumn = changeCursor.getColumnIndex(Constants.FIELD_OPERATION);
+            int attachIdColumn = changeCursor.getColumnIndex(Constants.FIELD_ATTACH_ID);
+            int attachOperationColumn =
+                    changeCursor.getColumnIndex(Constants.FIELD_ATTACH_OPERATION);
+            while (changeCursor.moveToNext()) {
+                long featureId = changeCursor.getLong(featureIdColumn);
+                int operation = changeCursor.getInt(operationColumn);
+                if (0 == (operation & Constants.CHANGE_OPERATION_ATTACH)) {
+                    if (0 != (operation & (Constants.CHANGE_OPERATION_NEW
+                            | Constants.CHANGE_OPERATION_DELETE))) {
+                        skipFeatureIds.add(featureId);
+                    }
+                    continue;
+                }
+
+                long attachId = changeCursor.getLong(attachIdColumn);
+                int attachOperation = changeCursor.getInt(attachOperationColumn);
+                if (attachOperation == Constants.CHANGE_OPERATION_NEW) {
+                    newAttaches.add(new long[] {
+                            changeCursor.getLong(recordIdColumn), featureId, attachId});
+                } else if (attachOperation == Constants.CHANGE_OPERATION_DELETE) {
+                    deletedAttaches.add(featureId + "_" + attachId);
                 }
-                syncResult.stats.numIoExceptions++;
-                return false;
             }
+        } finally {
+            changeCursor.close();
+        }
 
-            long newAttachId = result.getLong(Constants.JSON_ID_KEY);
-            setNewAttachId("" + featureId, attach, "" + newAttachId);
+        List<long[]> records = new ArrayList<>(newAttaches.size());
+        final List<AttachItem> attaches = new ArrayList<>(newAttaches.size());
+        long totalSize = 0;
+        for (long[] record : newAttaches) {
+            if (skipFeatureIds.contains(record[1])
+                    || deletedAttaches.contains(record[1] + "_" + record[2])) {
+                continue;
+            }
 
-            return true;
+            AttachItem attach = getAttach("" + record[1], "" + record[2]);
+            if (null == attach) {
+                continue;
+            }
 
-        } catch (JSONException | IOException e) {
+            records.add(record);
+            attaches.add(attach);
+            totalSize += new File(mPath, record[1] + File.separator + record[2]).length();
+        }
+
+        if (records.isEmpty()) {
+            return 0;
+        }
+
+        final AccountUtil.AccountData accountData;
+        final boolean resumable;
+        try {
+            accountData = AccountUtil.getAccountData(mContext, mAccountName);
+            resumable = isResumableUpload(accountData);
+        } catch (IllegalStateException e) {
             e.printStackTrace();
+            return 0;
+        }
+
+        final AttachProgress progress = new AttachProgress(totalSize);
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(ATTACH_UPLOAD_THREADS, records.size()));
+        List<Future<Long>> futures = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            final long featureId = records.get(i)[1];
+            final AttachItem attach = attaches.get(i);
+            futures.add(executor.submit(new Callable<Long>()
+            {
+                @Override
+                public Long call()
+                        throws Exception
+                {
+                    return uploadAttach(accountData, featureId, attach, resumable, progress);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        int sent = 0;
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                long newAttachId;
+                try {
+                    newAttachId = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (Constants.DEBUG_MODE) {
+                        Log.d(Constants.TAG,
+                                "uploadAttach failed: " + e.getCause().getLocalizedMessage());
+                    }
+                    continue;
+                }
+
+                if (Constants.NOT_FOUND == newAttachId) {
+                    continue;
+                }
+
+                long[] record = records.get(i);
+                setNewAttachId("" + record[1], attaches.get(i), "" + newAttachId);
+                FeatureChanges.removeChangeRecord(changeTableName, record[0]);
+                FeatureChanges.removeAttachChangesToLast(changeTableName, record[1], record[2],
+                        Constants.CHANGE_OPERATION_CHANGED, lastChangeRecordId);
+                sent++;
+            }
+        } catch (InterruptedException e) {
+            // the sync is canceled, the uploads are resumed on next sync
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "sendAttachesParallel: " + sent + " of " + records.size());
+        }
+        return sent;
+    }
+
+
+    protected boolean isResumableUpload(AccountUtil.AccountData accountData)
+    {
+        if (null == mResumableUpload) {
+            mResumableUpload = NetworkUtil.isTusSupported(
+                    NGWUtil.getFileUploadResumableUrl(accountData.url), accountData.login,
+                    accountData.password);
+        }
+        return mResumableUpload;
+    }
+
+
+    protected File getUploadStateFile(
+            long featureId,
+            String attachId)
+    {
+        return new File(new File(mPath, UPLOADS_FOLDER), featureId + "_" + attachId + ".json");
+    }
+
+
+    /**
+     * Upload the attachment file and add the attachment to the feature on server. The upload
+     * state is kept in the uploads folder of layer until the attachment is added, so the next
+     * attempt resumes the upload or finds the attachment added by the interrupted attempt.
+     * Safe to call from any thread, the local attachment is not changed.
+     * @return The new attachment id or NOT_FOUND
+     */
+    protected long uploadAttach(
+            AccountUtil.AccountData accountData,
+            long featureId,
+            AttachItem attach,
+            boolean resumable,
+            NetworkUtil.ProgressListener listener)
+            throws IOException, JSONException
+    {
+        File file = new File(mPath, featureId + File.separator + attach.getAttachId());
+        File stateFile = getUploadStateFile(featureId, attach.getAttachId());
+        String hash = FileUtil.getFileMD5(file);
+
+        JSONObject state = null;
+        if (stateFile.exists()) {
+            try {
+                state = new JSONObject(FileUtil.readFromFile(stateFile));
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+
+            // the file is changed since the previous attempt
+            if (null != state && !hash.equals(state.optString(JSON_UPLOAD_HASH_KEY))) {
+                state = null;
+            }
+
+            if (null != state) {
+                long remoteAttachId =
+                        findRemoteAttach(accountData, featureId, attach, file.length());
+                if (Constants.NOT_FOUND != remoteAttachId) {
+                    stateFile.delete();
+                    return remoteAttachId;
+                }
+            }
+        }
+
+        if (null == state) {
+            state = new JSONObject();
+            state.put(JSON_UPLOAD_HASH_KEY, hash);
+            FileUtil.createDir(stateFile.getParentFile());
+            FileUtil.writeToFile(stateFile, state.toString());
+        }
+
+        //1. upload file
+        JSONObject uploadMeta;
+        if (resumable) {
+            uploadMeta = uploadFileResumable(accountData, file, attach, state, stateFile, listener);
+        } else {
+            uploadMeta = uploadFile(accountData, file, attach, listener);
+        }
+
+        if (null == uploadMeta) {
+            return Constants.NOT_FOUND;
+        }
+
+        //2. add attachment to row
+        JSONObject postJsonData = new JSONObject();
+        postJsonData.put("file_upload", uploadMeta);
+        postJsonData.put("description", attach.getDescription());
+
+        String postload = postJsonData.toString();
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "postload: " + postload);
+        }
+
+        String data = NetworkUtil.post(
+                NGWUtil.getFeatureAttachmentUrl(accountData.url, mRemoteId, featureId), postload,
+                accountData.login, accountData.password);
+        if (null == data) {
+            return Constants.NOT_FOUND;
+        }
+
+        JSONObject result = new JSONObject(data);
+        if (!result.has(Constants.JSON_ID_KEY)) {
             if (Constants.DEBUG_MODE) {
-                Log.d(Constants.TAG, e.getLocalizedMessage());
+                Log.d(
+                        Constants.TAG,
+                        "Problem uploadAttach(), result has not ID key, result: " + result
+                                .toString());
             }
-            syncResult.stats.numIoExceptions++;
-            return false;
-        } catch (IllegalStateException e) {
-            e.printStackTrace();
+            return Constants.NOT_FOUND;
+        }
+
+        stateFile.delete();
+        return result.getLong(Constants.JSON_ID_KEY);
+    }
+
+
+    protected JSONObject uploadFile(
+            AccountUtil.AccountData accountData,
+            File file,
+            AttachItem attach,
+            NetworkUtil.ProgressListener listener)
+            throws IOException, JSONException
+    {
+        String data = NetworkUtil.postFile(NGWUtil.getFileUploadUrl(accountData.url),
+                attach.getDisplayName(), file, attach.getMimetype(), accountData.login,
+                accountData.password, listener);
+        if (null == data) {
+            return null;
+        }
+
+        JSONObject result = new JSONObject(data);
+        if (!result.has("upload_meta")) {
             if (Constants.DEBUG_MODE) {
-                Log.d(Constants.TAG, e.getLocalizedMessage());
+                Log.d(
+                        Constants.TAG,
+                        "Problem uploadFile(), result has not upload_meta, result: "
+                                + result.toString());
             }
-            syncResult.stats.numAuthExceptions++;
-            return false;
+            return null;
+        }
+
+        JSONArray uploadMetaArray = result.getJSONArray("upload_meta");
+        if (uploadMetaArray.length() == 0) {
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "Problem uploadFile(), result upload_meta length() == 0");
+            }
+            return null;
+        }
+
+        return uploadMetaArray.getJSONObject(0);
+    }
+
+
+    /**
+     * Upload the file by chunks using tus protocol, the upload URL is saved to the state file to
+     * continue from the offset received by server on next attempt
+     */
+    protected JSONObject uploadFileResumable(
+            AccountUtil.AccountData accountData,
+            File file,
+            AttachItem attach,
+            JSONObject state,
+            File stateFile,
+            NetworkUtil.ProgressListener listener)
+            throws IOException, JSONException
+    {
+        String uploadUrl = state.optString(JSON_UPLOAD_URL_KEY, null);
+        long offset = Constants.NOT_FOUND;
+        if (null != uploadUrl) {
+            offset = NetworkUtil.tusGetOffset(uploadUrl, accountData.login, accountData.password);
+        }
+
+        if (Constants.NOT_FOUND == offset) {
+            String metadata = "name " + Base64.encodeToString(
+                    attach.getDisplayName().getBytes("UTF-8"), Base64.NO_WRAP);
+            if (!TextUtils.isEmpty(attach.getMimetype())) {
+                metadata += ",mime_type " + Base64.encodeToString(
+                        attach.getMimetype().getBytes("UTF-8"), Base64.NO_WRAP);
+            }
+
+            uploadUrl = NetworkUtil.tusCreate(NGWUtil.getFileUploadResumableUrl(accountData.url),
+                    file.length(), metadata, accountData.login, accountData.password);
+            if (null == uploadUrl) {
+                return null;
+            }
+
+            state.put(JSON_UPLOAD_URL_KEY, uploadUrl);
+            FileUtil.writeToFile(stateFile, state.toString());
+            offset = 0;
+        } else if (null != listener) {
+            listener.onProgress(offset);
+        }
+
+        if (!NetworkUtil.tusUpload(uploadUrl, file, offset, accountData.login,
+                accountData.password, listener)) {
+            return null;
+        }
+
+        JSONObject uploadMeta = new JSONObject();
+        uploadMeta.put(Constants.JSON_ID_KEY, Uri.parse(uploadUrl).getLastPathSegment());
+        uploadMeta.put("size", file.length());
+        uploadMeta.put("name", attach.getDisplayName());
+        if (!TextUtils.isEmpty(attach.getMimetype())) {
+            uploadMeta.put("mime_type", attach.getMimetype());
+        }
+        return uploadMeta;
+    }
+
+
+    /**
+     * Find the attachment with the same name and size in the feature on server
+     * @return The attachment id or NOT_FOUND
+     */
+    protected long findRemoteAttach(
+            AccountUtil.AccountData accountData,
+            long featureId,
+            AttachItem attach,
+            long size)
+    {
+        try {
+            String data = NetworkUtil.get(
+                    NGWUtil.getFeatureUrl(accountData.url, mRemoteId, featureId),
+                    accountData.login, accountData.password);
+            if (null == data) {
+                return Constants.NOT_FOUND;
+            }
+
+            JSONObject feature = new JSONObject(data);
+            JSONObject extensions = feature.optJSONObject("extensions");
+            JSONArray remoteAttaches =
+                    null == extensions ? null : extensions.optJSONArray("attachment");
+            if (null == remoteAttaches) {
+                return Constants.NOT_FOUND;
+            }
+
+            for (int i = 0; i < remoteAttaches.length(); i++) {
+                JSONObject remoteAttach = remoteAttaches.getJSONObject(i);
+                if (attach.getDisplayName().equals(remoteAttach.optString("name"))
+                        && size == remoteAttach.optLong("size", Constants.NOT_FOUND)) {
+                    return remoteAttach.getLong(Constants.JSON_ID_KEY);
+                }
+            }
+        } catch (JSONException | IOException e) {
+            e.printStackTrace();
+        }
+
+        return Constants.NOT_FOUND;
+    }
+
+
+    /**
+     * Broadcast the sent bytes of attachments by steps of ATTACH_PROGRESS_STEP
+     */
+    protected class AttachProgress
+            implements NetworkUtil.ProgressListener
+    {
+        protected final long mTotal;
+        protected       long mSent;
+        protected       long mNotified;
+
+
+        public AttachProgress(long total)
+        {
+            mTotal = total;
+        }
+
+
+        @Override
+        public synchronized void onProgress(long bytes)
+        {
+            mSent = Math.min(mSent + bytes, mTotal);
+            if (mSent - mNotified < ATTACH_PROGRESS_STEP && mSent < mTotal) {
+                return;
+            }
+
+            mNotified = mSent;
+            Intent notify = new Intent(SyncAdapter.SYNC_ATTACH_PROGRESS);
+            notify.putExtra(Constants.NOTIFY_LAYER_NAME, mPath.getName());
+            notify.putExtra(SyncAdapter.SYNC_ATTACH_SENT, mSent);
+            notify.putExtra(SyncAdapter.SYNC_ATTACH_TOTAL, mTotal);
+            getContext().sendBroadcast(notify);
         }
     }
 
@@ -1136,8 +1989,21 @@ public class NGWVectorLayer
             Log.d(Constants.TAG, "The network is available. Get changes from server");
         }
 
+        // the layer not tracked for history is got by pages, the server ignoring the id filter is
+        // read at once
+        if (!mTracked && isSyncPaged()) {
+            if (getChangesFromServerPaged(syncResult)) {
+                return true;
+            }
+            if (!mSyncPagingIgnored) {
+                return false;
+            }
+        }
+
         List<Feature> features, added = null, deleted = null, changed = null;
         List<Long> deleteItems = new ArrayList<>();
+        // the remote changes are written at once after reconciliation
+        List<Feature> newItems = new ArrayList<>(), updateItems = new ArrayList<>();
         HashMap<Integer, List<Feature>> tracked = getFeatures(syncResult, mTracked);
 
         if (tracked == null)
@@ -1179,7 +2045,7 @@ public class NGWVectorLayer
                         boolean hasFeature = false;
                         if (cursor != null) {
                             if (cursor.moveToFirst()){
-                                compareFeature(cursor, authority, remoteFeature, changeTableName);
+                                compareFeature(cursor, remoteFeature, changeTableName, null, updateItems);
                                 hasFeature = true;
                             }
 
@@ -1187,174 +2053,370 @@ public class NGWVectorLayer
                         }
 
                         if (!hasFeature)
-                            createNewFeature(remoteFeature, authority);
+                            newItems.add(remoteFeature);
                     }
 
                 if (changed != null)
                     for (Feature remoteFeature : changed) {
                         Cursor cursor = query(null, Constants.FIELD_ID + " = " + remoteFeature.getId(), null, null, null);
-                        compareFeature(cursor, authority, remoteFeature, changeTableName);
-                        cursor.close();
+                        if (cursor != null) {
+                            if (cursor.moveToFirst())
+                                compareFeature(cursor, remoteFeature, changeTableName, null, updateItems);
+
+                            cursor.close();
+                        }
                     }
 
                 if (deleted != null) {
                     for (Feature remoteFeature : deleted)
                         deleteItems.add(remoteFeature.getId());
-
-                    deleteFeatures(deleteItems);
                 }
+
+                applyFeatureBatch(newItems, updateItems, deleteItems);
             } else {
-                // analyse feature
-                for (Feature remoteFeature : features) {
-                    Cursor cursor = query(null, Constants.FIELD_ID + " = " + remoteFeature.getId(), null, null, null);
-
-                    try {
-                        //no local feature
-                        if (null == cursor || cursor.getCount() == 0) {
-                            //if we have changes (delete) not create new feature
-                            boolean createNewFeature =
-                                    !FeatureChanges.isChanges(changeTableName, remoteFeature.getId());
-
-                            //create new feature with remoteId
-                            if (createNewFeature)
-                                createNewFeature(remoteFeature, authority);
-                        } else {
-                            compareFeature(cursor, authority, remoteFeature, changeTableName);
-                        }
-                    } catch (Exception e) {
-                        //Log.d(TAG, e.getLocalizedMessage());
-                    } finally {
-                        if (null != cursor) {
-                            cursor.close();
-                        }
-                    }
-                }
+                reconcileFeatures(features, Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+        } catch (SQLiteException | ConcurrentModificationException e) {
+            syncResult.stats.numConflictDetectedExceptions++;
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "proceed getChangesFromServer() failed");
+            }
+            e.printStackTrace();
+            return false;
+        }
 
-                // remove features not exist on server from local layer
-                // if no operation is in changes array or change operation for local feature present
-                for (Long featureId : query(null)) {
-                    boolean bDeleteFeature = true;
-                    for (Feature remoteFeature : features) {
-                        if (remoteFeature.getId() == featureId) {
-                            bDeleteFeature = false;
-                            break;
-                        }
-                    }
+        getPreferences().edit().putLong(SettingsConstants.KEY_PREF_LAST_SYNC_TIMESTAMP, System.currentTimeMillis()).commit();
+        return true;
+    }
 
-                    // if local item is in update list and state ADD_NEW skip delete
-                    bDeleteFeature =
-                            bDeleteFeature && !FeatureChanges.isChanges(changeTableName, featureId,
-                                    Constants.CHANGE_OPERATION_NEW) &&
-                                    !FeatureChanges.hasFeatureFlags(changeTableName, featureId);
 
-                    if (bDeleteFeature) {
-                        deleteItems.add(featureId);
+    protected boolean isSyncPaged()
+    {
+        return !mSyncPagingIgnored && mNgwVersionMajor >= Constants.NGW_v3
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+
+    /**
+     * Get the remote features by pages ordered by id and reconcile each page with the local
+     * features of its ids range, so the large layer is not held in memory at once. The last
+     * reconciled id is kept in the layer preferences and the interrupted sync continues from the
+     * next page.
+     *
+     * @return true if all pages are reconciled
+     */
+    protected boolean getChangesFromServerPaged(SyncResult syncResult)
+    {
+        AccountUtil.AccountData accountData;
+        try {
+            accountData = AccountUtil.getAccountData(mContext, mAccountName);
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            syncResult.stats.numAuthExceptions++;
+            return false;
+        }
+
+        SharedPreferences preferences = getPreferences();
+        long lastId =
+                preferences.getLong(SettingsConstants.KEY_PREF_SYNC_PAGE_LAST_ID, Constants.NOT_FOUND);
+
+        try {
+            if (!mCacheLoaded) {
+                reloadCache();
+            }
+
+            while (true) {
+                String url = NGWUtil.getFeaturesPageUrl(accountData.url, mRemoteId, mServerWhere,
+                        FEATURES_PAGE_SIZE, lastId);
+                if (Constants.DEBUG_MODE) {
+                    Log.d(Constants.TAG, "sync features from: " + url);
+                }
+                List<Feature> features = new ArrayList<>();
+                readSyncPage(accountData, url, features);
+
+                long pageLastId = lastId;
+                for (Feature feature : features) {
+                    if (lastId != Constants.NOT_FOUND && feature.getId() <= lastId) {
+                        // the page is not the next one, read the whole collection
+                        mSyncPagingIgnored = true;
+                        preferences.edit()
+                                .remove(SettingsConstants.KEY_PREF_SYNC_PAGE_LAST_ID)
+                                .commit();
+                        return false;
                     }
+                    pageLastId = Math.max(pageLastId, feature.getId());
                 }
 
-                deleteFeatures(deleteItems);
-            }
-
-            if (!mTracked) {
-                Cursor changeCursor = FeatureChanges.getChanges(changeTableName);
-                // remove changes already applied on server (delete already deleted id or add already added)
-                if (null != changeCursor) {
-                    try {
-                        if (changeCursor.moveToFirst()) {
-                            int recordIdColumn = changeCursor.getColumnIndex(Constants.FIELD_ID);
-                            int featureIdColumn =
-                                    changeCursor.getColumnIndex(Constants.FIELD_FEATURE_ID);
-                            int operationColumn =
-                                    changeCursor.getColumnIndex(Constants.FIELD_OPERATION);
-                            int attachOperationColumn =
-                                    changeCursor.getColumnIndex(Constants.FIELD_ATTACH_OPERATION);
-
-                            do {
-                                long changeRecordId = changeCursor.getLong(recordIdColumn);
-                                long changeFeatureId = changeCursor.getLong(featureIdColumn);
-                                int changeOperation = changeCursor.getInt(operationColumn);
-                                int attachChangeOperation = changeCursor.getInt(attachOperationColumn);
-
-                                boolean bDeleteChange = true; // if feature not exist on server
-                                for (Feature remoteFeature : features) {
-                                    if (remoteFeature.getId() == changeFeatureId) {
-                                        if (0 != (changeOperation & Constants.CHANGE_OPERATION_NEW)) {
-                                            // if feature already exist, just change it
-                                            FeatureChanges.setOperation(changeTableName, changeRecordId,
-                                                    Constants.CHANGE_OPERATION_CHANGED);
-                                        }
-                                        bDeleteChange = false; // in other cases just apply
-                                        break;
-                                    }
-                                }
-
-                                if ((0 != (changeOperation & Constants.CHANGE_OPERATION_NEW) || 0 != (
-                                        attachChangeOperation & Constants.CHANGE_OPERATION_NEW))
-                                        && bDeleteChange) {
-
-                                    bDeleteChange = false;
-                                }
-
-                                if (bDeleteChange) {
-                                    if (Constants.DEBUG_MODE) {
-                                        Log.d(Constants.TAG,
-                                                "Delete change for feature #" + changeFeatureId +
-                                                        ", changeOperation " + changeOperation +
-                                                        ", attachChangeOperation " +
-                                                        attachChangeOperation);
-                                    }
-                                    // TODO: analise for operation, remove all equal
-                                    FeatureChanges.removeChangeRecord(changeTableName, changeRecordId);
-                                }
-
-                            } while (changeCursor.moveToNext());
-                        }
-                    } catch (Exception e) {
-                        //Log.d(TAG, e.getLocalizedMessage());
-                    } finally {
-                        changeCursor.close();
-                    }
+                boolean isLastPage = features.size() < FEATURES_PAGE_SIZE;
+                reconcileFeatures(features, lastId == Constants.NOT_FOUND ? Long.MIN_VALUE : lastId,
+                        isLastPage ? Long.MAX_VALUE : pageLastId);
+
+                if (isLastPage) {
+                    preferences.edit()
+                            .remove(SettingsConstants.KEY_PREF_SYNC_PAGE_LAST_ID)
+                            .putLong(SettingsConstants.KEY_PREF_LAST_SYNC_TIMESTAMP,
+                                    System.currentTimeMillis())
+                            .commit();
+                    return true;
                 }
+
+                lastId = pageLastId;
+                preferences.edit()
+                        .putLong(SettingsConstants.KEY_PREF_SYNC_PAGE_LAST_ID, lastId)
+                        .commit();
             }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            e.printStackTrace();
+            syncResult.stats.numIoExceptions++;
+            return false;
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            syncResult.stats.numIoExceptions++;
+            return false;
         } catch (SQLiteException | ConcurrentModificationException e) {
             syncResult.stats.numConflictDetectedExceptions++;
             if (Constants.DEBUG_MODE) {
-                Log.d(Constants.TAG, "proceed getChangesFromServer() failed");
+                Log.d(Constants.TAG, "proceed getChangesFromServerPaged() failed");
             }
             e.printStackTrace();
             return false;
         }
+    }
 
-        getPreferences().edit().putLong(SettingsConstants.KEY_PREF_LAST_SYNC_TIMESTAMP, System.currentTimeMillis()).commit();
-        return true;
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    protected void readSyncPage(
+            AccountUtil.AccountData accountData,
+            String url,
+            List<Feature> features)
+            throws IOException
+    {
+        InputStream in = NetworkUtil.openStream(url, accountData.login, accountData.password);
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            List<Field> fields = getFields();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                features.add(NGWUtil.readNGWFeature(reader, fields, mCRS));
+            }
+            reader.endArray();
+        } finally {
+            reader.close();
+        }
     }
 
 
-    protected void createNewFeature(Feature remoteFeature, String authority) {
-        ContentValues values = remoteFeature.getContentValues(true);
-        Uri uri = Uri.parse("content://" + authority + "/" + getPath().getName());
-        //prevent add changes and events
-        uri = uri.buildUpon().fragment(NO_SYNC).build();
-        Uri newFeatureUri = insert(uri, values);
-        if (Constants.DEBUG_MODE) {
-            Log.d(Constants.TAG, "Add new feature from server - " + newFeatureUri.toString());
+    /**
+     * Merge the remote features with the local ones of the ids range: add the new and update the
+     * changed features, delete the local features absent on server and remove the change records
+     * already applied on server. The full sync is reconciled by the ranges of downloaded pages.
+     *
+     * @param features The remote features of the range
+     * @param fromId The range start exclusive, Long.MIN_VALUE for the first range
+     * @param toId The range end inclusive, Long.MAX_VALUE for the last range
+     */
+    protected void reconcileFeatures(
+            List<Feature> features,
+            long fromId,
+            long toId)
+            throws SQLiteException
+    {
+        String changeTableName = getChangeTableName();
+        List<Long> deleteItems = new ArrayList<>();
+        List<Feature> newItems = new ArrayList<>(), updateItems = new ArrayList<>();
+
+        // the ids of remote features and of locally changed features to not query them
+        // for each feature
+        LongHashSet remoteIds = new LongHashSet(features.size());
+        List<Feature> remoteFeatures = new ArrayList<>(features.size());
+        for (Feature remoteFeature : features) {
+            if (remoteFeature.getGeometry() == null || !remoteFeature.getGeometry().isValid()) {
+                continue;
+            }
+            remoteIds.add(remoteFeature.getId());
+            remoteFeatures.add(remoteFeature);
+        }
+        LongHashSet changedIds = new LongHashSet();
+        LongHashSet newIds = new LongHashSet();
+        readChangedIds(changeTableName, changedIds, newIds);
+
+        // merge the remote features with the local ones, both are sorted by id
+        Collections.sort(remoteFeatures, new Comparator<Feature>()
+        {
+            @Override
+            public int compare(
+                    Feature lhs,
+                    Feature rhs)
+            {
+                return lhs.getId() < rhs.getId() ? -1 : (lhs.getId() == rhs.getId() ? 0 : 1);
+            }
+        });
+
+        // the remote features absent locally
+        List<Feature> newFeatures = new ArrayList<>();
+        int remoteSize = remoteFeatures.size();
+        int remote = 0;
+        String selection = null;
+        if (fromId != Long.MIN_VALUE) {
+            selection = Constants.FIELD_ID + " > " + fromId;
+        }
+        if (toId != Long.MAX_VALUE) {
+            selection = (null == selection ? "" : selection + " AND ") + Constants.FIELD_ID + " <= "
+                    + toId;
+        }
+        Cursor cursor = query(null, selection, null, Constants.FIELD_ID + " ASC", null);
+        if (null != cursor) {
+            try {
+                int idColumn = cursor.getColumnIndex(Constants.FIELD_ID);
+                while (cursor.moveToNext()) {
+                    long featureId = cursor.getLong(idColumn);
+                    for (; remote < remoteSize && remoteFeatures.get(remote).getId() < featureId; remote++) {
+                        newFeatures.add(remoteFeatures.get(remote));
+                    }
+
+                    if (remote < remoteSize && remoteFeatures.get(remote).getId() == featureId) {
+                        try {
+                            compareFeature(cursor, remoteFeatures.get(remote),
+                                    changeTableName, changedIds, updateItems);
+                        } catch (Exception e) {
+                            //Log.d(TAG, e.getLocalizedMessage());
+                        }
+                        // skip the duplicated ids
+                        while (remote < remoteSize && remoteFeatures.get(remote).getId() == featureId) {
+                            remote++;
+                        }
+                        continue;
+                    }
+
+                    // remove features not exist on server from local layer
+                    // if local item is in update list and state ADD_NEW skip delete
+                    if (!newIds.contains(featureId) &&
+                            !FeatureChanges.hasFeatureFlags(changeTableName, featureId)) {
+                        deleteItems.add(featureId);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        for (; remote < remoteSize; remote++) {
+            newFeatures.add(remoteFeatures.get(remote));
+        }
+
+        for (Feature remoteFeature : newFeatures) {
+            //if we have changes (delete) not create new feature
+            if (!changedIds.contains(remoteFeature.getId())) {
+                //create new feature with remoteId
+                newItems.add(remoteFeature);
+            }
+        }
+
+        applyFeatureBatch(newItems, updateItems, deleteItems);
+
+        Cursor changeCursor = FeatureChanges.getChanges(changeTableName);
+        // remove changes already applied on server (delete already deleted id or add already added)
+        if (null != changeCursor) {
+            try {
+                if (changeCursor.moveToFirst()) {
+                    int recordIdColumn = changeCursor.getColumnIndex(Constants.FIELD_ID);
+                    int featureIdColumn =
+                            changeCursor.getColumnIndex(Constants.FIELD_FEATURE_ID);
+                    int operationColumn =
+                            changeCursor.getColumnIndex(Constants.FIELD_OPERATION);
+                    int attachOperationColumn =
+                            changeCursor.getColumnIndex(Constants.FIELD_ATTACH_OPERATION);
+
+                    do {
+                        long changeRecordId = changeCursor.getLong(recordIdColumn);
+                        long changeFeatureId = changeCursor.getLong(featureIdColumn);
+                        if (changeFeatureId <= fromId || changeFeatureId > toId) {
+                            continue;
+                        }
+                        int changeOperation = changeCursor.getInt(operationColumn);
+                        int attachChangeOperation = changeCursor.getInt(attachOperationColumn);
+
+                        boolean bDeleteChange = true; // if feature not exist on server
+                        if (remoteIds.contains(changeFeatureId)) {
+                            if (0 != (changeOperation & Constants.CHANGE_OPERATION_NEW)) {
+                                // if feature already exist, just change it
+                                FeatureChanges.setOperation(changeTableName, changeRecordId,
+                                        Constants.CHANGE_OPERATION_CHANGED);
+                            }
+                            bDeleteChange = false; // in other cases just apply
+                        }
+
+                        if ((0 != (changeOperation & Constants.CHANGE_OPERATION_NEW) || 0 != (
+                                attachChangeOperation & Constants.CHANGE_OPERATION_NEW))
+                                && bDeleteChange) {
+
+                            bDeleteChange = false;
+                        }
+
+                        if (bDeleteChange) {
+                            if (Constants.DEBUG_MODE) {
+                                Log.d(Constants.TAG,
+                                        "Delete change for feature #" + changeFeatureId +
+                                                ", changeOperation " + changeOperation +
+                                                ", attachChangeOperation " +
+                                                attachChangeOperation);
+                            }
+                            // TODO: analise for operation, remove all equal
+                            FeatureChanges.removeChangeRecord(changeTableName, changeRecordId);
+                        }
+
+                    } while (changeCursor.moveToNext());
+                }
+            } catch (Exception e) {
+                //Log.d(TAG, e.getLocalizedMessage());
+            } finally {
+                changeCursor.close();
+            }
         }
     }
 
 
-    protected void deleteFeatures(List<Long> deleteItems) {
-        for (long itemId : deleteItems) {
-            if (Constants.DEBUG_MODE) {
-                Log.d(Constants.TAG, "Delete feature #" + itemId + " not exist on server");
+    /**
+     * Read the ids of features in change log
+     * @param changeTableName The change log table
+     * @param changedIds The ids of features with any changes
+     * @param newIds The ids of features created locally
+     */
+    protected void readChangedIds(
+            String changeTableName,
+            LongHashSet changedIds,
+            LongHashSet newIds)
+    {
+        Cursor changeCursor = FeatureChanges.getChanges(changeTableName);
+        if (null == changeCursor) {
+            return;
+        }
+
+        try {
+            int featureIdColumn = changeCursor.getColumnIndex(Constants.FIELD_FEATURE_ID);
+            int operationColumn = changeCursor.getColumnIndex(Constants.FIELD_OPERATION);
+            while (changeCursor.moveToNext()) {
+                long featureId = changeCursor.getLong(featureIdColumn);
+                changedIds.add(featureId);
+                if (0 != (changeCursor.getInt(operationColumn) & Constants.CHANGE_OPERATION_NEW)) {
+                    newIds.add(featureId);
+                }
             }
-            delete(itemId, Constants.FIELD_ID + " = " + itemId, null);
+        } finally {
+            changeCursor.close();
         }
     }
 
-    protected void compareFeature(Cursor cursor, String authority, Feature remoteFeature, String changeTableName) {
-        cursor.moveToFirst();
+
+    /**
+     * Compare the local feature at cursor position with the remote one and apply the changes
+     * @param changedIds The ids of features in change log to skip the change log queries for other
+     *                   features or null to query for each feature
+     * @param updateItems The list to add the feature to if the local one should be updated
+     */
+    protected void compareFeature(Cursor cursor, Feature remoteFeature, String changeTableName, LongHashSet changedIds, List<Feature> updateItems) {
         // with the given ID (remoteFeature.getId()) must be only one feature
         Feature currentFeature = cursorToFeature(cursor);
+        boolean mayHaveChanges = null == changedIds || changedIds.contains(remoteFeature.getId());
 
         //compare features
         boolean eqData = remoteFeature.equalsData(currentFeature);
@@ -1363,7 +2425,7 @@ public class NGWVectorLayer
         //process data
         if (eqData) {
             //remove from changes
-            if (FeatureChanges.isChanges(changeTableName, remoteFeature.getId())) {
+            if (mayHaveChanges && FeatureChanges.isChanges(changeTableName, remoteFeature.getId())) {
                 if (eqAttach && !FeatureChanges.isAttachesForDelete(
                         changeTableName, remoteFeature.getId())
                         || !FeatureChanges.isAttachChanges(
@@ -1375,31 +2437,21 @@ public class NGWVectorLayer
             }
         } else {
             // we have local changes ready for sent to server
-            boolean isChangedLocal = FeatureChanges.isChanges(changeTableName,
+            boolean isChangedLocal = mayHaveChanges && FeatureChanges.isChanges(changeTableName,
                     remoteFeature.getId());
 
             //no local changes - update local feature
             if (!isChangedLocal) {
-                ContentValues values = remoteFeature.getContentValues(false);
-
-                Uri uri = Uri.parse(
-                        "content://" + authority + "/" + getPath().getName());
-                Uri updateUri =
-                        ContentUris.withAppendedId(uri, remoteFeature.getId());
-                updateUri = updateUri.buildUpon().fragment(NO_SYNC).build();
-                //prevent add changes
-                int count = update(updateUri, values, null, null);
+                updateItems.add(remoteFeature);
                 if (Constants.DEBUG_MODE) {
-                    Log.d(Constants.TAG,
-                            "Update feature (" + count + ") from server - " +
-                                    remoteFeature.getId());
+                    Log.d(Constants.TAG, "Update feature from server - " + remoteFeature.getId());
                 }
             }
         }
 
         //process attachments
         if (eqAttach) {
-            if (FeatureChanges.isChanges(changeTableName, remoteFeature.getId())
+            if (mayHaveChanges && FeatureChanges.isChanges(changeTableName, remoteFeature.getId())
                     && (eqData || FeatureChanges.isAttachChanges(
                     changeTableName, remoteFeature.getId()))) {
 
@@ -1413,7 +2465,7 @@ public class NGWVectorLayer
             }
 
         } else {
-            boolean isChangedLocal = FeatureChanges.isAttachChanges(changeTableName,
+            boolean isChangedLocal = mayHaveChanges && FeatureChanges.isAttachChanges(changeTableName,
                     remoteFeature.getId());
 
             if (!isChangedLocal) {
@@ -1439,7 +2491,7 @@ public class NGWVectorLayer
                                 remoteItem)) {
                             long attachIdL =
                                     Long.parseLong(remoteItem.getAttachId());
-                            boolean changeOnServer =
+                            boolean changeOnServer = !mayHaveChanges ||
                                     !FeatureChanges.isAttachChanges(changeTableName,
                                             remoteFeature.getId(), attachIdL);
 
@@ -1460,7 +2512,8 @@ public class NGWVectorLayer
     }
 
 
-    // read layer contents as string
+    // read layer contents as string, the whole collection is read at once for the tracked layer
+    // changes and for the servers without paging
     protected HashMap<Integer, List<Feature>> getFeatures(SyncResult syncResult, boolean tracked) {
         AccountUtil.AccountData accountData;
         try {
@@ -1514,52 +2567,47 @@ public class NGWVectorLayer
             }
         } else {
             try {
-                URL url = new URL(getFeaturesUrl(accountData));
-                Log.d(TAG, "url: " + url.toString());
-                HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-                final String basicAuth =
-                        NetworkUtil.getHTTPBaseAuth(accountData.login, accountData.password);
-                if (null != basicAuth) {
-                    urlConnection.setRequestProperty("Authorization", basicAuth);
-                }
-
-                InputStream in = new ProgressBufferedInputStream(urlConnection.getInputStream(),
-                        urlConnection.getContentLength());
+                String url = getFeaturesUrl(accountData);
+                Log.d(TAG, "url: " + url);
+                // the response is read from the stream without buffering
+                InputStream in =
+                        NetworkUtil.openStream(url, accountData.login, accountData.password);
                 JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
 
-                if (tracked) {
-                    List<Feature> added = new LinkedList<>(), changed = new LinkedList<>(), deleted = new LinkedList<>();
-                    reader.beginObject();
-                    while (reader.hasNext()) {
-                        String name = reader.nextName();
-                        switch (name) {
-                            case "deleted":
-                                reader.beginArray();
-                                while (reader.hasNext())
-                                    deleted.add(new Feature(reader.nextLong(), getFields()));
-                                reader.endArray();
-                                break;
-                            case "added":
-                                readFeatures(reader, added);
-                                break;
-                            case "changed":
-                                readFeatures(reader, changed);
-                                break;
+                try {
+                    if (tracked) {
+                        List<Feature> added = new LinkedList<>(), changed = new LinkedList<>(), deleted = new LinkedList<>();
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String name = reader.nextName();
+                            switch (name) {
+                                case "deleted":
+                                    reader.beginArray();
+                                    while (reader.hasNext())
+                                        deleted.add(new Feature(reader.nextLong(), getFields()));
+                                    reader.endArray();
+                                    break;
+                                case "added":
+                                    readFeatures(reader, added);
+                                    break;
+                                case "changed":
+                                    readFeatures(reader, changed);
+                                    break;
+                            }
                         }
+                        reader.endObject();
+
+                        results.put(0, added);
+                        results.put(1, changed);
+                        results.put(2, deleted);
+                    } else {
+                        List<Feature> features = new LinkedList<>();
+                        readFeatures(reader, features);
+                        results.put(0, features);
                     }
-                    reader.endObject();
-
-                    results.put(0, added);
-                    results.put(1, changed);
-                    results.put(2, deleted);
-                } else {
-                    List<Feature> features = new LinkedList<>();
-                    readFeatures(reader, features);
-                    results.put(0, features);
+                } finally {
+                    reader.close();
                 }
-                reader.close();
-
-                urlConnection.disconnect();
             } catch (MalformedURLException e) {
                 e.printStackTrace();
                 syncResult.stats.numParseExceptions++;
@@ -1748,6 +2796,13 @@ public class NGWVectorLayer
 
     protected String cursorToJson(Cursor cursor)
             throws JSONException, IOException, ClassNotFoundException
+    {
+        return cursorToJsonObject(cursor).toString();
+    }
+
+
+    protected JSONObject cursorToJsonObject(Cursor cursor)
+            throws JSONException, IOException, ClassNotFoundException
     {
         JSONObject rootObject = new JSONObject();
         if (0 != (mSyncType & Constants.SYNC_ATTRIBUTES)) {
@@ -1832,7 +2887,7 @@ public class NGWVectorLayer
             //rootObject.put("id", cursor.getLong(cursor.getColumnIndex(FIELD_ID)));
         }
 
-        return rootObject.toString();
+        return rootObject;
     }
 
 
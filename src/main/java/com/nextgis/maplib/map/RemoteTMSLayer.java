@@ -25,10 +25,11 @@ package com.nextgis.maplib.map;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.nextgis.maplib.api.ITileStore;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.TileItem;
 import com.nextgis.maplib.util.Constants;
@@ -38,16 +39,31 @@ import com.nextgis.maplib.util.NetworkUtil;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.nextgis.maplib.util.Constants.DEFAULT_TILE_MAX_AGE;
+import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME;
+import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME_UNIT;
 import static com.nextgis.maplib.util.Constants.LAYERTYPE_REMOTE_TMS;
 import static com.nextgis.maplib.util.Constants.NOT_FOUND;
 import static com.nextgis.maplib.util.Constants.TAG;
@@ -61,20 +77,45 @@ public class RemoteTMSLayer
     protected static final String JSON_LOGIN_KEY    = "login";
     protected static final String JSON_PASSWORD_KEY = "password";
     protected static final String JSON_TILE_AGE_KEY = "tile_age";
+    protected static final String JSON_CACHE_QUOTA_KEY = "cache_quota";
 
     protected       String       mURL;
     protected       NetworkUtil  mNet;
     protected final List<String> mSubdomains;
     protected       String       mSubDomainsMask;
-    protected       int          mCurrentSubdomain;
+    protected final AtomicInteger mCurrentSubdomain;
     protected       String       mLogin;
     protected       String       mPassword;
     protected       String       mStartDate, mEndDate;
     protected       Semaphore    mAvailable;
+    // the download threads of each subdomain, one if the url has no subdomains
+    protected       Semaphore[]  mSubdomainPermits;
     protected long mTileMaxAge;
+    protected long mCacheQuota;
+    protected final AtomicLong mMemoryHitCount, mStoreHitCount, mMissCount;
+    protected final Set<String> mRefreshingTiles;
+    protected final ConcurrentMap<String, FutureTask<Bitmap>>  mBitmapRequests;
+    protected final ConcurrentMap<String, FutureTask<Integer>> mDownloadRequests;
+    protected ThreadPoolExecutor mRefreshExecutor;
+
+    protected static final int REFRESH_THREADS        = 2;
+    protected static final int MAX_REFRESH_QUEUE_SIZE = 256;
 
     public final static long DELAY = NetworkUtil.TIMEOUT_SOCKET + NetworkUtil.TIMEOUT_CONNECTION;
 
+    /**
+     * The tile is stored or not modified
+     */
+    public static final int DOWNLOAD_OK       = 0;
+    /**
+     * The tile is not downloaded, i.e. on network error, and may be downloaded on retry
+     */
+    public static final int DOWNLOAD_FAILED   = 1;
+    /**
+     * The server answered with client error, i.e. 404 for the tile out of the layer coverage
+     */
+    public static final int DOWNLOAD_REJECTED = 2;
+
 
     public RemoteTMSLayer(
             Context context,
@@ -84,9 +125,16 @@ public class RemoteTMSLayer
 
         mNet = new NetworkUtil(context);
         mSubdomains = new ArrayList<>();
-        mCurrentSubdomain = 0;
+        mCurrentSubdomain = new AtomicInteger();
         mLayerType = LAYERTYPE_REMOTE_TMS;
         mTileMaxAge = DEFAULT_TILE_MAX_AGE;
+        mRefreshingTiles = Collections.synchronizedSet(new HashSet<String>());
+        mBitmapRequests = new ConcurrentHashMap<>();
+        mDownloadRequests = new ConcurrentHashMap<>();
+        mMemoryHitCount = new AtomicLong();
+        mStoreHitCount = new AtomicLong();
+        mMissCount = new AtomicLong();
+        TileCacheManager.getInstance().register(this);
         setViewSize(100, 100);
     }
 
@@ -104,36 +152,94 @@ public class RemoteTMSLayer
                         getMaxThreadCount());
     }
 
-    public void downloadTile(TileItem tile){
+    /**
+     * Download the tile to the tile store if it is absent or older than tile max age
+     * @param tile The tile
+     * @return true if the tile is in store and up to date
+     */
+    public boolean downloadTile(TileItem tile){
+        return downloadTileResult(tile) == DOWNLOAD_OK;
+    }
+
+
+    /**
+     * Download the tile to the tile store if it is absent or older than tile max age
+     * @param tile The tile
+     * @return DOWNLOAD_OK, DOWNLOAD_FAILED or DOWNLOAD_REJECTED
+     */
+    public int downloadTileResult(TileItem tile)
+    {
         if (null == tile) {
-            return;
+            return DOWNLOAD_REJECTED;
         }
 
         // try to get tile from local cache
-        File tilePath = new File(mPath, tile.toString("{z}/{x}/{y}" + TILE_EXT));
-        boolean exist = tilePath.exists();
-        if (exist && System.currentTimeMillis() - tilePath.lastModified() < mTileMaxAge) {
-            return;
+        if (isTileFresh(tile)) {
+            return DOWNLOAD_OK;
         }
 
+        return fetchTileResult(tile);
+    }
+
+
+    /**
+     * Download the tile to the tile store. The concurrent requests of the same tile share one
+     * download.
+     * @return true if the tile is stored or not modified
+     */
+    protected boolean fetchTile(TileItem tile)
+    {
+        return fetchTileResult(tile) == DOWNLOAD_OK;
+    }
+
+
+    protected int fetchTileResult(final TileItem tile)
+    {
+        Integer result = runOnce(mDownloadRequests, tile.getHash(), new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+            {
+                return fetchTileInt(tile);
+            }
+        });
+        return null == result ? DOWNLOAD_FAILED : result;
+    }
+
+
+    protected int fetchTileInt(TileItem tile)
+    {
         if (!mNet.isNetworkAvailable()) {
-            return;
+            return DOWNLOAD_FAILED;
         }
 
-        // try to get tile from remote
-        String url = tile.toString(getURLSubdomain());
-        Log.d(TAG, "url: " + url);
+        String url = null;
         try {
 
             if (!mAvailable.tryAcquire(DELAY, TimeUnit.MILLISECONDS)) {
-                return;
+                return DOWNLOAD_FAILED;
             }
 
-            FileUtil.createDir(tilePath.getParentFile());
-            OutputStream output = new FileOutputStream(tilePath.getAbsolutePath());
-            NetworkUtil.getStream(url, getLogin(), getPassword(), output);
+            if(Constants.DEBUG_MODE)
+                Log.d(TAG, "Semaphore left: " + mAvailable.availablePermits());
 
-            mAvailable.release();
+            try {
+                // try to get tile from remote, the subdomain with free thread is used
+                int subdomain = acquireSubdomain();
+                if (subdomain == NOT_FOUND) {
+                    return DOWNLOAD_FAILED;
+                }
+                try {
+                    url = tile.toString(getURLSubdomain(subdomain));
+                    if(Constants.DEBUG_MODE)
+                        Log.d(TAG, "url: " + url);
+                    return storeTile(tile, url);
+                } finally {
+                    mSubdomainPermits[subdomain].release();
+                }
+            } finally {
+                mAvailable.release();
+            }
 
         } catch (InterruptedException | IOException | IllegalArgumentException e) {
             e.printStackTrace();
@@ -141,8 +247,215 @@ public class RemoteTMSLayer
                     TAG, "Problem downloading MapTile: " + url + " Error: " +
                             e.getLocalizedMessage());
         }
+        return DOWNLOAD_FAILED;
+    }
+
+
+    /**
+     * Acquire the download thread of the subdomain, the subdomains are tried in turn from the
+     * next one and if all are busy the next one is waited for
+     * @return The subdomain index or NOT_FOUND if no thread is free in DELAY time
+     */
+    protected int acquireSubdomain()
+            throws InterruptedException
+    {
+        Semaphore[] permits = mSubdomainPermits;
+        int first = (mCurrentSubdomain.getAndIncrement() & Integer.MAX_VALUE) % permits.length;
+        for (int i = 0; i < permits.length; i++) {
+            int subdomain = (first + i) % permits.length;
+            if (permits[subdomain].tryAcquire()) {
+                return subdomain;
+            }
+        }
+
+        if (permits[first].tryAcquire(DELAY, TimeUnit.MILLISECONDS)) {
+            return first;
+        }
+        return NOT_FOUND;
+    }
+
+
+    /**
+     * Get the tile size to estimate the download size: the stored tile size or the content length
+     * the server answers to HEAD request
+     * @param tile The tile
+     * @return The size in bytes or NOT_FOUND if unknown
+     */
+    public long getTileSize(TileItem tile)
+    {
+        byte[] data = getTileStore().getTile(tile);
+        if (null != data) {
+            return data.length;
+        }
+        if (!mNet.isNetworkAvailable()) {
+            return NOT_FOUND;
+        }
+
+        String url = tile.toString(getURLSubdomain());
+        try {
+            Semaphore permits = NetworkUtil.acquireHost(url);
+            try {
+                HttpURLConnection conn =
+                        NetworkUtil.getHttpConnection("HEAD", url, getLogin(), getPassword());
+                if (null == conn) {
+                    return NOT_FOUND;
+                }
+                long size = NOT_FOUND;
+                if (NetworkUtil.getResponseCode(conn) == HttpURLConnection.HTTP_OK) {
+                    size = conn.getContentLength();
+                }
+                NetworkUtil.closeResponse(conn);
+                return size > 0 ? size : NOT_FOUND;
+            } finally {
+                permits.release();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return NOT_FOUND;
+        }
+    }
+
+
+    /**
+     * @return true if the tile is in tile store and younger than tile max age
+     */
+    public boolean isTileFresh(TileItem tile)
+    {
+        long timestamp = getTileStore().getTileTimestamp(tile);
+        return timestamp != NOT_FOUND && System.currentTimeMillis() - timestamp < mTileMaxAge;
     }
 
+
+    /**
+     * Download the tile to the tile store. If the tile is already stored, the request is
+     * conditional and the server answer 304 Not Modified only updates the tile time.
+     * @return DOWNLOAD_OK if the tile is stored or not modified, DOWNLOAD_FAILED or
+     * DOWNLOAD_REJECTED
+     */
+    protected int storeTile(
+            TileItem tile,
+            String url)
+            throws IOException
+    {
+        ITileStore store = getTileStore();
+        long timestamp = store.getTileTimestamp(tile);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        String etag;
+        Semaphore permits = NetworkUtil.acquireHost(url);
+        try {
+            final HttpURLConnection conn =
+                    NetworkUtil.getHttpConnection("GET", url, getLogin(), getPassword());
+            if (null == conn) {
+                return DOWNLOAD_FAILED;
+            }
+
+            if (timestamp != NOT_FOUND) {
+                String storedETag = store.getTileETag(tile);
+                if (!TextUtils.isEmpty(storedETag)) {
+                    conn.setRequestProperty("If-None-Match", storedETag);
+                }
+                if (timestamp > 0) {
+                    conn.setIfModifiedSince(timestamp);
+                }
+            }
+
+            int responseCode = NetworkUtil.getResponseCode(conn);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                store.touchTile(tile);
+                NetworkUtil.closeResponse(conn);
+                return DOWNLOAD_OK;
+            }
+
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(TAG, "Problem downloading tile: " + url + " HTTP response: " +
+                            responseCode);
+                }
+                NetworkUtil.closeResponse(conn);
+                return isClientError(responseCode) ? DOWNLOAD_REJECTED : DOWNLOAD_FAILED;
+            }
+
+            byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+            InputStream is = NetworkUtil.getInputStream(conn);
+            FileUtil.copyStream(is, output, buffer, Constants.IO_BUFFER_SIZE);
+            is.close();
+            etag = conn.getHeaderField("ETag");
+        } finally {
+            permits.release();
+        }
+
+        if (output.size() == 0) {
+            return DOWNLOAD_FAILED;
+        }
+        if (!store.putTile(tile, output.toByteArray(), etag)) {
+            return DOWNLOAD_FAILED;
+        }
+        TileCacheManager.getInstance().onTileStored();
+
+        // the changed tile is decoded again on next draw
+        if (timestamp != NOT_FOUND) {
+            removeBitmapFromCache(tile.getHash());
+        }
+        return DOWNLOAD_OK;
+    }
+
+
+    /**
+     * @return true for 4xx response except timeout and rate limit which may pass on retry
+     */
+    protected static boolean isClientError(int responseCode)
+    {
+        return responseCode >= 400 && responseCode < 500
+                && responseCode != HttpURLConnection.HTTP_CLIENT_TIMEOUT && responseCode != 429;
+    }
+
+
+    /**
+     * Revalidate the stale tile in background. The refresh threads count is limited and each tile
+     * is queued only once.
+     */
+    protected void refreshTile(final TileItem tile)
+    {
+        final String hash = tile.getHash();
+        if (!mRefreshingTiles.add(hash)) {
+            return;
+        }
+
+        try {
+            getRefreshExecutor().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        downloadTile(tile);
+                    } finally {
+                        mRefreshingTiles.remove(hash);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the queue is full, the tile will be refreshed next time it is drawn
+            mRefreshingTiles.remove(hash);
+        }
+    }
+
+
+    protected synchronized ThreadPoolExecutor getRefreshExecutor()
+    {
+        if (null == mRefreshExecutor) {
+            mRefreshExecutor = new ThreadPoolExecutor(
+                    REFRESH_THREADS, REFRESH_THREADS, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT,
+                    new LinkedBlockingQueue<Runnable>(MAX_REFRESH_QUEUE_SIZE));
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                mRefreshExecutor.allowCoreThreadTimeOut(true);
+            }
+        }
+        return mRefreshExecutor;
+    }
+
+
     @Override
     public Bitmap getBitmap(final TileItem tile)
     {
@@ -150,80 +463,97 @@ public class RemoteTMSLayer
             return null;
         }
 
+        if (isOverzoom(tile)) {
+            return getOverzoomBitmap(tile);
+        }
+
         Bitmap ret = getBitmapFromCache(tile.getHash());
         if (null != ret) {
+            mMemoryHitCount.incrementAndGet();
             return ret;
         }
 
-        // try to get tile from local cache
-        File tilePath = new File(mPath, tile.toString("{z}/{x}/{y}" + TILE_EXT));
-        boolean exist = tilePath.exists();
-        //Log.d(TAG, "time diff: " + (System.currentTimeMillis() - tilePath.lastModified()) + " age: " + DEFAULT_TILE_MAX_AGE);
-        if (exist) {
-            ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
-            if (ret != null) {
-                putBitmapToCache(tile.getHash(), ret);
-                if(System.currentTimeMillis() - tilePath.lastModified() > mTileMaxAge) {
-                    if(Constants.DEBUG_MODE)
-                        Log.d(Constants.TAG, "Update old tile " + tile.toString() + " tile date:" + tilePath.lastModified() + " current date:" + System.currentTimeMillis());
-                    // update tile
-                    new Thread(new Runnable() {
-                        public void run() {
-                            downloadTile(tile);
-                        }
-                    }).start();
-                }
-                return ret;
+        // the concurrent requests of the same tile share one read, download and decode
+        final boolean[] loaded = {false};
+        ret = runOnce(mBitmapRequests, tile.getHash(), new Callable<Bitmap>()
+        {
+            @Override
+            public Bitmap call()
+            {
+                loaded[0] = true;
+                return loadBitmap(tile);
             }
+        });
+        if (loaded[0] || null == ret) {
+            return ret;
         }
 
-        if (!mNet.isNetworkAvailable()) { //return tile from cache
-            return null;
+        // the loaded bitmap is acquired for the loading caller only, others get their own
+        Bitmap cached = getBitmapFromCache(tile.getHash());
+        if (null != cached) {
+            return cached;
         }
+        return decodeBitmap(tile, readTile(tile));
+    }
 
-        // try to get tile from remote
-        String url = tile.toString(getURLSubdomain());
-        if(Constants.DEBUG_MODE)
-            Log.d(TAG, "url: " + url);
-        try {
 
-            if (!mAvailable.tryAcquire(DELAY, TimeUnit.MILLISECONDS)) { //.acquire();
-                if (exist) //if exist but not reload from internet
-                {
-                    ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
-                }
+    protected Bitmap loadBitmap(final TileItem tile)
+    {
+        // the tile may be loaded by previous request just now
+        Bitmap ret = getBitmapFromCache(tile.getHash());
+        if (null != ret) {
+            return ret;
+        }
 
-                putBitmapToCache(tile.getHash(), ret);
+        // try to get tile from local cache
+        byte[] data = readTile(tile);
+        if (null != data) {
+            ret = decodeBitmap(tile, data);
+            if (ret != null) {
                 return ret;
             }
+        }
 
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Semaphore left: " + mAvailable.availablePermits());
-
-            FileUtil.createDir(tilePath.getParentFile());
-            OutputStream output = new FileOutputStream(tilePath.getAbsolutePath());
-            NetworkUtil.getStream(url, getLogin(), getPassword(), output);
+        return decodeBitmap(tile, fetchTileData(tile));
+    }
 
-            mAvailable.release();
 
-            ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
-            putBitmapToCache(tile.getHash(), ret);
-            return ret;
+    /**
+     * Read the stored tile and queue the refresh of the tile older than tile max age
+     */
+    @Override
+    public byte[] readTile(TileItem tile)
+    {
+        ITileStore store = getTileStore();
+        byte[] data = store.getTile(tile);
+        if (null == data) {
+            return null;
+        }
 
-        } catch (InterruptedException | IOException | IllegalArgumentException e) {
-            e.printStackTrace();
-            Log.d(
-                    TAG, "Problem downloading MapTile: " + url + " Error: " +
-                         e.getLocalizedMessage());
+        mStoreHitCount.incrementAndGet();
+        long timestamp = store.getTileTimestamp(tile);
+        if(System.currentTimeMillis() - timestamp > mTileMaxAge) {
+            if(Constants.DEBUG_MODE)
+                Log.d(Constants.TAG, "Update old tile " + tile.toString() + " tile date:" + timestamp + " current date:" + System.currentTimeMillis());
+            // update tile
+            refreshTile(tile);
         }
+        return data;
+    }
 
-        if (exist) //if exist but not reload from internet
-        {
-            ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
-            putBitmapToCache(tile.getHash(), ret);
-            return ret;
+
+    /**
+     * Download the tile absent in tile store
+     * @param tile The tile
+     * @return The downloaded tile data or null
+     */
+    public byte[] fetchTileData(TileItem tile)
+    {
+        mMissCount.incrementAndGet();
+        if (!fetchTile(tile)) {
+            return null;
         }
-        return null;
+        return getTileStore().getTile(tile);
     }
 
 
@@ -245,6 +575,7 @@ public class RemoteTMSLayer
         }
 
         rootConfig.put(JSON_TILE_AGE_KEY, mTileMaxAge);
+        rootConfig.put(JSON_CACHE_QUOTA_KEY, mCacheQuota);
 
         return rootConfig;
     }
@@ -271,6 +602,8 @@ public class RemoteTMSLayer
             mTileMaxAge = jsonObject.getLong(JSON_TILE_AGE_KEY);
         }
 
+        mCacheQuota = jsonObject.optLong(JSON_CACHE_QUOTA_KEY, 0);
+
         analizeURL(mURL);
     }
 
@@ -289,6 +622,16 @@ public class RemoteTMSLayer
 
 
     protected String getURLSubdomain()
+    {
+        return getURLSubdomain(mCurrentSubdomain.getAndIncrement() & Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * @param index The subdomain index, taken modulo the subdomains count
+     * @return The url with the subdomain and dates
+     */
+    protected String getURLSubdomain(int index)
     {
         String result = mURL;
 
@@ -301,11 +644,7 @@ public class RemoteTMSLayer
             return result;
         }
 
-        if (mCurrentSubdomain >= mSubdomains.size()) {
-            mCurrentSubdomain = 0;
-        }
-
-        String subdomain = mSubdomains.get(mCurrentSubdomain++);
+        String subdomain = mSubdomains.get(index % mSubdomains.size());
         return result.replace(mSubDomainsMask, subdomain);
     }
 
@@ -353,6 +692,11 @@ public class RemoteTMSLayer
         }
 
         mAvailable = new Semaphore(getMaxThreadCount(), true);
+        Semaphore[] permits = new Semaphore[Math.max(mSubdomains.size(), 1)];
+        for (int i = 0; i < permits.length; i++) {
+            permits[i] = new Semaphore(HTTP_SEPARATE_THREADS, true);
+        }
+        mSubdomainPermits = permits;
     }
 
 
@@ -407,6 +751,55 @@ public class RemoteTMSLayer
         mTileMaxAge = tileMaxAge;
     }
 
+    public long getCacheQuota() {
+        return mCacheQuota;
+    }
+
+    /**
+     * @param cacheQuota The maximum size of layer tiles on disk in bytes, 0 for no limit
+     */
+    public void setCacheQuota(long cacheQuota) {
+        mCacheQuota = cacheQuota;
+        TileCacheManager.getInstance().onTileStored();
+    }
+
+    /**
+     * @return The count of tiles found in memory cache
+     */
+    public long getMemoryHitCount() {
+        return mMemoryHitCount.get();
+    }
+
+    /**
+     * @return The count of tiles read from tile store
+     */
+    public long getStoreHitCount() {
+        return mStoreHitCount.get();
+    }
+
+    /**
+     * @return The count of tiles requested from server
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return The part of tiles got without network requests, 0..1
+     */
+    public float getHitRate() {
+        long hits = mMemoryHitCount.get() + mStoreHitCount.get();
+        long total = hits + mMissCount.get();
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    @Override
+    public boolean delete()
+    {
+        TileCacheManager.getInstance().unregister(this);
+        return super.delete();
+    }
+
     public void setStartDate(String startDate) {
         mStartDate = startDate;
     }
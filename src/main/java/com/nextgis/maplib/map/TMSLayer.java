@@ -25,16 +25,23 @@ package com.nextgis.maplib.map;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.util.Log;
 
 import com.nextgis.maplib.R;
 import com.nextgis.maplib.api.IJSONStore;
 import com.nextgis.maplib.api.IProgressor;
+import com.nextgis.maplib.api.ITileStore;
+import com.nextgis.maplib.datasource.FileTileStore;
+import com.nextgis.maplib.datasource.MBTilesTileStore;
 import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.datasource.ZipTileStore;
 import com.nextgis.maplib.display.TMSRenderer;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplib.util.NGException;
 
 import org.json.JSONException;
@@ -43,8 +50,10 @@ import org.json.JSONObject;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -56,14 +65,31 @@ public abstract class TMSLayer
 {
     protected static final String JSON_TMSTYPE_KEY     = "tms_type";
     protected static final String JSON_CACHE_SIZE_MULT = "cache_size_multiply";
+    protected static final String JSON_TILE_STORE_KEY  = "tile_store";
+    protected static final String JSON_MAX_NATIVE_ZOOM = "max_native_zoom";
+    protected static final String JSON_RGB_565_KEY     = "decode_rgb_565";
+    protected static final String JSON_DOWNSAMPLE_KEY  = "decode_downsample";
+    protected static final int MAX_ANCESTOR_LEVELS = 4;
     public static final String TILE_EXT = ".tile";
+    public static final String TILE_STORE_FILE = "tiles" + MBTilesTileStore.MBTILES_EXT;
+    public static final String TILE_STORE_ZIP_FILE = "tiles.zip";
+
+    public static final int TILE_STORE_FILES   = 1;
+    public static final int TILE_STORE_MBTILES = 2;
+    public static final int TILE_STORE_ZIP     = 3;
 
     protected int mTMSType;
     protected static final int HTTP_SEPARATE_THREADS = 2;
-    protected Map<String, Bitmap> mBitmapCache;
-    protected int                 mCacheSize, mCacheSizeMult;
+    protected int mCacheSizeMult;
     protected int mViewWidth, mViewHeight;
-    protected final Object lock = new Object();
+    protected String mCacheKeyPrefix;
+    protected int        mTileStoreType;
+    protected ITileStore mTileStore;
+    protected int        mMaxNativeZoom;
+    protected boolean    mDecodeRGB565;
+    protected boolean    mDecodeDownsample;
+    protected volatile int mDecodeTileSize;
+    protected volatile int mSourceTileSize;
 
 
     protected TMSLayer(
@@ -73,6 +99,11 @@ public abstract class TMSLayer
         super(context, path);
 
         mCacheSizeMult = 0;
+        mTileStoreType = TILE_STORE_MBTILES;
+        mMaxNativeZoom = Constants.NOT_FOUND;
+        mDecodeRGB565 = false;
+        mDecodeDownsample = true;
+        mDecodeTileSize = Constants.DEFAULT_TILE_SIZE;
         mRenderer = new TMSRenderer(this);
     }
 
@@ -86,11 +117,199 @@ public abstract class TMSLayer
     public void setTMSType(int type)
     {
         mTMSType = type;
+        closeTileStore();
+    }
+
+
+    public int getTileStoreType()
+    {
+        return mTileStoreType;
+    }
+
+
+    /**
+     * Set the tiles storage type. The tiles already stored are not converted.
+     * @param type TILE_STORE_FILES, TILE_STORE_MBTILES or read only TILE_STORE_ZIP
+     */
+    public void setTileStoreType(int type)
+    {
+        mTileStoreType = type;
+        closeTileStore();
+    }
+
+
+    /**
+     * @return The tiles storage of the layer, created on first call
+     */
+    public synchronized ITileStore getTileStore()
+    {
+        if (null == mTileStore) {
+            if (mTileStoreType == TILE_STORE_MBTILES) {
+                mTileStore = new MBTilesTileStore(new File(mPath, TILE_STORE_FILE), mTMSType);
+            } else if (mTileStoreType == TILE_STORE_ZIP) {
+                mTileStore = new ZipTileStore(new File(mPath, TILE_STORE_ZIP_FILE));
+            } else {
+                mTileStore = new FileTileStore(mPath);
+            }
+        }
+        return mTileStore;
+    }
+
+
+    /**
+     * Close the tile store after its running queries, the renderer and download threads still
+     * holding the closed store get no tiles from it instead of reopening it
+     */
+    protected synchronized void closeTileStore()
+    {
+        if (null != mTileStore) {
+            mTileStore.close();
+            mTileStore = null;
+        }
+    }
+
+
+    protected Bitmap decodeTile(byte[] data)
+    {
+        if (!mDecodeDownsample) {
+            return TileBitmapCache.getInstance().decode(
+                    data, mDecodeRGB565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888, 0);
+        }
+
+        if (mSourceTileSize <= 0 && null != data) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            mSourceTileSize = Math.min(options.outWidth, options.outHeight);
+        }
+        return TileBitmapCache.getInstance().decode(
+                data, mDecodeRGB565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888,
+                mDecodeTileSize);
     }
 
+
+    /**
+     * Set the size in pixels the tiles are drawn with now, the larger tiles are decoded with
+     * sampling down to this size
+     * @param tileSize The tile draw size, see {@link com.nextgis.maplib.display.GISDisplay#getTileDrawSize()}
+     */
+    public void setDecodeTileSize(int tileSize)
+    {
+        if (tileSize > 0) {
+            mDecodeTileSize = tileSize;
+        }
+    }
+
+
+    /**
+     * @param bitmap The decoded tile bitmap
+     * @return true if the bitmap was sampled down to the size less than the tiles are drawn with
+     * now, so it should be decoded again to not be drawn blurred
+     */
+    public boolean isBitmapUndersized(Bitmap bitmap)
+    {
+        if (!mDecodeDownsample || null == bitmap) {
+            return false;
+        }
+        int size = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        return size < mDecodeTileSize && size < mSourceTileSize;
+    }
+
+
+    public boolean isDecodeRGB565()
+    {
+        return mDecodeRGB565;
+    }
+
+
+    /**
+     * Decode tiles to RGB_565 bitmaps using half the memory of ARGB_8888 ones. The transparency is
+     * lost, so use it for opaque sources like satellite imagery only.
+     * @param decodeRGB565 true to decode to RGB_565
+     */
+    public void setDecodeRGB565(boolean decodeRGB565)
+    {
+        mDecodeRGB565 = decodeRGB565;
+        clearBitmapCache();
+    }
+
+
+    public boolean isDecodeDownsample()
+    {
+        return mDecodeDownsample;
+    }
+
+
+    /**
+     * Decode the tiles larger than twice the size they are drawn with (i.e. 512 or 1024 pixels
+     * tiles) with sampling as they are drawn with scale less than 0.5
+     * @param decodeDownsample true to decode with sampling
+     */
+    public void setDecodeDownsample(boolean decodeDownsample)
+    {
+        mDecodeDownsample = decodeDownsample;
+        clearBitmapCache();
+    }
+
+
+    /**
+     * Read the tile data from the tile store only, without decoding and network access
+     * @param tile The tile
+     * @return The tile data or null if the tile is not stored
+     */
+    public byte[] readTile(TileItem tile)
+    {
+        return getTileStore().getTile(tile);
+    }
+
+
+    /**
+     * Decode the tile data read by {@link #readTile(TileItem)} and put the bitmap to memory cache
+     * @param tile The tile
+     * @param data The tile data
+     * @return The bitmap or null if the data is not decoded, release it by
+     * {@link #releaseBitmap(Bitmap)} when it is drawn
+     */
+    public Bitmap decodeBitmap(
+            TileItem tile,
+            byte[] data)
+    {
+        Bitmap ret = decodeTile(data);
+        if (null != ret) {
+            putBitmapToCache(tile.getHash(), ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Get the tile bitmap from memory cache, disk or network
+     * @param tile The tile
+     * @return The bitmap or null, release it by {@link #releaseBitmap(Bitmap)} when it is drawn
+     */
     public abstract Bitmap getBitmap(TileItem tile);
 
 
+    /**
+     * Release the bitmap got from this layer, so its memory is reused to decode other tiles when
+     * it leaves memory cache. Do not use the bitmap after release. The bitmap which is not
+     * released is not reused and collected as usual.
+     * @param bitmap The bitmap or null
+     */
+    public void releaseBitmap(Bitmap bitmap)
+    {
+        TileBitmapCache.getInstance().release(bitmap);
+    }
+
+
+    protected String getCacheKey(String tileHash)
+    {
+        if (null == mCacheKeyPrefix) {
+            mCacheKeyPrefix = mPath.getAbsolutePath() + "/";
+        }
+        return mCacheKeyPrefix + tileHash;
+    }
+
+
     protected void putBitmapToCache(
             String tileHash,
             Bitmap bitmap)
@@ -98,11 +317,7 @@ public abstract class TMSLayer
         if (mCacheSizeMult == 0) {
             return;
         }
-        synchronized (lock) {
-            if (mBitmapCache != null) {
-                mBitmapCache.put(tileHash, bitmap);
-            }
-        }
+        TileBitmapCache.getInstance().put(getCacheKey(tileHash), bitmap);
     }
 
 
@@ -111,15 +326,162 @@ public abstract class TMSLayer
         if (mCacheSizeMult == 0) {
             return null;
         }
-        synchronized (lock) {
-            if (mBitmapCache != null) {
-                return mBitmapCache.get(tileHash);
+        return TileBitmapCache.getInstance().get(getCacheKey(tileHash));
+    }
+
+
+    protected void removeBitmapFromCache(String tileHash)
+    {
+        TileBitmapCache.getInstance().remove(getCacheKey(tileHash));
+    }
+
+
+    public boolean isBitmapCacheEnabled()
+    {
+        return mCacheSizeMult != 0;
+    }
+
+
+    /**
+     * @return The maximum zoom level the tiles exist for or Constants.NOT_FOUND if not limited
+     */
+    public int getMaxNativeZoom()
+    {
+        return mMaxNativeZoom;
+    }
+
+
+    /**
+     * Set the maximum zoom level the tiles exist for. The tiles of greater zoom levels are cut
+     * from the tiles of this level without any network requests.
+     * @param maxNativeZoom The zoom level or Constants.NOT_FOUND to not limit
+     */
+    public void setMaxNativeZoom(int maxNativeZoom)
+    {
+        mMaxNativeZoom = maxNativeZoom;
+    }
+
+
+    public boolean isOverzoom(TileItem tile)
+    {
+        int maxNativeZoom = getMaxNativeZoom();
+        return maxNativeZoom != Constants.NOT_FOUND && tile.getZoomLevel() > maxNativeZoom;
+    }
+
+
+    /**
+     * Get the tile of zoom level greater than max native zoom cut from the native zoom tile
+     * @param tile The tile
+     * @return The bitmap or null
+     */
+    protected Bitmap getOverzoomBitmap(TileItem tile)
+    {
+        Bitmap ret = getBitmapFromCache(tile.getHash());
+        if (null != ret) {
+            return ret;
+        }
+
+        int levels = tile.getZoomLevel() - getMaxNativeZoom();
+        Bitmap ancestor = getBitmap(getAncestor(tile, levels));
+        if (null == ancestor) {
+            return null;
+        }
+
+        ret = cropAncestor(ancestor, tile, levels);
+        releaseBitmap(ancestor);
+        putBitmapToCache(tile.getHash(), ret);
+        return ret;
+    }
+
+
+    /**
+     * Get the part of nearest ancestor tile covering the tile without network access: from memory
+     * cache first and then from the tile store. Used to draw the placeholder while the tile loads.
+     * @param tile The tile
+     * @return The cropped bitmap or null
+     */
+    public Bitmap getPlaceholderBitmap(TileItem tile)
+    {
+        int maxLevels = Math.min(MAX_ANCESTOR_LEVELS, tile.getZoomLevel());
+        for (int levels = 1; levels <= maxLevels; levels++) {
+            Bitmap ancestor = getBitmapFromCache(getAncestor(tile, levels).getHash());
+            if (null != ancestor) {
+                Bitmap ret = cropAncestor(ancestor, tile, levels);
+                releaseBitmap(ancestor);
+                return ret;
+            }
+        }
+
+        for (int levels = 1; levels <= maxLevels; levels++) {
+            TileItem ancestorTile = getAncestor(tile, levels);
+            Bitmap ancestor = decodeTile(getTileStore().getTile(ancestorTile));
+            if (null != ancestor) {
+                putBitmapToCache(ancestorTile.getHash(), ancestor);
+                Bitmap ret = cropAncestor(ancestor, tile, levels);
+                releaseBitmap(ancestor);
+                return ret;
             }
         }
         return null;
     }
 
 
+    protected TileItem getAncestor(
+            TileItem tile,
+            int levels)
+    {
+        int zoom = tile.getZoomLevel() - levels;
+        int x = tile.getX() >> levels;
+        int y = tile.getY() >> levels;
+        return new TileItem(x, y, zoom, MapUtil.getTileEnvelope(x, y, zoom, mTMSType));
+    }
+
+
+    protected Bitmap cropAncestor(
+            Bitmap ancestor,
+            TileItem tile,
+            int levels)
+    {
+        int scale = 1 << levels;
+        int width = ancestor.getWidth();
+        int height = ancestor.getHeight();
+        int cropWidth = Math.max(width / scale, 1);
+        int cropHeight = Math.max(height / scale, 1);
+
+        int dx = tile.getX() & (scale - 1);
+        int dy = tile.getY() & (scale - 1);
+        // the bitmap rows go from top, the tiles rows of normal TMS go from bottom
+        if (mTMSType != GeoConstants.TMSTYPE_OSM) {
+            dy = scale - 1 - dy;
+        }
+
+        int left = Math.min((int) ((long) dx * width / scale), width - cropWidth);
+        int top = Math.min((int) ((long) dy * height / scale), height - cropHeight);
+        return Bitmap.createBitmap(ancestor, left, top, cropWidth, cropHeight);
+    }
+
+
+    /**
+     * Remove the layer tiles from memory cache
+     */
+    public void clearBitmapCache()
+    {
+        TileBitmapCache.getInstance().removeAll(getCacheKey(""));
+    }
+
+
+    /**
+     * Get tile bitmap from memory cache only, without disk or network access
+     * @param tile The tile
+     * @return Bitmap or null if not cached, release it by {@link #releaseBitmap(Bitmap)} when it is
+     * drawn
+     */
+    public Bitmap getCachedBitmap(TileItem tile)
+    {
+        return getBitmapFromCache(tile.getHash());
+    }
+
+
     @Override
     public JSONObject toJSON()
             throws JSONException
@@ -133,6 +495,12 @@ public abstract class TMSLayer
 
 
         rootConfig.put(JSON_CACHE_SIZE_MULT, mCacheSizeMult);
+        rootConfig.put(JSON_TILE_STORE_KEY, mTileStoreType);
+        if (mMaxNativeZoom != Constants.NOT_FOUND) {
+            rootConfig.put(JSON_MAX_NATIVE_ZOOM, mMaxNativeZoom);
+        }
+        rootConfig.put(JSON_RGB_565_KEY, mDecodeRGB565);
+        rootConfig.put(JSON_DOWNSAMPLE_KEY, mDecodeDownsample);
         return rootConfig;
     }
 
@@ -154,6 +522,13 @@ public abstract class TMSLayer
             mCacheSizeMult = jsonObject.getInt(JSON_CACHE_SIZE_MULT);
         }
 
+        // the layers created before tile store have tiles in separate files
+        mTileStoreType = jsonObject.optInt(JSON_TILE_STORE_KEY, TILE_STORE_FILES);
+        mMaxNativeZoom = jsonObject.optInt(JSON_MAX_NATIVE_ZOOM, Constants.NOT_FOUND);
+        mDecodeRGB565 = jsonObject.optBoolean(JSON_RGB_565_KEY, false);
+        mDecodeDownsample = jsonObject.optBoolean(JSON_DOWNSAMPLE_KEY, true);
+        closeTileStore();
+
         if(Constants.DEBUG_MODE) {
             Log.d(Constants.TAG, "Raster layer " + getName() + " mTMSType " + mTMSType);
             Log.d(Constants.TAG, "Raster layer " + getName() + " mCacheSizeMult " + mCacheSizeMult);
@@ -187,49 +562,65 @@ public abstract class TMSLayer
     }
 
 
+    /**
+     * The tiles of all raster layers share one memory cache bounded by size in bytes
+     * (see TileBitmapCache). The multiplier only switches the layer caching off if 0.
+     * @param cacheSizeMult The cache size multiplier, 0 to not cache tiles of the layer
+     */
     public void setCacheSizeMultiply(int cacheSizeMult)
     {
         mCacheSizeMult = cacheSizeMult;
         if (mCacheSizeMult == 0) {
-            synchronized (lock) {
-                mBitmapCache = null;
-            }
-            return;
+            clearBitmapCache();
         }
+    }
 
-        // calc new hash size
-        int nTileCount = (int) (mViewWidth * Constants.OFFSCREEN_EXTRASIZE_RATIO /
-                                Constants.DEFAULT_TILE_SIZE) *
-                         (int) (mViewHeight * Constants.OFFSCREEN_EXTRASIZE_RATIO /
-                                Constants.DEFAULT_TILE_SIZE) * mCacheSizeMult;
 
-        if (null != mBitmapCache && mCacheSize >= nTileCount) {
-            return;
-        }
-        if (nTileCount < 30) {
-            nTileCount = 30;
+    /**
+     * Execute the task once for the concurrent callers with the same key. The first caller
+     * executes the task, others wait for its result.
+     * @param requests The tasks in progress
+     * @param key The task key, i.e. tile hash
+     * @param callable The task
+     * @return The task result or null on error
+     */
+    protected static <T> T runOnce(
+            ConcurrentMap<String, FutureTask<T>> requests,
+            String key,
+            Callable<T> callable)
+    {
+        FutureTask<T> task = new FutureTask<>(callable);
+        FutureTask<T> running = requests.putIfAbsent(key, task);
+        if (null == running) {
+            try {
+                task.run();
+            } finally {
+                requests.remove(key, task);
+            }
+            running = task;
         }
 
-        synchronized (lock) {
-            mBitmapCache = lruCache(nTileCount);
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
         }
-
-        mCacheSize = nTileCount;
     }
 
 
-    protected static <K, V> Map<K, V> lruCache(final int maxSize)
+    @Override
+    public boolean delete()
     {
-        return new LinkedHashMap<K, V>(maxSize * 4 / 3, 0.75f, true)
-        {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
-            {
-                return size() > maxSize;
-            }
-        };
+        closeTileStore();
+        clearBitmapCache();
+        return super.delete();
     }
 
+
     protected void fillFromZipInt(Uri uri, IProgressor progressor) throws IOException, NumberFormatException, SecurityException, NGException {
         InputStream inputStream = mContext.getContentResolver().openInputStream(uri);
         if (inputStream == null) {
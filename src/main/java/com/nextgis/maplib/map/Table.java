@@ -108,6 +108,24 @@ public class Table implements ILayer, IJSONStore {
         }
     }
 
+    /**
+     * Notify that layer content changed only in the provided area, so the map can repaint this
+     * area instead of the whole screen
+     * @param dirtyArea The changed area in map coordinates or null if unknown
+     */
+    public void notifyLayerChanged(GeoEnvelope dirtyArea)
+    {
+        if (null == dirtyArea || !dirtyArea.isInit()) {
+            notifyLayerChanged();
+            return;
+        }
+
+        if (mParent != null && mParent instanceof LayerGroup) {
+            LayerGroup group = (LayerGroup) mParent;
+            group.onLayerChanged(this, dirtyArea);
+        }
+    }
+
     @Override
     public File getPath()
     {
@@ -0,0 +1,501 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+
+/**
+ * The application wide memory cache of decoded tiles shared by all raster layers. The cache is
+ * bounded by bitmaps size in bytes and split to segments with own locks, so the drawing threads of
+ * different layers do not wait each other.
+ * <p>
+ * The bitmaps got from cache or put to it are counted as acquired and should be released by
+ * {@link #release(Bitmap)} when they are drawn. The bitmap which is neither cached nor acquired
+ * goes to small pool and is reused to decode new tiles (BitmapFactory.Options.inBitmap, Android
+ * 3.0 and higher). The bitmap which is never released is never reused.
+ */
+public class TileBitmapCache
+{
+    protected static final int SEGMENT_COUNT        = 8;
+    protected static final int MAX_REUSE_POOL_SIZE  = 16;
+    protected static final int MEMORY_CACHE_DIVIDER = 8;
+    // a segment holds at least one 1024 pixels ARGB_8888 tile
+    protected static final int MIN_SEGMENT_SIZE     = 1024 * 1024 * 4;
+
+    protected static TileBitmapCache sInstance;
+
+    protected final Segment[]                 mSegments;
+    protected final LinkedList<Bitmap>        mReusePool;
+    // the bitmaps use count, the weak keys do not hold the bitmaps never released
+    protected final WeakHashMap<Bitmap, Uses> mUses;
+
+
+    /**
+     * @return The cache instance using 1/8 of application memory
+     */
+    public static synchronized TileBitmapCache getInstance()
+    {
+        if (null == sInstance) {
+            sInstance = new TileBitmapCache(Runtime.getRuntime().maxMemory() / MEMORY_CACHE_DIVIDER);
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * @param maxSize
+     *         The maximum size of cached bitmaps in bytes
+     */
+    public TileBitmapCache(long maxSize)
+    {
+        int segmentCount = (int) Math.max(1, Math.min(SEGMENT_COUNT, maxSize / MIN_SEGMENT_SIZE));
+        mSegments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            mSegments[i] = new Segment(Math.max(maxSize / segmentCount, MIN_SEGMENT_SIZE));
+        }
+        mReusePool = new LinkedList<>();
+        mUses = new WeakHashMap<>();
+    }
+
+
+    protected Segment getSegment(String key)
+    {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return mSegments[(hash & 0x7fffffff) % mSegments.length];
+    }
+
+
+    /**
+     * @return The acquired bitmap or null, release it when it is drawn
+     */
+    public Bitmap get(String key)
+    {
+        return getSegment(key).get(key);
+    }
+
+
+    /**
+     * Put the bitmap to cache, the bitmap is acquired for the caller, release it when it is drawn
+     */
+    public void put(
+            String key,
+            Bitmap bitmap)
+    {
+        if (null == bitmap) {
+            return;
+        }
+        acquire(bitmap);
+        getSegment(key).put(key, bitmap);
+    }
+
+
+    /**
+     * Acquire the bitmap got not from this cache, i.e. to hold it while it is drawn
+     */
+    public void acquire(Bitmap bitmap)
+    {
+        if (null == bitmap) {
+            return;
+        }
+        synchronized (mUses) {
+            getUses(bitmap).mAcquired++;
+        }
+    }
+
+
+    /**
+     * Release the bitmap got from cache or put to it. The bitmap is reused if it is not cached
+     * and not acquired anymore, so do not use it after release.
+     */
+    public void release(Bitmap bitmap)
+    {
+        if (null == bitmap) {
+            return;
+        }
+        synchronized (mUses) {
+            Uses uses = mUses.get(bitmap);
+            if (null == uses || uses.mAcquired == 0) {
+                return;
+            }
+            uses.mAcquired--;
+            onUseChanged(bitmap, uses);
+        }
+    }
+
+
+    protected Uses getUses(Bitmap bitmap)
+    {
+        Uses uses = mUses.get(bitmap);
+        if (null == uses) {
+            uses = new Uses();
+            mUses.put(bitmap, uses);
+        }
+        return uses;
+    }
+
+
+    protected void onCached(Bitmap bitmap)
+    {
+        synchronized (mUses) {
+            getUses(bitmap).mCached++;
+        }
+    }
+
+
+    protected void onRemoved(Bitmap bitmap)
+    {
+        synchronized (mUses) {
+            Uses uses = mUses.get(bitmap);
+            if (null == uses || uses.mCached == 0) {
+                return;
+            }
+            uses.mCached--;
+            onUseChanged(bitmap, uses);
+        }
+    }
+
+
+    protected void onUseChanged(
+            Bitmap bitmap,
+            Uses uses)
+    {
+        if (uses.mAcquired == 0 && uses.mCached == 0) {
+            mUses.remove(bitmap);
+            addToReusePool(bitmap);
+        }
+    }
+
+
+    public void remove(String key)
+    {
+        getSegment(key).remove(key);
+    }
+
+
+    /**
+     * Remove all bitmaps which keys start with prefix, i.e. the tiles of deleted layer
+     *
+     * @param keyPrefix
+     *         The keys prefix
+     */
+    public void removeAll(String keyPrefix)
+    {
+        for (Segment segment : mSegments) {
+            segment.removeAll(keyPrefix);
+        }
+    }
+
+
+    public void clear()
+    {
+        removeAll("");
+        synchronized (mReusePool) {
+            mReusePool.clear();
+        }
+    }
+
+
+    /**
+     * @return The size of cached bitmaps in bytes
+     */
+    public long getSize()
+    {
+        long size = 0;
+        for (Segment segment : mSegments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+
+    /**
+     * Decode the tile to ARGB_8888 bitmap of full size reusing the memory of evicted bitmap if
+     * possible
+     *
+     * @param data
+     *         The encoded tile image
+     *
+     * @return The mutable bitmap or null
+     */
+    public Bitmap decode(byte[] data)
+    {
+        return decode(data, Bitmap.Config.ARGB_8888, 0);
+    }
+
+
+    /**
+     * Decode the tile reusing the memory of evicted bitmap if possible
+     *
+     * @param data
+     *         The encoded tile image
+     * @param config
+     *         The preferred bitmap config, i.e. RGB_565 for opaque tiles to use half the memory
+     * @param minSize
+     *         The minimum bitmap size in pixels the tile is drawn with, the larger image is
+     *         decoded with sampling down to this size. 0 to decode full size
+     *
+     * @return The mutable bitmap or null
+     */
+    public Bitmap decode(
+            byte[] data,
+            Bitmap.Config config,
+            int minSize)
+    {
+        if (null == data) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        if (minSize <= 0 && Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        if (minSize > 0) {
+            options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, minSize);
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+
+        int sampleSize = options.inSampleSize;
+        options.inMutable = true;
+        options.inBitmap = getReusableBitmap(
+                (options.outWidth + sampleSize - 1) / sampleSize,
+                (options.outHeight + sampleSize - 1) / sampleSize, sampleSize, config);
+
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // the reused bitmap is not suitable for this image
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+
+    /**
+     * @return The power of 2 sample size to have the bitmap not less than minimum size, so the
+     * bitmap is drawn with scale more than 0.5
+     */
+    protected static int getSampleSize(
+            int width,
+            int height,
+            int minSize)
+    {
+        int sampleSize = 1;
+        while (Math.min(width, height) / (sampleSize * 2) >= minSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+
+    protected Bitmap getReusableBitmap(
+            int width,
+            int height,
+            int sampleSize,
+            Bitmap.Config config)
+    {
+        synchronized (mReusePool) {
+            Iterator<Bitmap> iterator = mReusePool.iterator();
+            while (iterator.hasNext()) {
+                Bitmap bitmap = iterator.next();
+                if (bitmap.isRecycled()) {
+                    iterator.remove();
+                    continue;
+                }
+
+                if (canReuse(bitmap, width, height, sampleSize, config)) {
+                    iterator.remove();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+
+    protected static boolean canReuse(
+            Bitmap bitmap,
+            int width,
+            int height,
+            int sampleSize,
+            Bitmap.Config config)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int bytesPerPixel = config == Bitmap.Config.RGB_565 ? 2 : 4;
+            return bitmap.getAllocationByteCount() >= width * height * bytesPerPixel;
+        }
+        // the sampled images are decoded to new bitmaps before Android 4.4
+        return sampleSize == 1 && bitmap.getWidth() == width && bitmap.getHeight() == height
+                && bitmap.getConfig() == config;
+    }
+
+
+    protected void addToReusePool(Bitmap bitmap)
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || !bitmap.isMutable()
+                || bitmap.isRecycled()) {
+            return;
+        }
+
+        synchronized (mReusePool) {
+            if (mReusePool.size() >= MAX_REUSE_POOL_SIZE) {
+                mReusePool.removeFirst();
+            }
+            mReusePool.addLast(bitmap);
+        }
+    }
+
+
+    protected static int getBitmapSize(Bitmap bitmap)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            return bitmap.getByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+
+    /**
+     * The count of cache entries holding the bitmap and of its users
+     */
+    protected static class Uses
+    {
+        protected int mCached;
+        protected int mAcquired;
+    }
+
+
+    protected class Segment
+    {
+        protected final LinkedHashMap<String, Bitmap> mMap;
+        protected final long                          mMaxSize;
+        protected       long                          mSize;
+
+
+        public Segment(long maxSize)
+        {
+            mMaxSize = maxSize;
+            mMap = new LinkedHashMap<>(16, 0.75f, true);
+        }
+
+
+        public synchronized Bitmap get(String key)
+        {
+            // acquired under the segment lock, so the bitmap is not evicted and reused meanwhile
+            Bitmap bitmap = mMap.get(key);
+            acquire(bitmap);
+            return bitmap;
+        }
+
+
+        public synchronized void put(
+                String key,
+                Bitmap bitmap)
+        {
+            int size = getBitmapSize(bitmap);
+            if (size > mMaxSize) {
+                remove(key);
+                return;
+            }
+
+            Bitmap old = mMap.put(key, bitmap);
+            if (old == bitmap) {
+                return;
+            }
+
+            mSize += size;
+            onCached(bitmap);
+            if (null != old) {
+                mSize -= getBitmapSize(old);
+                onRemoved(old);
+            }
+            trim();
+        }
+
+
+        public synchronized void remove(String key)
+        {
+            Bitmap old = mMap.remove(key);
+            if (null != old) {
+                mSize -= getBitmapSize(old);
+                onRemoved(old);
+            }
+        }
+
+
+        public synchronized void removeAll(String keyPrefix)
+        {
+            Iterator<Map.Entry<String, Bitmap>> iterator = mMap.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Bitmap> entry = iterator.next();
+                if (entry.getKey().startsWith(keyPrefix)) {
+                    mSize -= getBitmapSize(entry.getValue());
+                    iterator.remove();
+                    onRemoved(entry.getValue());
+                }
+            }
+        }
+
+
+        public synchronized long getSize()
+        {
+            return mSize;
+        }
+
+
+        protected void trim()
+        {
+            Iterator<Map.Entry<String, Bitmap>> iterator = mMap.entrySet().iterator();
+            while (mSize > mMaxSize && iterator.hasNext()) {
+                Bitmap eldest = iterator.next().getValue();
+                iterator.remove();
+                mSize -= getBitmapSize(eldest);
+                onRemoved(eldest);
+            }
+        }
+    }
+}
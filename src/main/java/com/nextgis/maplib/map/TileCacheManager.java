@@ -0,0 +1,220 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.util.Log;
+
+import com.nextgis.maplib.api.ITileStore;
+import com.nextgis.maplib.util.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * Keeps the disk caches of remote raster layers within the layer and global quotas. The least
+ * recently used tiles are removed in small batches on low priority background thread some time
+ * after the new tiles are stored. Across layers the tiles of the layer with the oldest access time
+ * are removed first. The quotas are not set by default.
+ */
+public class TileCacheManager
+{
+    protected static final int EVICT_BATCH_SIZE = 256;
+    protected static final int TRIM_DELAY       = 5000;
+
+    protected static TileCacheManager sInstance;
+
+    protected final Map<RemoteTMSLayer, Boolean>  mLayers;
+    protected final ScheduledThreadPoolExecutor   mExecutor;
+    protected final AtomicBoolean                 mTrimScheduled;
+    protected       long                          mGlobalQuota;
+
+
+    public static synchronized TileCacheManager getInstance()
+    {
+        if (null == sInstance) {
+            sInstance = new TileCacheManager();
+        }
+        return sInstance;
+    }
+
+
+    protected TileCacheManager()
+    {
+        mLayers = new WeakHashMap<>();
+        mTrimScheduled = new AtomicBoolean(false);
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                Thread thread = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        android.os.Process.setThreadPriority(
+                                android.os.Process.THREAD_PRIORITY_LOWEST);
+                        r.run();
+                    }
+                });
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    public void register(RemoteTMSLayer layer)
+    {
+        synchronized (mLayers) {
+            mLayers.put(layer, Boolean.TRUE);
+        }
+    }
+
+
+    public void unregister(RemoteTMSLayer layer)
+    {
+        synchronized (mLayers) {
+            mLayers.remove(layer);
+        }
+    }
+
+
+    protected List<RemoteTMSLayer> getLayers()
+    {
+        synchronized (mLayers) {
+            return new ArrayList<>(mLayers.keySet());
+        }
+    }
+
+
+    public long getGlobalQuota()
+    {
+        return mGlobalQuota;
+    }
+
+
+    /**
+     * @param globalQuota
+     *         The maximum size of all remote layers tiles in bytes, 0 for no limit
+     */
+    public void setGlobalQuota(long globalQuota)
+    {
+        mGlobalQuota = globalQuota;
+        onTileStored();
+    }
+
+
+    /**
+     * @return The size of all remote layers tiles in bytes
+     */
+    public long getCacheSize()
+    {
+        long size = 0;
+        for (RemoteTMSLayer layer : getLayers()) {
+            size += layer.getTileStore().getSize();
+        }
+        return size;
+    }
+
+
+    /**
+     * Schedule the quotas check, executed by layers after the tile is stored
+     */
+    public void onTileStored()
+    {
+        if (mTrimScheduled.compareAndSet(false, true)) {
+            mExecutor.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    mTrimScheduled.set(false);
+                    trim();
+                }
+            }, TRIM_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    protected void trim()
+    {
+        List<RemoteTMSLayer> layers = getLayers();
+
+        for (RemoteTMSLayer layer : layers) {
+            long quota = layer.getCacheQuota();
+            if (quota <= 0) {
+                continue;
+            }
+
+            ITileStore store = layer.getTileStore();
+            while (store.getSize() > quota) {
+                if (store.evict(EVICT_BATCH_SIZE) == 0) {
+                    break;
+                }
+            }
+        }
+
+        if (mGlobalQuota <= 0) {
+            return;
+        }
+
+        long size = getCacheSize();
+        while (size > mGlobalQuota) {
+            ITileStore oldestStore = null;
+            long oldestTime = Long.MAX_VALUE;
+            for (RemoteTMSLayer layer : layers) {
+                ITileStore store = layer.getTileStore();
+                long time = store.getOldestAccessTime();
+                if (time < oldestTime) {
+                    oldestTime = time;
+                    oldestStore = store;
+                }
+            }
+
+            if (null == oldestStore) {
+                break;
+            }
+
+            long freed = oldestStore.evict(EVICT_BATCH_SIZE);
+            if (freed == 0) {
+                break;
+            }
+            size -= freed;
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(TAG, "Tile cache size after trim: " + size + " quota: " + mGlobalQuota);
+        }
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.util.Log;
+
+import com.nextgis.maplib.R;
+import com.nextgis.maplib.api.IProgressor;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoGeometryFactory;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.NetworkUtil;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.nextgis.maplib.util.Constants.JSON_BBOX_MAXX_KEY;
+import static com.nextgis.maplib.util.Constants.JSON_BBOX_MAXY_KEY;
+import static com.nextgis.maplib.util.Constants.JSON_BBOX_MINX_KEY;
+import static com.nextgis.maplib.util.Constants.JSON_BBOX_MINY_KEY;
+import static com.nextgis.maplib.util.Constants.JSON_LEVEL_KEY;
+import static com.nextgis.maplib.util.Constants.JSON_MAXLEVEL_KEY;
+import static com.nextgis.maplib.util.Constants.JSON_MINLEVEL_KEY;
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The job to download the tiles of remote layer for the area and zoom levels range to use them
+ * offline. The job state is saved to the layer folder, so the job interrupted by user or process
+ * death continues from the last saved position. The tiles fresh in tile store are skipped.
+ */
+public class TileDownloadJob
+{
+    public static final String JOB_FILE = "download_job.json";
+
+    protected static final String JSON_AREA_KEY     = "area";
+    protected static final String JSON_INDEX_KEY    = "index";
+    protected static final int    BATCH_SIZE        = 64;
+    protected static final int    MAX_RETRY_COUNT   = 3;
+    protected static final int    RETRY_DELAY       = 1000;
+    protected static final long   AVERAGE_TILE_SIZE = 15 * 1024;
+    protected static final int    SIZE_SAMPLE_COUNT = 4;
+
+    protected final RemoteTMSLayer mLayer;
+    protected final GeoGeometry    mArea;
+    protected final GeoEnvelope    mEnvelope;
+    protected final int            mMinZoom, mMaxZoom;
+    protected       int            mZoom;
+    protected       long           mIndex;
+    protected       int            mDownloadedCount, mFailedCount;
+
+
+    /**
+     * @param layer
+     *         The layer to download tiles
+     * @param area
+     *         The area in EPSG:3857
+     * @param minZoom
+     *         The first zoom level
+     * @param maxZoom
+     *         The last zoom level
+     */
+    public TileDownloadJob(
+            RemoteTMSLayer layer,
+            GeoEnvelope area,
+            int minZoom,
+            int maxZoom)
+    {
+        this(layer, null, area, minZoom, maxZoom);
+    }
+
+
+    /**
+     * @param layer
+     *         The layer to download tiles
+     * @param area
+     *         The polygon in EPSG:3857, only the tiles intersecting it are downloaded
+     * @param minZoom
+     *         The first zoom level
+     * @param maxZoom
+     *         The last zoom level
+     */
+    public TileDownloadJob(
+            RemoteTMSLayer layer,
+            GeoGeometry area,
+            int minZoom,
+            int maxZoom)
+    {
+        this(layer, area, area.getEnvelope(), minZoom, maxZoom);
+    }
+
+
+    protected TileDownloadJob(
+            RemoteTMSLayer layer,
+            GeoGeometry area,
+            GeoEnvelope envelope,
+            int minZoom,
+            int maxZoom)
+    {
+        mLayer = layer;
+        mArea = area;
+        mEnvelope = new GeoEnvelope(envelope);
+        mEnvelope.fix();
+        mMinZoom = Math.max(minZoom, 0);
+        mMaxZoom = Math.min(maxZoom, GeoConstants.DEFAULT_MAX_ZOOM);
+        mZoom = mMinZoom;
+        mIndex = 0;
+    }
+
+
+    /**
+     * Load the unfinished job of the layer
+     *
+     * @param layer
+     *         The layer
+     *
+     * @return The job or null if the layer has no unfinished job
+     */
+    public static TileDownloadJob load(RemoteTMSLayer layer)
+    {
+        File jobFile = new File(layer.getPath(), JOB_FILE);
+        if (!jobFile.exists()) {
+            return null;
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject(FileUtil.readFromFile(jobFile));
+            int minZoom = jsonObject.getInt(JSON_MINLEVEL_KEY);
+            int maxZoom = jsonObject.getInt(JSON_MAXLEVEL_KEY);
+
+            TileDownloadJob job;
+            if (jsonObject.has(JSON_AREA_KEY)) {
+                GeoGeometry area = GeoGeometryFactory.fromWKT(
+                        jsonObject.getString(JSON_AREA_KEY), GeoConstants.CRS_WEB_MERCATOR);
+                if (null == area) {
+                    return null;
+                }
+                job = new TileDownloadJob(layer, area, minZoom, maxZoom);
+            } else {
+                GeoEnvelope envelope = new GeoEnvelope(
+                        jsonObject.getDouble(JSON_BBOX_MINX_KEY),
+                        jsonObject.getDouble(JSON_BBOX_MAXX_KEY),
+                        jsonObject.getDouble(JSON_BBOX_MINY_KEY),
+                        jsonObject.getDouble(JSON_BBOX_MAXY_KEY));
+                job = new TileDownloadJob(layer, envelope, minZoom, maxZoom);
+            }
+
+            job.mZoom = jsonObject.getInt(JSON_LEVEL_KEY);
+            job.mIndex = jsonObject.getLong(JSON_INDEX_KEY);
+            return job;
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    protected void save()
+    {
+        try {
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(JSON_MINLEVEL_KEY, mMinZoom);
+            jsonObject.put(JSON_MAXLEVEL_KEY, mMaxZoom);
+            jsonObject.put(JSON_LEVEL_KEY, mZoom);
+            jsonObject.put(JSON_INDEX_KEY, mIndex);
+            if (null != mArea) {
+                jsonObject.put(JSON_AREA_KEY, mArea.toWKT(true));
+            } else {
+                jsonObject.put(JSON_BBOX_MINX_KEY, mEnvelope.getMinX());
+                jsonObject.put(JSON_BBOX_MAXX_KEY, mEnvelope.getMaxX());
+                jsonObject.put(JSON_BBOX_MINY_KEY, mEnvelope.getMinY());
+                jsonObject.put(JSON_BBOX_MAXY_KEY, mEnvelope.getMaxY());
+            }
+            FileUtil.writeToFile(new File(mLayer.getPath(), JOB_FILE), jsonObject.toString());
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Remove the job state, i.e. then user drops the unfinished job
+     */
+    public void delete()
+    {
+        File jobFile = new File(mLayer.getPath(), JOB_FILE);
+        if (jobFile.exists()) {
+            jobFile.delete();
+        }
+    }
+
+
+    /**
+     * @return The tiles range of zoom level as begin x, end x, begin y, end y (end exclusive) in
+     * normal (not OSM) tiles numbering
+     */
+    protected int[] getTileRange(int zoom)
+    {
+        int tilesInMapOneDimension = 1 << zoom;
+        double tileSize = GeoConstants.MERCATOR_MAX * 2 / tilesInMapOneDimension;
+
+        int begX = (int) Math.floor((mEnvelope.getMinX() + GeoConstants.MERCATOR_MAX) / tileSize);
+        int endX = (int) Math.ceil((mEnvelope.getMaxX() + GeoConstants.MERCATOR_MAX) / tileSize);
+        int begY = (int) Math.floor((mEnvelope.getMinY() + GeoConstants.MERCATOR_MAX) / tileSize);
+        int endY = (int) Math.ceil((mEnvelope.getMaxY() + GeoConstants.MERCATOR_MAX) / tileSize);
+
+        if (begX == endX) {
+            endX++;
+        }
+        if (begY == endY) {
+            endY++;
+        }
+
+        return new int[] {
+                Math.max(begX, 0),
+                Math.min(endX, tilesInMapOneDimension),
+                Math.max(begY, 0),
+                Math.min(endY, tilesInMapOneDimension)};
+    }
+
+
+    protected static long getPositionCount(int[] range)
+    {
+        return (long) (range[1] - range[0]) * (range[3] - range[2]);
+    }
+
+
+    /**
+     * @return The tile at the position in zoom level range or null if tile is out of area
+     */
+    protected TileItem getTile(
+            int zoom,
+            int[] range,
+            long position)
+    {
+        int rows = range[3] - range[2];
+        int x = (int) (range[0] + position / rows);
+        int y = (int) (range[2] + position % rows);
+
+        int tilesInMapOneDimension = 1 << zoom;
+        double tileSize = GeoConstants.MERCATOR_MAX * 2 / tilesInMapOneDimension;
+        double minX = -GeoConstants.MERCATOR_MAX + x * tileSize;
+        double minY = -GeoConstants.MERCATOR_MAX + y * tileSize;
+        GeoEnvelope env = new GeoEnvelope(minX, minX + tileSize, minY, minY + tileSize);
+
+        if (null != mArea && !mArea.intersects(env)) {
+            return null;
+        }
+
+        if (mLayer.getTMSType() == GeoConstants.TMSTYPE_OSM) {
+            y = tilesInMapOneDimension - y - 1;
+        }
+        return new TileItem(x, y, zoom, env);
+    }
+
+
+    /**
+     * Count the tiles of the job. For polygon area each tile is checked, so the call may take a
+     * while for large areas and should not be executed in UI thread.
+     *
+     * @return The tiles count
+     */
+    public long getTileCount()
+    {
+        long count = 0;
+        for (int zoom = mMinZoom; zoom <= mMaxZoom; zoom++) {
+            int[] range = getTileRange(zoom);
+            long positions = getPositionCount(range);
+            if (null == mArea) {
+                count += positions;
+                continue;
+            }
+
+            for (long i = 0; i < positions; i++) {
+                if (null != getTile(zoom, range, i)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Estimate the download size by the tiles count and the size of few tiles of each zoom level,
+     * stored or requested from server by HEAD request. The call needs network and should not be
+     * executed in UI thread.
+     *
+     * @return The estimated download size in bytes
+     */
+    public long getEstimatedSize()
+    {
+        long size = 0;
+        long unknownCount = 0;
+        long sampledSize = 0;
+        int sampledCount = 0;
+        for (int zoom = mMinZoom; zoom <= mMaxZoom; zoom++) {
+            int[] range = getTileRange(zoom);
+            long positions = getPositionCount(range);
+            long count = 0;
+            long levelSize = 0;
+            int levelCount = 0;
+            int samples = 0;
+            for (long i = 0; i < positions; i++) {
+                TileItem tile = getTile(zoom, range, i);
+                if (null == tile) {
+                    continue;
+                }
+                count++;
+
+                // the samples are taken evenly over the zoom level
+                if (samples < SIZE_SAMPLE_COUNT && i >= positions * samples / SIZE_SAMPLE_COUNT) {
+                    samples++;
+                    long tileSize = mLayer.getTileSize(tile);
+                    if (tileSize != Constants.NOT_FOUND) {
+                        levelSize += tileSize;
+                        levelCount++;
+                    }
+                }
+            }
+
+            if (levelCount > 0) {
+                size += count * levelSize / levelCount;
+                sampledSize += levelSize;
+                sampledCount += levelCount;
+            } else {
+                unknownCount += count;
+            }
+        }
+
+        long averageSize = sampledCount > 0 ? sampledSize / sampledCount : AVERAGE_TILE_SIZE;
+        return size + unknownCount * averageSize;
+    }
+
+
+    public int getDownloadedCount()
+    {
+        return mDownloadedCount;
+    }
+
+
+    public int getFailedCount()
+    {
+        return mFailedCount;
+    }
+
+
+    /**
+     * Download the tiles. The method blocks until job is finished, canceled or network is lost.
+     *
+     * @param progressor
+     *         The progress dialog or null
+     *
+     * @return true if all the tiles are processed and job state is removed
+     */
+    public boolean execute(IProgressor progressor)
+    {
+        save();
+
+        long total = 0, processed = 0;
+        for (int zoom = mMinZoom; zoom <= mMaxZoom; zoom++) {
+            long positions = getPositionCount(getTileRange(zoom));
+            total += positions;
+            if (zoom < mZoom) {
+                processed += positions;
+            }
+        }
+        processed += mIndex;
+
+        if (null != progressor) {
+            progressor.setMax((int) Math.min(total, Integer.MAX_VALUE));
+            progressor.setValue((int) Math.min(processed, Integer.MAX_VALUE));
+        }
+
+        // the layer spreads the threads over subdomains and limits the threads of each
+        NetworkUtil net = new NetworkUtil(mLayer.getContext());
+        ExecutorService executor = Executors.newFixedThreadPool(mLayer.getMaxThreadCount());
+        mLayer.onPrepare();
+
+        try {
+            for (; mZoom <= mMaxZoom; mZoom++, mIndex = 0) {
+                int[] range = getTileRange(mZoom);
+                long positions = getPositionCount(range);
+
+                while (mIndex < positions) {
+                    if (null != progressor && progressor.isCanceled()) {
+                        return false;
+                    }
+
+                    long batchEnd = Math.min(mIndex + BATCH_SIZE, positions);
+                    List<Future<Boolean>> futures = new ArrayList<>(BATCH_SIZE);
+                    for (long i = mIndex; i < batchEnd; i++) {
+                        TileItem tile = getTile(mZoom, range, i);
+                        if (null != tile) {
+                            futures.add(executor.submit(getDownloadTask(tile)));
+                        }
+                    }
+
+                    int failed = 0;
+                    for (Future<Boolean> future : futures) {
+                        if (!future.get()) {
+                            failed++;
+                        }
+                    }
+
+                    if (failed > 0 && !net.isNetworkAvailable()) {
+                        Log.d(TAG, "Tiles download is paused, network is not available");
+                        return false;
+                    }
+
+                    mFailedCount += failed;
+                    processed += batchEnd - mIndex;
+                    mIndex = batchEnd;
+                    save();
+
+                    if (null != progressor) {
+                        progressor.setValue((int) Math.min(processed, Integer.MAX_VALUE));
+                        progressor.setMessage(
+                                mLayer.getContext().getString(R.string.processed) + " "
+                                        + processed + " " + mLayer.getContext()
+                                        .getString(R.string.of) + " " + total);
+                    }
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        delete();
+        if (Constants.DEBUG_MODE) {
+            Log.d(TAG, "Tiles download finished for layer " + mLayer.getName() + ", downloaded "
+                    + mDownloadedCount + ", failed " + mFailedCount);
+        }
+        return true;
+    }
+
+
+    protected Callable<Boolean> getDownloadTask(final TileItem tile)
+    {
+        return new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+                    throws Exception
+            {
+                if (mLayer.isTileFresh(tile)) {
+                    return true;
+                }
+
+                for (int i = 0; i < MAX_RETRY_COUNT; i++) {
+                    int result = mLayer.downloadTileResult(tile);
+                    if (result == RemoteTMSLayer.DOWNLOAD_OK) {
+                        onTileDownloaded();
+                        return true;
+                    }
+                    // the tile absent or forbidden on server is not retried
+                    if (result == RemoteTMSLayer.DOWNLOAD_REJECTED) {
+                        return false;
+                    }
+                    Thread.sleep(RETRY_DELAY * (i + 1));
+                }
+                return false;
+            }
+        };
+    }
+
+
+    protected synchronized void onTileDownloaded()
+    {
+        mDownloadedCount++;
+    }
+}
@@ -34,6 +34,7 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -100,6 +101,14 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -183,6 +192,8 @@ public class VectorLayer
     protected static final int TYPE_ATTACH    = 3;
     protected static final int TYPE_ATTACH_ID = 4;
 
+    protected static final int BATCH_CHUNK_SIZE = 500;
+
     protected static final String META  = "meta.json";
     protected static final String RTREE = "rtree";
 
@@ -555,7 +566,7 @@ public class VectorLayer
             final SQLiteDatabase db)
             throws SQLiteException
     {
-        if (null == feature.getGeometry() || !checkGeometryType(feature)) {
+        if (!isBatchFeature(feature)) {
             return;
         }
 
@@ -569,6 +580,459 @@ public class VectorLayer
     }
 
 
+    /**
+     * Check the feature read from a stream or received from server is to be stored by
+     * {@link #createFeatureBatch(Feature, SQLiteDatabase)} or {@link FeatureWritePipeline}
+     * @param feature The feature
+     * @return true to store the feature
+     */
+    protected boolean isBatchFeature(Feature feature)
+    {
+        return null != feature.getGeometry() && checkGeometryType(feature);
+    }
+
+
+    /**
+     * Write the features received from server in chunked transactions with compiled statements.
+     * The change log and per feature notifications are not used: the geometry cache is updated in
+     * memory and the layer is saved and notified once at the end.
+     * @param inserts The features to insert, the existed ids are skipped
+     * @param updates The features to replace attributes and geometry of
+     * @param deletes The ids of features to delete
+     */
+    public void applyFeatureBatch(
+            List<Feature> inserts,
+            List<Feature> updates,
+            List<Long> deletes)
+            throws SQLiteException
+    {
+        if (inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty()) {
+            return;
+        }
+
+        if (!mCacheLoaded) {
+            reloadCache();
+        }
+
+        MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
+        if (null == map) {
+            throw new IllegalArgumentException(
+                    "The map should extends MapContentProviderHelper or inherited");
+        }
+        GeoEnvelope dirtyArea = new GeoEnvelope();
+        // the layers may be synchronized in parallel, so the bulk writes are serialized
+        synchronized (map.getWriteLock()) {
+            SQLiteDatabase db = map.getDatabase(false);
+
+            String tableName = mPath.getName();
+            List<String> columns = getBatchColumns();
+
+            if (!inserts.isEmpty()) {
+                StringBuilder sql = new StringBuilder("INSERT OR IGNORE INTO " + tableName + " (");
+                StringBuilder params = new StringBuilder();
+                for (int i = 0; i < columns.size(); i++) {
+                    sql.append(i == 0 ? "" : ", ").append(columns.get(i));
+                    params.append(i == 0 ? "?" : ", ?");
+                }
+                sql.append(") VALUES (").append(params).append(")");
+
+                SQLiteStatement statement = db.compileStatement(sql.toString());
+                try {
+                    for (int start = 0; start < inserts.size(); start += BATCH_CHUNK_SIZE) {
+                        int end = Math.min(start + BATCH_CHUNK_SIZE, inserts.size());
+                        db.beginTransaction();
+                        try {
+                            for (Feature feature : inserts.subList(start, end)) {
+                                ContentValues values = getFeatureContentValues(feature);
+                                bindValues(statement, columns, values);
+                                long rowId = statement.executeInsert();
+                                if (rowId != NOT_FOUND && null != feature.getGeometry()) {
+                                    updateUniqId(rowId);
+                                    cacheGeometryEnvelope(rowId, feature.getGeometry());
+                                    dirtyArea.merge(feature.getGeometry().getEnvelope());
+                                }
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
+                    }
+                } finally {
+                    statement.close();
+                }
+            }
+
+            if (!updates.isEmpty()) {
+                // the id is the last parameter
+                List<String> setColumns = columns.subList(1, columns.size());
+                StringBuilder sql = new StringBuilder("UPDATE " + tableName + " SET ");
+                for (int i = 0; i < setColumns.size(); i++) {
+                    sql.append(i == 0 ? "" : ", ").append(setColumns.get(i)).append(" = ?");
+                }
+                sql.append(" WHERE ").append(FIELD_ID).append(" = ?");
+
+                SQLiteStatement statement = db.compileStatement(sql.toString());
+                try {
+                    for (int start = 0; start < updates.size(); start += BATCH_CHUNK_SIZE) {
+                        int end = Math.min(start + BATCH_CHUNK_SIZE, updates.size());
+                        db.beginTransaction();
+                        try {
+                            for (Feature feature : updates.subList(start, end)) {
+                                // remove current cache item to not intersect with itself
+                                IGeometryCacheItem item = mCache.removeItem(feature.getId());
+                                if (null != item) {
+                                    dirtyArea.merge(item.getEnvelope());
+                                }
+
+                                ContentValues values = getFeatureContentValues(feature);
+                                bindValues(statement, setColumns, values);
+                                statement.bindLong(setColumns.size() + 1, feature.getId());
+                                statement.execute();
+
+                                if (null != feature.getGeometry()) {
+                                    cacheGeometryEnvelope(feature.getId(), feature.getGeometry());
+                                    dirtyArea.merge(feature.getGeometry().getEnvelope());
+                                }
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
+                    }
+                } finally {
+                    statement.close();
+                }
+            }
+
+            if (!deletes.isEmpty()) {
+                SQLiteStatement statement = db.compileStatement(
+                        "DELETE FROM " + tableName + " WHERE " + FIELD_ID + " = ?");
+                try {
+                    for (int start = 0; start < deletes.size(); start += BATCH_CHUNK_SIZE) {
+                        int end = Math.min(start + BATCH_CHUNK_SIZE, deletes.size());
+                        db.beginTransaction();
+                        try {
+                            for (long featureId : deletes.subList(start, end)) {
+                                statement.bindLong(1, featureId);
+                                statement.execute();
+
+                                IGeometryCacheItem item = mCache.removeItem(featureId);
+                                if (null != item) {
+                                    dirtyArea.merge(item.getEnvelope());
+                                }
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
+                    }
+                } finally {
+                    statement.close();
+                }
+            }
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(TAG, "Layer " + getName() + " batch applied, inserted: " + inserts.size() +
+                    " updated: " + updates.size() + " deleted: " + deletes.size());
+        }
+
+        save();
+        getContext().getContentResolver().notifyChange(getContentUri(), null, false);
+        notifyLayerChanged(dirtyArea);
+    }
+
+
+    /**
+     * @return The feature table columns starting from id
+     */
+    protected List<String> getBatchColumns()
+    {
+        List<String> columns = new ArrayList<>();
+        columns.add(FIELD_ID);
+        columns.add(FIELD_GEOM);
+        for (int zoom = 2; zoom <= GeoConstants.DEFAULT_CACHE_MAX_ZOOM; zoom += 2) {
+            columns.add(Constants.FIELD_GEOM_ + zoom);
+        }
+        columns.addAll(mFields.keySet());
+        return columns;
+    }
+
+
+    protected static void bindValues(
+            SQLiteStatement statement,
+            List<String> columns,
+            ContentValues values)
+    {
+        for (int i = 0; i < columns.size(); i++) {
+            int index = i + 1;
+            Object value = values.get(columns.get(i));
+            if (null == value) {
+                statement.bindNull(index);
+            } else if (value instanceof byte[]) {
+                statement.bindBlob(index, (byte[]) value);
+            } else if (value instanceof Double || value instanceof Float) {
+                statement.bindDouble(index, ((Number) value).doubleValue());
+            } else if (value instanceof Number) {
+                statement.bindLong(index, ((Number) value).longValue());
+            } else if (value instanceof Boolean) {
+                statement.bindLong(index, (Boolean) value ? 1 : 0);
+            } else {
+                statement.bindString(index, value.toString());
+            }
+        }
+    }
+
+
+    /**
+     * The pipeline to fill the layer with the features read from a stream. The features are added
+     * by the reading thread, the geometries are prepared by the worker threads and one writer
+     * thread inserts them in chunked transactions. The point geometries are prepared by the writer
+     * as the overlaps are checked with the features inserted before.
+     */
+    protected class FeatureWritePipeline
+    {
+        protected static final int QUEUE_SIZE = 1000;
+
+        protected final SQLiteDatabase                              mDb;
+        protected final BlockingQueue<Feature>                      mFeatures;
+        protected final BlockingQueue<Pair<Feature, ContentValues>> mPrepared;
+        protected final Feature                                     mEnd;
+        protected final Pair<Feature, ContentValues>                mPreparedEnd;
+        protected final ExecutorService                             mExecutor;
+        protected final Future<Integer>                             mWriter;
+        protected final int                                         mWorkerCount;
+        protected final boolean                                     mPrepareInWriter;
+        protected volatile Throwable                                mError;
+
+
+        public FeatureWritePipeline(SQLiteDatabase db)
+        {
+            mDb = db;
+            mFeatures = new ArrayBlockingQueue<>(QUEUE_SIZE);
+            mPrepared = new ArrayBlockingQueue<>(QUEUE_SIZE);
+            mEnd = new Feature();
+            mPreparedEnd = new Pair<>(mEnd, null);
+            mPrepareInWriter = mGeometryType == GTPoint || mGeometryType == GTMultiPoint;
+            mWorkerCount =
+                    mPrepareInWriter ? 1 : Math.max(1, Runtime.getRuntime().availableProcessors());
+
+            mExecutor = Executors.newFixedThreadPool(mWorkerCount + 1);
+            for (int i = 0; i < mWorkerCount; i++) {
+                mExecutor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        prepare();
+                    }
+                });
+            }
+            mWriter = mExecutor.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call()
+                        throws Exception
+                {
+                    return write();
+                }
+            });
+            mExecutor.shutdown();
+        }
+
+
+        /**
+         * Add the feature, wait if the queue is full
+         */
+        public void add(Feature feature)
+                throws IOException
+        {
+            if (!isBatchFeature(feature)) {
+                return;
+            }
+            put(feature);
+        }
+
+
+        /**
+         * Wait for all added features are written
+         * @return The count of inserted features
+         */
+        public int finish()
+                throws IOException
+        {
+            for (int i = 0; i < mWorkerCount; i++) {
+                put(mEnd);
+            }
+
+            try {
+                return mWriter.get();
+            } catch (InterruptedException e) {
+                cancel();
+                throw new IOException("Canceled");
+            } catch (ExecutionException e) {
+                fail(e.getCause());
+                throw getError();
+            }
+        }
+
+
+        /**
+         * Stop the pipeline, the last not committed features are discarded
+         */
+        public void cancel()
+        {
+            mExecutor.shutdownNow();
+            try {
+                mExecutor.awaitTermination(
+                        Constants.TERMINATE_TIME, Constants.KEEP_ALIVE_TIME_UNIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+
+        protected void put(Feature feature)
+                throws IOException
+        {
+            try {
+                while (!mFeatures.offer(feature, 1, TimeUnit.SECONDS)) {
+                    if (null != mError) {
+                        throw getError();
+                    }
+                }
+            } catch (InterruptedException e) {
+                cancel();
+                throw new IOException("Canceled");
+            }
+
+            if (null != mError) {
+                throw getError();
+            }
+        }
+
+
+        protected void fail(Throwable error)
+        {
+            if (null == mError) {
+                mError = error;
+            }
+            mExecutor.shutdownNow();
+        }
+
+
+        protected IOException getError()
+        {
+            if (mError instanceof IOException) {
+                return (IOException) mError;
+            }
+            IOException error = new IOException(mError.getLocalizedMessage());
+            error.initCause(mError);
+            return error;
+        }
+
+
+        protected void prepare()
+        {
+            try {
+                Feature feature;
+                while ((feature = mFeatures.take()) != mEnd) {
+                    ContentValues values =
+                            mPrepareInWriter ? null : getFeatureContentValues(feature);
+                    mPrepared.put(new Pair<>(feature, values));
+                }
+                mPrepared.put(mPreparedEnd);
+            } catch (InterruptedException e) {
+                // canceled
+            } catch (RuntimeException | OutOfMemoryError e) {
+                fail(e);
+            }
+        }
+
+
+        protected int write()
+                throws InterruptedException
+        {
+            String tableName = mPath.getName();
+            List<Pair<Long, GeoGeometry>> inserted = new ArrayList<>(BATCH_CHUNK_SIZE);
+            int count = 0;
+            int ends = 0;
+
+            try {
+                while (ends < mWorkerCount) {
+                    Pair<Feature, ContentValues> item = mPrepared.poll();
+                    // do not hold the transaction while the features are downloaded
+                    if (null == item || inserted.size() == BATCH_CHUNK_SIZE) {
+                        count += commit(inserted);
+                    }
+                    if (null == item) {
+                        item = mPrepared.take();
+                    }
+
+                    if (item == mPreparedEnd) {
+                        ends++;
+                        continue;
+                    }
+
+                    if (!mDb.inTransaction()) {
+                        mDb.beginTransaction();
+                    }
+                    ContentValues values =
+                            null == item.second ? getFeatureContentValues(item.first) : item.second;
+                    // the features of interrupted download may be already inserted
+                    long rowId = mDb.insertWithOnConflict(
+                            tableName, "", values, SQLiteDatabase.CONFLICT_IGNORE);
+                    if (rowId != NOT_FOUND) {
+                        inserted.add(new Pair<>(rowId, item.first.getGeometry()));
+                        // the points are checked for overlaps with the previous ones
+                        if (mPrepareInWriter) {
+                            cacheGeometryEnvelope(rowId, item.first.getGeometry());
+                        }
+                    }
+                }
+                count += commit(inserted);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                fail(e);
+                throw e;
+            } finally {
+                if (mDb.inTransaction()) {
+                    // rollback
+                    mDb.endTransaction();
+                    if (mPrepareInWriter) {
+                        for (Pair<Long, GeoGeometry> item : inserted) {
+                            mCache.removeItem(item.first);
+                        }
+                    }
+                }
+            }
+
+            if (Constants.DEBUG_MODE) {
+                Log.d(TAG, "Layer " + getName() + " pipeline inserted: " + count);
+            }
+            return count;
+        }
+
+
+        protected int commit(List<Pair<Long, GeoGeometry>> inserted)
+        {
+            if (!mDb.inTransaction()) {
+                return 0;
+            }
+            mDb.setTransactionSuccessful();
+            mDb.endTransaction();
+
+            if (!mPrepareInWriter) {
+                for (Pair<Long, GeoGeometry> item : inserted) {
+                    cacheGeometryEnvelope(item.first, item.second);
+                }
+            }
+            int count = inserted.size();
+            inserted.clear();
+            return count;
+        }
+    }
+
+
     public void createField(Field field)
             throws SQLiteException
     {
@@ -2237,9 +2701,10 @@ public class VectorLayer
     public void notifyDelete(long rowId)
     {
         //remove cached item
-        if (mCache.removeItem(rowId) != null) {
+        IGeometryCacheItem item = mCache.removeItem(rowId);
+        if (item != null) {
             save();
-            notifyLayerChanged();
+            notifyLayerChanged(item.getEnvelope());
         }
     }
 
@@ -2330,7 +2795,7 @@ public class VectorLayer
         if (null != geom) {
             cacheGeometryEnvelope(rowId, geom);
             save();
-            notifyLayerChanged();
+            notifyLayerChanged(geom.getEnvelope());
         }
     }
 
@@ -2351,10 +2816,18 @@ public class VectorLayer
             needSave = true;
         }
 
+        // the area to repaint covers old and new geometry
+        GeoEnvelope dirtyArea = new GeoEnvelope();
+        IGeometryCacheItem item = mCache.getItem(rowId);
+        if (null != item) {
+            dirtyArea.merge(item.getEnvelope());
+        }
+
         GeoGeometry geom = getGeometryForId(rowId);
         if (null != geom && !attributesOnly) {
             mCache.removeItem(rowId);
             cacheGeometryEnvelope(rowId, geom);
+            dirtyArea.merge(geom.getEnvelope());
             needSave = true;
         }
 
@@ -2362,7 +2835,7 @@ public class VectorLayer
             save();
         }
 
-        notifyLayerChanged();
+        notifyLayerChanged(dirtyArea);
     }
 
 
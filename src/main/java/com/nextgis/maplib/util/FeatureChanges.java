@@ -56,6 +56,84 @@ public class FeatureChanges
         MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
         SQLiteDatabase db = map.getDatabase(true);
         db.execSQL(sqlCreateTable);
+        createIndex(db, tableName);
+    }
+
+
+    /**
+     * Create the index for the queries by feature and attachment. The index contains all columns,
+     * so the change records are read from the index only.
+     */
+    protected static void createIndex(
+            SQLiteDatabase db,
+            String tableName)
+    {
+        String sqlCreateIndex = "CREATE INDEX IF NOT EXISTS " + tableName + "_idx";
+        sqlCreateIndex += " ON " + tableName + " ( ";
+        sqlCreateIndex += FIELD_FEATURE_ID + ", ";
+        sqlCreateIndex += FIELD_ATTACH_ID + ", ";
+        sqlCreateIndex += FIELD_OPERATION + ", ";
+        sqlCreateIndex += FIELD_ATTACH_OPERATION;
+        sqlCreateIndex += " );";
+
+        db.execSQL(sqlCreateIndex);
+    }
+
+
+    /**
+     * Create the index for the change logs of previous versions and remove the change records
+     * superseded by the later change of the same feature or attachment. Run once on the database
+     * upgrade, the layer without change log is skipped.
+     */
+    public static void optimize(
+            SQLiteDatabase db,
+            String tableName)
+    {
+        try {
+            if (!isTableExists(db, tableName)) {
+                return;
+            }
+
+            createIndex(db, tableName);
+
+            String sqlDeleteChanged = "DELETE FROM " + tableName + " WHERE ";
+            sqlDeleteChanged += FIELD_OPERATION + " = " + CHANGE_OPERATION_CHANGED + " AND ";
+            sqlDeleteChanged += FIELD_ID + " < ( SELECT MAX(t." + FIELD_ID + ") FROM ";
+            sqlDeleteChanged += tableName + " t WHERE ";
+            sqlDeleteChanged += "t." + FIELD_FEATURE_ID + " = " + tableName + "." + FIELD_FEATURE_ID;
+            sqlDeleteChanged += " AND t." + FIELD_OPERATION + " = " + CHANGE_OPERATION_CHANGED;
+            sqlDeleteChanged += " )";
+            db.execSQL(sqlDeleteChanged);
+
+            String sqlDeleteAttachChanged = "DELETE FROM " + tableName + " WHERE ";
+            sqlDeleteAttachChanged += FIELD_OPERATION + " = " + CHANGE_OPERATION_ATTACH + " AND ";
+            sqlDeleteAttachChanged +=
+                    FIELD_ATTACH_OPERATION + " = " + CHANGE_OPERATION_CHANGED + " AND ";
+            sqlDeleteAttachChanged += FIELD_ID + " < ( SELECT MAX(t." + FIELD_ID + ") FROM ";
+            sqlDeleteAttachChanged += tableName + " t WHERE ";
+            sqlDeleteAttachChanged +=
+                    "t." + FIELD_FEATURE_ID + " = " + tableName + "." + FIELD_FEATURE_ID;
+            sqlDeleteAttachChanged +=
+                    " AND t." + FIELD_ATTACH_ID + " = " + tableName + "." + FIELD_ATTACH_ID;
+            sqlDeleteAttachChanged += " AND t." + FIELD_OPERATION + " = " + CHANGE_OPERATION_ATTACH;
+            sqlDeleteAttachChanged +=
+                    " AND t." + FIELD_ATTACH_OPERATION + " = " + CHANGE_OPERATION_CHANGED;
+            sqlDeleteAttachChanged += " )";
+            db.execSQL(sqlDeleteAttachChanged);
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            Log.d(TAG, e.getLocalizedMessage());
+        }
+    }
+
+
+    protected static boolean isTableExists(
+            SQLiteDatabase db,
+            String tableName)
+    {
+        return DatabaseUtils.longForQuery(
+                db, "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[] {tableName}) > 0;
     }
 
 
@@ -40,6 +40,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -197,6 +200,44 @@ public class FileUtil
     }
 
 
+    /**
+     * @return The MD5 hash of the file content as hex string
+     */
+    public static String getFileMD5(File file)
+            throws IOException
+    {
+        InputStream is = new FileInputStream(file);
+        try {
+            return getMD5(is);
+        } finally {
+            is.close();
+        }
+    }
+
+
+    /**
+     * @return The MD5 hash of the stream content as hex string, the stream is not closed
+     */
+    public static String getMD5(InputStream is)
+            throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getLocalizedMessage());
+        }
+
+        byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+        int count;
+        while ((count = is.read(buffer)) != -1) {
+            digest.update(buffer, 0, count);
+        }
+
+        return String.format("%032x", new BigInteger(1, digest.digest()));
+    }
+
+
     public static String getFileNameByUri(
             final Context context,
             Uri uri,
@@ -0,0 +1,123 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.util;
+
+import java.util.Arrays;
+
+
+/**
+ * The set of long values, i.e. feature ids, without boxing. The values are kept in open addressing
+ * hash table, so the set takes about 16 bytes per value.
+ */
+public class LongHashSet
+{
+    protected static final long  EMPTY       = Long.MIN_VALUE;
+    protected static final float LOAD_FACTOR = 0.75f;
+
+    protected long[]  mValues;
+    protected int     mMask;
+    protected int     mSize;
+    protected boolean mHasEmpty;
+
+
+    public LongHashSet()
+    {
+        this(16);
+    }
+
+
+    /**
+     * @param capacity
+     *         The expected values count
+     */
+    public LongHashSet(int capacity)
+    {
+        allocate(Integer.highestOneBit(Math.max((int) (capacity / LOAD_FACTOR), 2)) * 2);
+    }
+
+
+    protected void allocate(int capacity)
+    {
+        mValues = new long[capacity];
+        Arrays.fill(mValues, EMPTY);
+        mMask = capacity - 1;
+    }
+
+
+    protected int findSlot(long value)
+    {
+        long hash = value * 0x9E3779B97F4A7C15L;
+        int slot = (int) (hash ^ (hash >>> 32)) & mMask;
+        while (mValues[slot] != EMPTY && mValues[slot] != value) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+
+    /**
+     * @return true if the value is added or false if it is already in the set
+     */
+    public boolean add(long value)
+    {
+        if (value == EMPTY) {
+            boolean added = !mHasEmpty;
+            mHasEmpty = true;
+            return added;
+        }
+
+        int slot = findSlot(value);
+        if (mValues[slot] == value) {
+            return false;
+        }
+
+        mValues[slot] = value;
+        mSize++;
+        if (mSize > mValues.length * LOAD_FACTOR) {
+            long[] values = mValues;
+            allocate(values.length * 2);
+            for (long item : values) {
+                if (item != EMPTY) {
+                    mValues[findSlot(item)] = item;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    public boolean contains(long value)
+    {
+        if (value == EMPTY) {
+            return mHasEmpty;
+        }
+        return mValues[findSlot(value)] == value;
+    }
+
+
+    public int size()
+    {
+        return mHasEmpty ? mSize + 1 : mSize;
+    }
+}
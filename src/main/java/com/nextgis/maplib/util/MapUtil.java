@@ -26,11 +26,14 @@ import android.content.Context;
 import android.net.Uri;
 
 import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.datasource.TileItem;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
@@ -121,6 +124,7 @@ public class MapUtil {
         int realX, realY;
         double fullBoundsMinX = -GeoConstants.MERCATOR_MAX;
         double fullBoundsMinY = -GeoConstants.MERCATOR_MAX;
+        fill:
         for (int x = begX; x < endX; x++) {
             for (int y = begY; y < endY; y++) {
                 realX = x;
@@ -150,13 +154,61 @@ public class MapUtil {
                 result.add(item);
 
                 if(result.size() > Constants.MAX_TILES_COUNT) // some limits for tiles array size
-                    return result;
+                    break fill;
             }
         }
 
+        // the tiles user is looking at should be loaded first
+        sortTilesByDistance(result, bounds.getCenter());
         return result;
     }
 
+    /**
+     * Sort tiles by distance of tile center from the point
+     * @param tiles The tiles to sort
+     * @param point The point in map coordinates, usually the view center
+     */
+    public static void sortTilesByDistance(List<TileItem> tiles, final GeoPoint point) {
+        Collections.sort(tiles, new Comparator<TileItem>() {
+            @Override
+            public int compare(TileItem lhs, TileItem rhs) {
+                return Double.compare(getTileDistance(lhs, point), getTileDistance(rhs, point));
+            }
+        });
+    }
+
+    /**
+     * @return The squared distance from tile center to the point in map units
+     */
+    public static double getTileDistance(TileItem tile, GeoPoint point) {
+        GeoPoint center = tile.getEnvelope().getCenter();
+        double dx = center.getX() - point.getX();
+        double dy = center.getY() - point.getY();
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Get tile envelope in map coordinates
+     * @param x Tile x
+     * @param y Tile y
+     * @param zoom Tile zoom level
+     * @param tmsType The tiles numbering type (GeoConstants.TMSTYPE_OSM or GeoConstants.TMSTYPE_NORMAL)
+     * @return Tile envelope
+     */
+    public static GeoEnvelope getTileEnvelope(int x, int y, int zoom, int tmsType) {
+        int tilesInMapOneDimension = 1 << zoom;
+        double tilesSizeOneDimension = GeoConstants.MERCATOR_MAX * 2 / tilesInMapOneDimension;
+
+        if (tmsType == GeoConstants.TMSTYPE_OSM) {
+            y = tilesInMapOneDimension - y - 1;
+        }
+
+        double minX = -GeoConstants.MERCATOR_MAX + x * tilesSizeOneDimension;
+        double minY = -GeoConstants.MERCATOR_MAX + y * tilesSizeOneDimension;
+        return new GeoEnvelope(
+                minX, minX + tilesSizeOneDimension, minY, minY + tilesSizeOneDimension);
+    }
+
     public static boolean isZippedGeoJSON(Context context, AtomicReference<Uri> uri) {
         try {
             InputStream inputStream = context.getContentResolver().openInputStream(uri.get());
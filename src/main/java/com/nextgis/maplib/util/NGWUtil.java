@@ -126,7 +126,7 @@ public class NGWUtil
         writer.close();
         os.close();
 
-        int responseCode = conn.getResponseCode();
+        int responseCode = NetworkUtil.getResponseCode(conn);
         if (!(responseCode == HttpURLConnection.HTTP_MOVED_TEMP
                 || responseCode == HttpURLConnection.HTTP_MOVED_PERM)) {
             Log.d(TAG, "Problem execute post: " + sUrl + " HTTP response: " +
@@ -154,6 +154,15 @@ public class NGWUtil
     }
 
 
+    public static String getFileUploadResumableUrl(String server)
+    {
+        if (!server.startsWith("http")) {
+            server = "http://" + server;
+        }
+        return server + "/api/component/file_upload/";
+    }
+
+
     public static String getNgwVersionUrl(String server)
     {
         if (!server.startsWith("http")) {
@@ -357,6 +366,71 @@ public class NGWUtil
     }
 
 
+    /**
+     * Get the URL of features page ordered by id
+     *
+     * @param limit
+     *         The page size, 0 to get all features
+     * @param offset
+     *         The count of features before the page
+     *
+     * @return URL
+     */
+    public static String getFeaturesUrl(
+            String server,
+            long remoteId,
+            String where,
+            int limit,
+            long offset)
+    {
+        String url = getFeaturesUrl(server, remoteId, where);
+        if (limit <= 0) {
+            return url;
+        }
+
+        return url + (TextUtils.isEmpty(where) ? "?" : "&") + "order_by=id&limit=" + limit
+                + "&offset=" + offset;
+    }
+
+
+    /**
+     * Get the URL of features page ordered by id which starts after the feature id. Unlike offset
+     * the id does not shift if the features are deleted between the pages requests.
+     *
+     * @param limit
+     *         The page size
+     * @param lastId
+     *         The features with greater ids are returned, Constants.NOT_FOUND for the first page
+     *
+     * @return URL
+     */
+    public static String getFeaturesPageUrl(
+            String server,
+            long remoteId,
+            String where,
+            int limit,
+            long lastId)
+    {
+        String url = getFeaturesUrl(server, remoteId, where);
+        url += (TextUtils.isEmpty(where) ? "?" : "&") + "order_by=id&limit=" + limit;
+        if (lastId == Constants.NOT_FOUND) {
+            return url;
+        }
+        return url + "&id__gt=" + lastId;
+    }
+
+
+    public static String getFeatureCountUrl(
+            String server,
+            long remoteId)
+    {
+        if (!server.startsWith("http")) {
+            server = "http://" + server;
+        }
+        return server + "/api/resource/" + remoteId + "/feature_count";
+    }
+
+
     public static String getTrackedFeaturesUrl(
             String server,
             long remoteId,
@@ -26,22 +26,29 @@ package com.nextgis.maplib.util;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Build;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
-import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 import static com.nextgis.maplib.util.Constants.TAG;
 
@@ -57,6 +64,35 @@ public class NetworkUtil
     public final static int TIMEOUT_CONNECTION = 10000;
     public final static int TIMEOUT_SOCKET = 240000; // 180 sec
 
+    public final static    int    TUS_CHUNK_SIZE = 1 << 20; // 1 Mb
+    protected final static String TUS_VERSION    = "1.0.0";
+
+    // the concurrent requests to one host and the keep-alive connections kept per host
+    public final static int MAX_HOST_CONNECTIONS = 8;
+
+    protected final static Map<String, Semaphore> sHostPermits = new HashMap<>();
+
+    protected final static AtomicLong sRequestCount  = new AtomicLong();
+    protected final static AtomicLong sBytesReceived = new AtomicLong();
+    protected final static AtomicLong sBytesSent     = new AtomicLong();
+    protected final static AtomicLong sResponseTime  = new AtomicLong();
+
+    static {
+        // HttpURLConnection reuses the connection if the response body is read out and closed
+        if (null == System.getProperty("http.maxConnections")) {
+            System.setProperty("http.maxConnections", "" + MAX_HOST_CONNECTIONS);
+        }
+    }
+
+
+    /**
+     * The listener of the sent bytes of upload
+     */
+    public interface ProgressListener
+    {
+        void onProgress(long bytes);
+    }
+
 
     public NetworkUtil(Context context)
     {
@@ -122,6 +158,8 @@ public class NetworkUtil
         conn.setConnectTimeout(TIMEOUT_CONNECTION);
         conn.setReadTimeout(TIMEOUT_SOCKET);
         conn.setRequestProperty("Accept", "*/*");
+        // the response is decompressed by getInputStream()
+        conn.setRequestProperty("Accept-Encoding", "gzip");
 
         return conn;
     }
@@ -135,6 +173,9 @@ public class NetworkUtil
     }
 
     protected static String responseToString(final InputStream is) throws IOException {
+        if (null == is) {
+            return null;
+        }
         byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         FileUtil.copyStream(is, baos, buffer, Constants.IO_BUFFER_SIZE);
@@ -152,25 +193,69 @@ public class NetworkUtil
             OutputStream outputStream)
             throws IOException
     {
-        final HttpURLConnection conn = getHttpConnection("GET", targetURL, username, password);
-        if(null == conn){
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Error get connection object");
-            return;
-        }
+        Semaphore permits = acquireHost(targetURL);
+        try {
+            final HttpURLConnection conn = getHttpConnection("GET", targetURL, username, password);
+            if(null == conn){
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Error get connection object");
+                return;
+            }
 
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Problem execute getStream: " + targetURL + " HTTP response: " +
-                    responseCode + " username: " + username);
-            return;
+            int responseCode = getResponseCode(conn);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem execute getStream: " + targetURL + " HTTP response: " +
+                        responseCode + " username: " + username);
+                closeResponse(conn);
+                return;
+            }
+
+            byte data[] = new byte[Constants.IO_BUFFER_SIZE];
+            InputStream is = getInputStream(conn);
+            FileUtil.copyStream(is, outputStream, data, Constants.IO_BUFFER_SIZE);
+            is.close();
+            outputStream.close();
+        } finally {
+            permits.release();
         }
+    }
 
-        byte data[] = new byte[Constants.IO_BUFFER_SIZE];
-        InputStream is = conn.getInputStream();
-        FileUtil.copyStream(is, outputStream, data, Constants.IO_BUFFER_SIZE);
-        outputStream.close();
+
+    /**
+     * Execute GET request and return the response body without buffering it. The stream is
+     * decompressed if the response is gzipped. The host permit is held until the stream is closed.
+     *
+     * @throws IOException
+     *         if the response code is not HTTP_OK
+     */
+    public static InputStream openStream(
+            String targetURL,
+            String username,
+            String password)
+            throws IOException
+    {
+        Semaphore permits = acquireHost(targetURL);
+        try {
+            final HttpURLConnection conn = getHttpConnection("GET", targetURL, username, password);
+            int responseCode = getResponseCode(conn);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                closeResponse(conn);
+                throw new IOException(
+                        "Problem execute openStream: " + targetURL + " HTTP response: " +
+                                responseCode);
+            }
+
+            InputStream is =
+                    decodeStream(conn, new ResponseInputStream(conn.getInputStream(), permits));
+            // released on the stream close
+            permits = null;
+            return is;
+        } finally {
+            if (null != permits) {
+                permits.release();
+            }
+        }
     }
 
 
@@ -179,57 +264,91 @@ public class NetworkUtil
             String username,
             String password)
             throws IOException {
-        final HttpURLConnection conn = getHttpConnection("GET", targetURL, username, password);
-        if(null == conn){
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Error get connection object");
-            return null;
-        }
+        Semaphore permits = acquireHost(targetURL);
+        try {
+            final HttpURLConnection conn = getHttpConnection("GET", targetURL, username, password);
+            if(null == conn){
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Error get connection object");
+                return null;
+            }
 
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Problem execute get: " + targetURL + " HTTP response: " + responseCode);
-            return responseToString(conn.getErrorStream());
-        }
+            int responseCode = getResponseCode(conn);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem execute get: " + targetURL + " HTTP response: " + responseCode);
+                return responseToString(getErrorStream(conn));
+            }
 
-        return responseToString(conn.getInputStream());
+            return responseToString(getInputStream(conn));
+        } finally {
+            permits.release();
+        }
     }
 
 
-    public static String post(
+    /**
+     * Execute HEAD request to get the version of resource without its body
+     *
+     * @return The ETag or, if absent, the Last-Modified header value, null if the server provides
+     * none of them
+     */
+    public static String getVersionTag(
             String targetURL,
-            String payload,
             String username,
             String password)
             throws IOException
     {
-        final HttpURLConnection conn = getHttpConnection("POST", targetURL, username, password);
-        if(null == conn){
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Error get connection object");
-            return null;
+        Semaphore permits = acquireHost(targetURL);
+        try {
+            final HttpURLConnection conn = getHttpConnection("HEAD", targetURL, username, password);
+            int responseCode = getResponseCode(conn);
+            String etag = conn.getHeaderField("ETag");
+            String lastModified = conn.getHeaderField("Last-Modified");
+            closeResponse(conn);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem execute getVersionTag: " + targetURL + " HTTP response: " +
+                        responseCode);
+                return null;
+            }
+
+            return TextUtils.isEmpty(etag) ? lastModified : etag;
+        } finally {
+            permits.release();
         }
-        conn.setRequestProperty("Content-type", "application/json");
-        // Allow Outputs
-        conn.setDoOutput(true);
+    }
 
-        OutputStream os = conn.getOutputStream();
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-        writer.write(payload);
 
-        writer.flush();
-        writer.close();
-        os.close();
+    public static String post(
+            String targetURL,
+            String payload,
+            String username,
+            String password)
+            throws IOException
+    {
+        Semaphore permits = acquireHost(targetURL);
+        try {
+            final HttpURLConnection conn = getHttpConnection("POST", targetURL, username, password);
+            if(null == conn){
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Error get connection object");
+                return null;
+            }
+            conn.setRequestProperty("Content-type", "application/json");
+            writePayload(conn, payload);
+
+            int responseCode = getResponseCode(conn);
+            if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_CREATED) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem execute post: " + targetURL + " HTTP response: " + responseCode);
+                return responseToString(getErrorStream(conn));
+            }
 
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_CREATED) {
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Problem execute post: " + targetURL + " HTTP response: " + responseCode);
-            return responseToString(conn.getErrorStream());
+            return responseToString(getInputStream(conn));
+        } finally {
+            permits.release();
         }
-
-        return responseToString(conn.getInputStream());
     }
 
 
@@ -239,22 +358,29 @@ public class NetworkUtil
             String password)
             throws IOException
     {
-        final HttpURLConnection conn = getHttpConnection("DELETE", targetURL, username, password);
-        if(null == conn){
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Error get connection object");
-            return false;
-        }
+        Semaphore permits = acquireHost(targetURL);
+        try {
+            final HttpURLConnection conn =
+                    getHttpConnection("DELETE", targetURL, username, password);
+            if(null == conn){
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Error get connection object");
+                return false;
+            }
 
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Problem execute delete: " + targetURL + " HTTP response: " +
-                    responseCode);
-            return false;
-        }
+            int responseCode = getResponseCode(conn);
+            closeResponse(conn);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem execute delete: " + targetURL + " HTTP response: " +
+                        responseCode);
+                return false;
+            }
 
-        return true;
+            return true;
+        } finally {
+            permits.release();
+        }
     }
 
 
@@ -265,33 +391,69 @@ public class NetworkUtil
             String password)
             throws IOException
     {
-        final HttpURLConnection conn = getHttpConnection("PUT", targetURL, username, password);
-        if(null == conn){
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Error get connection object");
-            return null;
+        Semaphore permits = acquireHost(targetURL);
+        try {
+            final HttpURLConnection conn = getHttpConnection("PUT", targetURL, username, password);
+            if(null == conn){
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Error get connection object");
+                return null;
+            }
+            conn.setRequestProperty("Content-type", "application/json");
+            writePayload(conn, payload);
+
+            int responseCode = getResponseCode(conn);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem execute put: " + targetURL + " HTTP response: " +
+                        responseCode);
+                closeResponse(conn);
+                return null;
+            }
+
+            return responseToString(getInputStream(conn));
+        } finally {
+            permits.release();
         }
-        conn.setRequestProperty("Content-type", "application/json");
-        // Allow Outputs
-        conn.setDoOutput(true);
+    }
 
-        OutputStream os = conn.getOutputStream();
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-        writer.write(payload);
 
-        writer.flush();
-        writer.close();
-        os.close();
+    /**
+     * The PATCH method is supported by HttpURLConnection since Android 4.4, the ProtocolException
+     * is thrown on older versions.
+     */
+    public static String patch(
+            String targetURL,
+            String payload,
+            String username,
+            String password)
+            throws IOException
+    {
+        Semaphore permits = acquireHost(targetURL);
+        try {
+            final HttpURLConnection conn =
+                    getHttpConnection("PATCH", targetURL, username, password);
+            if(null == conn){
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Error get connection object");
+                return null;
+            }
+            conn.setRequestProperty("Content-type", "application/json");
+            writePayload(conn, payload);
+
+            int responseCode = getResponseCode(conn);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem execute patch: " + targetURL + " HTTP response: " +
+                        responseCode);
+                closeResponse(conn);
+                return null;
+            }
 
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Problem execute put: " + targetURL + " HTTP response: " +
-                    responseCode);
-            return null;
+            return responseToString(getInputStream(conn));
+        } finally {
+            permits.release();
         }
-
-        return responseToString(conn.getInputStream());
     }
 
 
@@ -303,50 +465,541 @@ public class NetworkUtil
             String username,
             String password)
             throws IOException
+    {
+        return postFile(targetURL, fileName, file, fileMime, username, password, null);
+    }
+
+
+    /**
+     * Post the file as multipart form data. The file is streamed with the known content length,
+     * so it is not buffered in memory and the listener gets the sent bytes.
+     */
+    public static String postFile(
+            String targetURL,
+            String fileName,
+            File file,
+            String fileMime,
+            String username,
+            String password,
+            ProgressListener listener)
+            throws IOException
     {
         final String lineEnd = "\r\n";
         final String twoHyphens = "--";
         final String boundary = "**nextgis**";
 
-        //------------------ CLIENT REQUEST
-        FileInputStream fileInputStream = new FileInputStream(file);
-        // open a URL connection to the Servlet
+        String header = twoHyphens + boundary + lineEnd;
+        header += "Content-Disposition: form-data; name=\"file\"; filename=\"" + fileName + "\"" +
+                lineEnd;
+        if (!TextUtils.isEmpty(fileMime)) {
+            header += "Content-Type: " + fileMime + lineEnd;
+        }
+        header += lineEnd;
+        String footer = lineEnd + twoHyphens + boundary + twoHyphens + lineEnd;
+
+        Semaphore permits = acquireHost(targetURL);
+        try {
+            //------------------ CLIENT REQUEST
+            // open a URL connection to the Servlet
+
+            HttpURLConnection conn = getHttpConnection("POST", targetURL, username, password);
+            conn.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + boundary);
+            // Allow Outputs
+            conn.setDoOutput(true);
+            // the header and footer are written by one byte per char
+            conn.setFixedLengthStreamingMode(
+                    (int) (header.length() + file.length() + footer.length()));
+
+            DataOutputStream dos = new DataOutputStream(conn.getOutputStream());
+            dos.writeBytes(header);
+            writeFile(file, 0, file.length(), dos, listener);
+            dos.writeBytes(footer);
+            dos.flush();
+            dos.close();
+            sBytesSent.addAndGet(header.length() + footer.length());
+
+            int responseCode = getResponseCode(conn);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem postFile(), targetURL: " + targetURL + " HTTP response: " +
+                        responseCode);
+                closeResponse(conn);
+                return null;
+            }
+
+            return responseToString(getInputStream(conn));
+        } finally {
+            permits.release();
+        }
+    }
+
+
+    protected static void writeFile(
+            File file,
+            long offset,
+            long length,
+            OutputStream outputStream,
+            ProgressListener listener)
+            throws IOException
+    {
+        byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            input.seek(offset);
+            while (length > 0) {
+                int count = input.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (count < 0) {
+                    throw new IOException("Unexpected end of file " + file.getName());
+                }
+                outputStream.write(buffer, 0, count);
+                length -= count;
+                sBytesSent.addAndGet(count);
+                if (null != listener) {
+                    listener.onProgress(count);
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+
 
-        HttpURLConnection conn = getHttpConnection("POST", targetURL, username, password);
-        conn.setRequestProperty("Connection", "Keep-Alive");
-        conn.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + boundary);
+    protected static void writePayload(
+            HttpURLConnection conn,
+            String payload)
+            throws IOException
+    {
+        byte[] data = payload.getBytes("UTF-8");
         // Allow Outputs
         conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(data.length);
 
-        DataOutputStream dos = new DataOutputStream(conn.getOutputStream());
-        dos.writeBytes(twoHyphens + boundary + lineEnd);
-        dos.writeBytes(
-                "Content-Disposition: form-data; name=\"file\"; filename=\"" + fileName + "\"" +
-                lineEnd);
+        OutputStream os = conn.getOutputStream();
+        os.write(data);
+        os.flush();
+        os.close();
+        sBytesSent.addAndGet(data.length);
+    }
 
-        if (!TextUtils.isEmpty(fileMime)) {
-            dos.writeBytes("Content-Type: " + fileMime + lineEnd);
-        }
 
-        dos.writeBytes(lineEnd);
+    /**
+     * @return true if the server supports the resumable uploads by tus protocol
+     */
+    public static boolean isTusSupported(
+            String targetURL,
+            String username,
+            String password)
+    {
+        try {
+            Semaphore permits = acquireHost(targetURL);
+            try {
+                HttpURLConnection conn =
+                        getHttpConnection("OPTIONS", targetURL, username, password);
+                int responseCode = getResponseCode(conn);
+                boolean result = (responseCode == HttpURLConnection.HTTP_OK
+                        || responseCode == HttpURLConnection.HTTP_NO_CONTENT)
+                        && null != conn.getHeaderField("Tus-Version");
+                closeResponse(conn);
+                return result;
+            } finally {
+                permits.release();
+            }
+        } catch (IOException e) {
+            if(Constants.DEBUG_MODE)
+                Log.d(TAG, "Problem isTusSupported(): " + e.getLocalizedMessage());
+            return false;
+        }
+    }
 
-        byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
-        FileUtil.copyStream(fileInputStream, dos, buffer, Constants.IO_BUFFER_SIZE);
 
-        dos.writeBytes(lineEnd);
-        dos.writeBytes(twoHyphens + boundary + twoHyphens + lineEnd);
-        fileInputStream.close();
-        dos.flush();
-        dos.close();
+    /**
+     * Create the resumable upload by tus protocol
+     *
+     * @param metadata
+     *         The Upload-Metadata header value or null
+     *
+     * @return The upload URL or null
+     */
+    public static String tusCreate(
+            String targetURL,
+            long length,
+            String metadata,
+            String username,
+            String password)
+            throws IOException
+    {
+        int responseCode;
+        String location;
+        Semaphore permits = acquireHost(targetURL);
+        try {
+            HttpURLConnection conn = getHttpConnection("POST", targetURL, username, password);
+            conn.setRequestProperty("Tus-Resumable", TUS_VERSION);
+            conn.setRequestProperty("Upload-Length", "" + length);
+            if (!TextUtils.isEmpty(metadata)) {
+                conn.setRequestProperty("Upload-Metadata", metadata);
+            }
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(0);
+            conn.getOutputStream().close();
+
+            responseCode = getResponseCode(conn);
+            location = conn.getHeaderField("Location");
+            closeResponse(conn);
+        } finally {
+            permits.release();
+        }
 
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
+        if (responseCode != HttpURLConnection.HTTP_CREATED || null == location) {
             if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Problem postFile(), targetURL: " + targetURL + " HTTP response: " +
+                Log.d(TAG, "Problem tusCreate(), targetURL: " + targetURL + " HTTP response: " +
                     responseCode);
             return null;
         }
 
-        return responseToString(conn.getInputStream());
+        return new URL(new URL(targetURL), location).toString();
+    }
+
+
+    /**
+     * @return The count of bytes received by server or NOT_FOUND if the upload is absent
+     */
+    public static long tusGetOffset(
+            String uploadURL,
+            String username,
+            String password)
+            throws IOException
+    {
+        int responseCode;
+        String offset;
+        Semaphore permits = acquireHost(uploadURL);
+        try {
+            HttpURLConnection conn = getHttpConnection("HEAD", uploadURL, username, password);
+            conn.setRequestProperty("Tus-Resumable", TUS_VERSION);
+
+            responseCode = getResponseCode(conn);
+            offset = conn.getHeaderField("Upload-Offset");
+            closeResponse(conn);
+        } finally {
+            permits.release();
+        }
+
+        if (responseCode != HttpURLConnection.HTTP_OK
+                && responseCode != HttpURLConnection.HTTP_NO_CONTENT || null == offset) {
+            return Constants.NOT_FOUND;
+        }
+
+        try {
+            return Long.parseLong(offset);
+        } catch (NumberFormatException e) {
+            return Constants.NOT_FOUND;
+        }
+    }
+
+
+    /**
+     * Send the file from the offset by chunks of TUS_CHUNK_SIZE
+     *
+     * @return true if the whole file is sent
+     */
+    public static boolean tusUpload(
+            String uploadURL,
+            File file,
+            long offset,
+            String username,
+            String password,
+            ProgressListener listener)
+            throws IOException
+    {
+        long length = file.length();
+        while (offset < length) {
+            int chunkSize = (int) Math.min(TUS_CHUNK_SIZE, length - offset);
+
+            int responseCode;
+            String newOffset;
+            Semaphore permits = acquireHost(uploadURL);
+            try {
+                HttpURLConnection conn;
+                // PATCH is supported by HttpURLConnection since Android 4.4
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    conn = getHttpConnection("PATCH", uploadURL, username, password);
+                } else {
+                    conn = getHttpConnection("POST", uploadURL, username, password);
+                    conn.setRequestProperty("X-HTTP-Method-Override", "PATCH");
+                }
+                conn.setRequestProperty("Tus-Resumable", TUS_VERSION);
+                conn.setRequestProperty("Upload-Offset", "" + offset);
+                conn.setRequestProperty("Content-Type", "application/offset+octet-stream");
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode(chunkSize);
+
+                OutputStream os = conn.getOutputStream();
+                writeFile(file, offset, chunkSize, os, listener);
+                os.close();
+
+                responseCode = getResponseCode(conn);
+                newOffset = conn.getHeaderField("Upload-Offset");
+                closeResponse(conn);
+            } finally {
+                permits.release();
+            }
+
+            if (responseCode != HttpURLConnection.HTTP_NO_CONTENT
+                    && responseCode != HttpURLConnection.HTTP_OK) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem tusUpload(), uploadURL: " + uploadURL + " HTTP response: " +
+                        responseCode);
+                return false;
+            }
+
+            try {
+                offset = null == newOffset ? offset + chunkSize : Long.parseLong(newOffset);
+            } catch (NumberFormatException e) {
+                offset += chunkSize;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Wait for the free connection to the host of URL. The requests to one host are limited by
+     * MAX_HOST_CONNECTIONS, the returned permits must be released when the request is done.
+     */
+    public static Semaphore acquireHost(String targetURL)
+            throws IOException
+    {
+        String host;
+        try {
+            host = new URL(targetURL).getAuthority();
+        } catch (MalformedURLException e) {
+            host = targetURL;
+        }
+
+        Semaphore permits;
+        synchronized (sHostPermits) {
+            permits = sHostPermits.get(host);
+            if (null == permits) {
+                permits = new Semaphore(MAX_HOST_CONNECTIONS, true);
+                sHostPermits.put(host, permits);
+            }
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for connection to " + host);
+        }
+        return permits;
+    }
+
+
+    /**
+     * Get the response code and count the request and its response time
+     */
+    public static int getResponseCode(HttpURLConnection conn)
+            throws IOException
+    {
+        long start = System.currentTimeMillis();
+        try {
+            return conn.getResponseCode();
+        } finally {
+            sRequestCount.incrementAndGet();
+            sResponseTime.addAndGet(System.currentTimeMillis() - start);
+        }
+    }
+
+
+    /**
+     * @return The response body stream counting the received bytes, not decompressed
+     */
+    public static InputStream getRawInputStream(HttpURLConnection conn)
+            throws IOException
+    {
+        return new ResponseInputStream(conn.getInputStream(), null);
+    }
+
+
+    /**
+     * @return The response body stream, decompressed if the response is gzipped
+     */
+    public static InputStream getInputStream(HttpURLConnection conn)
+            throws IOException
+    {
+        return decodeStream(conn, getRawInputStream(conn));
+    }
+
+
+    public static InputStream getErrorStream(HttpURLConnection conn)
+            throws IOException
+    {
+        InputStream is = conn.getErrorStream();
+        if (null == is) {
+            return null;
+        }
+        return decodeStream(conn, new ResponseInputStream(is, null));
+    }
+
+
+    public static InputStream decodeStream(
+            HttpURLConnection conn,
+            InputStream is)
+            throws IOException
+    {
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+            return new GZIPInputStream(is, Constants.IO_BUFFER_SIZE);
+        }
+        return is;
+    }
+
+
+    /**
+     * Read out and close the response body, so the connection returns to the keep-alive pool.
+     * The connection with a large body is closed, as disconnect() does.
+     */
+    public static void closeResponse(HttpURLConnection conn)
+    {
+        try {
+            if (conn.getContentLength() > Constants.IO_BUFFER_SIZE) {
+                conn.disconnect();
+                return;
+            }
+
+            InputStream is = conn.getErrorStream();
+            if (null == is) {
+                is = conn.getInputStream();
+            }
+            is = new ResponseInputStream(is, null);
+
+            byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+            while (is.read(buffer) != -1) {
+                // skip the body
+            }
+            is.close();
+        } catch (IOException e) {
+            conn.disconnect();
+        }
+    }
+
+
+    /**
+     * @return The count of HTTP requests since the start or resetCounters()
+     */
+    public static long getRequestCount()
+    {
+        return sRequestCount.get();
+    }
+
+
+    /**
+     * @return The count of received bytes of response bodies as they are transferred, i.e.
+     * compressed
+     */
+    public static long getBytesReceived()
+    {
+        return sBytesReceived.get();
+    }
+
+
+    /**
+     * @return The count of sent bytes of request bodies
+     */
+    public static long getBytesSent()
+    {
+        return sBytesSent.get();
+    }
+
+
+    /**
+     * @return The total time of waiting for responses in milliseconds
+     */
+    public static long getResponseTime()
+    {
+        return sResponseTime.get();
+    }
+
+
+    public static void resetCounters()
+    {
+        sRequestCount.set(0);
+        sBytesReceived.set(0);
+        sBytesSent.set(0);
+        sResponseTime.set(0);
+    }
+
+
+    /**
+     * The response stream counting the received bytes, the host permits are released on close
+     */
+    protected static class ResponseInputStream
+            extends FilterInputStream
+    {
+        protected Semaphore mPermits;
+
+
+        public ResponseInputStream(
+                InputStream in,
+                Semaphore permits)
+        {
+            super(in);
+            mPermits = permits;
+        }
+
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            int b = super.read();
+            if (b >= 0) {
+                sBytesReceived.incrementAndGet();
+            }
+            return b;
+        }
+
+
+        @Override
+        public int read(
+                byte[] b,
+                int off,
+                int len)
+                throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                sBytesReceived.addAndGet(n);
+            }
+            return n;
+        }
+
+
+        @Override
+        public long skip(long n)
+                throws IOException
+        {
+            long skipped = super.skip(n);
+            if (skipped > 0) {
+                sBytesReceived.addAndGet(skipped);
+            }
+            return skipped;
+        }
+
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            try {
+                super.close();
+            } finally {
+                synchronized (this) {
+                    if (null != mPermits) {
+                        mPermits.release();
+                        mPermits = null;
+                    }
+                }
+            }
+        }
     }
 }
@@ -28,6 +28,8 @@ public interface SettingsConstants
     String KEY_PREF_MAP                     = "map";
     String KEY_PREF_MAP_PATH                = "map_path";
     String KEY_PREF_LAST_SYNC_TIMESTAMP     = "last_sync_timestamp";
+    String KEY_PREF_LAST_SYNC_FINGERPRINT   = "last_sync_fingerprint";
+    String KEY_PREF_SYNC_PAGE_LAST_ID       = "sync_page_last_id";
     String KEY_PREF_LOCATION_SOURCE         = "location_source";
     String KEY_PREF_LOCATION_MIN_TIME       = "location_min_time";
     String KEY_PREF_LOCATION_MIN_DISTANCE   = "location_min_distance";